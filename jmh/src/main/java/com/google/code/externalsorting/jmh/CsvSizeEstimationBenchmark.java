@@ -0,0 +1,104 @@
+package com.google.code.externalsorting.jmh;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.code.externalsorting.csv.SizeEstimator;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of estimating the size of each CSV record while filling a block.
+ *
+ * Run with the gc profiler to see the allocation per record
+ * (gc.alloc.rate.norm):
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar CsvSizeEstimationBenchmark -prof gc
+ * </pre>
+ *
+ * <code>toStringEstimate</code> is the estimate used before, which builds the
+ * string of the whole record, <code>fieldLengthEstimate</code> sums the
+ * lengths of the fields and should allocate nothing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CsvSizeEstimationBenchmark {
+
+	private static final int RECORDS = 10000;
+
+	/**
+	 * Number of fields per record.
+	 */
+	@Param({"4", "16"})
+	public int fields;
+
+	private List<CSVRecord> records;
+
+	/**
+	 * Parses the records once.
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Setup
+	public void setup() throws IOException {
+		Random r = new Random(1234);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < RECORDS; i++) {
+			for (int f = 0; f < fields; f++) {
+				if (f > 0) {
+					sb.append(',');
+				}
+				sb.append(Long.toString(r.nextLong() >>> r.nextInt(64), 36));
+			}
+			sb.append('\n');
+		}
+		records = CSVFormat.DEFAULT.parse(new StringReader(sb.toString())).getRecords();
+	}
+
+	/**
+	 * Estimate through the string of the record.
+	 * @return the total estimated size
+	 */
+	@Benchmark
+	@OperationsPerInvocation(RECORDS)
+	public long toStringEstimate() {
+		long total = 0;
+		for (CSVRecord record : records) {
+			total += SizeEstimator.estimatedSizeOf((Object) record);
+		}
+		return total;
+	}
+
+	/**
+	 * Estimate from the lengths of the fields.
+	 * @return the total estimated size
+	 */
+	@Benchmark
+	@OperationsPerInvocation(RECORDS)
+	public long fieldLengthEstimate() {
+		long total = 0;
+		for (CSVRecord record : records) {
+			total += SizeEstimator.estimatedSizeOf(record);
+		}
+		return total;
+	}
+}
@@ -0,0 +1,110 @@
+package com.google.code.externalsorting.jmh;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.code.externalsorting.csv.CsvExternalSort;
+import com.google.code.externalsorting.csv.CsvSortKey;
+import com.google.code.externalsorting.csv.CsvSortOptions;
+import org.apache.commons.csv.CSVRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sort of a CSV document on a numeric and a string column, either with a
+ * plain comparator or with a {@link CsvSortKey}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CsvSortBenchmark {
+
+	/**
+	 * Number of records.
+	 */
+	@Param({"200000"})
+	public int records;
+
+	/**
+	 * Memory given to the sort (in bytes).
+	 */
+	@Param({"16777216"})
+	public int maxMemory;
+
+	/**
+	 * Sort with a CsvSortKey rather than a comparator.
+	 */
+	@Param({"false", "true"})
+	public boolean sortKey;
+
+	private String content;
+
+	private CsvSortOptions sortOptions;
+
+	private File output;
+
+	/**
+	 * Generates the document.
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Setup
+	public void setup() throws IOException {
+		content = DataGenerator.csv(records, DataGenerator.SEED);
+		output = File.createTempFile("csvsort", "out");
+		if (sortKey) {
+			CsvSortKey key = CsvSortKey.builder()
+					.column(0, CsvSortKey.Type.LONG)
+					.column(1, CsvSortKey.Type.STRING)
+					.build();
+			sortOptions = new CsvSortOptions.Builder(null, CsvExternalSort.DEFAULTMAXTEMPFILES, maxMemory)
+					.sortKey(key).numHeader(1).build();
+		} else {
+			Comparator<CSVRecord> cmp = (a, b) -> {
+				int c = Long.compare(Long.parseLong(a.get(0)), Long.parseLong(b.get(0)));
+				return c != 0 ? c : a.get(1).compareTo(b.get(1));
+			};
+			sortOptions = new CsvSortOptions.Builder(cmp, CsvExternalSort.DEFAULTMAXTEMPFILES, maxMemory)
+					.numHeader(1).build();
+		}
+	}
+
+	/**
+	 * Deletes the output.
+	 */
+	@TearDown
+	public void tearDown() {
+		output.delete();
+	}
+
+	/**
+	 * Sorts the document.
+	 * @return the number of records written
+	 * @throws Exception if the sort fails
+	 */
+	@Benchmark
+	public int sort() throws Exception {
+		List<CSVRecord> header = new ArrayList<CSVRecord>();
+		List<File> runs = CsvExternalSort.sortInBatch(content.length(),
+				new BufferedReader(new StringReader(content)), null, sortOptions, header);
+		return CsvExternalSort.mergeSortedFiles(runs, output, sortOptions, false, header);
+	}
+}
@@ -0,0 +1,171 @@
+package com.google.code.externalsorting.jmh;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reproducible inputs for the benchmarks: the same distribution, count and
+ * seed always give the same lines.
+ */
+public final class DataGenerator {
+
+	/**
+	 * Seed used by the benchmarks.
+	 */
+	public static final long SEED = 20240229L;
+
+	/**
+	 * Shape of the generated lines.
+	 */
+	public enum Distribution {
+		/**
+		 * Random lines of 8 to 40 ASCII characters.
+		 */
+		RANDOM,
+		/**
+		 * The random lines, already sorted.
+		 */
+		PRESORTED,
+		/**
+		 * The random lines, sorted in reverse order.
+		 */
+		REVERSED,
+		/**
+		 * Only a hundred distinct lines.
+		 */
+		DUPLICATES,
+		/**
+		 * Random lines of 500 to 2000 ASCII characters.
+		 */
+		LONG_LINES,
+		/**
+		 * Random lines of 1 to 4 ASCII characters.
+		 */
+		SHORT_LINES,
+		/**
+		 * Random lines mixing Latin, Greek, CJK and supplementary characters.
+		 */
+		UNICODE
+	}
+
+	private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 -_";
+
+	private static final String UNICODE_ALPHABET = "aeiouéèüßαβγ中文字😀";
+
+	private DataGenerator() {
+	}
+
+	/**
+	 * Generates lines.
+	 * @param distribution shape of the lines
+	 * @param count number of lines
+	 * @param seed seed of the random generator
+	 * @return the lines
+	 */
+	public static List<String> lines(Distribution distribution, int count, long seed) {
+		Random r = new Random(seed);
+		List<String> lines = new ArrayList<String>(count);
+		switch (distribution) {
+		case DUPLICATES:
+			List<String> distinct = lines(Distribution.RANDOM, 100, seed);
+			for (int i = 0; i < count; i++) {
+				lines.add(distinct.get(r.nextInt(distinct.size())));
+			}
+			break;
+		case LONG_LINES:
+			for (int i = 0; i < count; i++) {
+				lines.add(ascii(r, 500 + r.nextInt(1501)));
+			}
+			break;
+		case SHORT_LINES:
+			for (int i = 0; i < count; i++) {
+				lines.add(ascii(r, 1 + r.nextInt(4)));
+			}
+			break;
+		case UNICODE:
+			for (int i = 0; i < count; i++) {
+				lines.add(unicode(r, 8 + r.nextInt(33)));
+			}
+			break;
+		default:
+			for (int i = 0; i < count; i++) {
+				lines.add(ascii(r, 8 + r.nextInt(33)));
+			}
+			if (distribution == Distribution.PRESORTED) {
+				Collections.sort(lines);
+			} else if (distribution == Distribution.REVERSED) {
+				Collections.sort(lines, Collections.reverseOrder());
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * Generates CSV records: an integer, a word, a decimal number and a
+	 * quoted free-text field, preceded by a header line.
+	 * @param count number of records
+	 * @param seed seed of the random generator
+	 * @return the CSV content
+	 */
+	public static String csv(int count, long seed) {
+		Random r = new Random(seed);
+		StringBuilder sb = new StringBuilder("id,name,score,comment\n");
+		for (int i = 0; i < count; i++) {
+			sb.append(r.nextInt(1000000)).append(',')
+					.append(ascii(r, 4 + r.nextInt(8)).replace(' ', '_')).append(',')
+					.append(r.nextGaussian() * 1000).append(",\"")
+					.append(ascii(r, 10 + r.nextInt(40))).append(", \"\"quoted\"\"\"\n");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Writes lines to a file, one per line, in UTF-8.
+	 * @param lines the lines
+	 * @param file the file
+	 * @param usegzip true to compress the file with gzip
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void write(List<String> lines, File file, boolean usegzip) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		if (usegzip) {
+			out = new GZIPOutputStream(out, 8192);
+		}
+		try (BufferedWriter w = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+			for (String line : lines) {
+				w.write(line);
+				w.newLine();
+			}
+		}
+	}
+
+	private static String ascii(Random r, int length) {
+		char[] c = new char[length];
+		for (int i = 0; i < length; i++) {
+			c[i] = ALPHABET.charAt(r.nextInt(ALPHABET.length()));
+		}
+		return new String(c);
+	}
+
+	private static String unicode(Random r, int length) {
+		StringBuilder sb = new StringBuilder(length + 1);
+		while (sb.length() < length) {
+			int i = r.nextInt(UNICODE_ALPHABET.length());
+			if (Character.isLowSurrogate(UNICODE_ALPHABET.charAt(i))) {
+				i--;
+			}
+			sb.appendCodePoint(UNICODE_ALPHABET.codePointAt(i));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,105 @@
+package com.google.code.externalsorting.jmh;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.code.externalsorting.ExternalSort;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sort of a file to another file: run generation followed by the merge.
+ * The memory is capped so that the input is split in several runs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class EndToEndBenchmark {
+
+	/**
+	 * Shape of the lines.
+	 */
+	@Param({"RANDOM", "PRESORTED", "DUPLICATES", "UNICODE"})
+	public DataGenerator.Distribution distribution;
+
+	/**
+	 * Number of lines in the input.
+	 */
+	@Param({"1000000"})
+	public int lines;
+
+	/**
+	 * Memory given to the sort (in bytes).
+	 */
+	@Param({"16777216"})
+	public long maxMemory;
+
+	/**
+	 * Temporary files compressed with gzip.
+	 */
+	@Param({"false", "true"})
+	public boolean usegzip;
+
+	/**
+	 * Blocks sorted in parallel.
+	 */
+	@Param({"true"})
+	public boolean parallel;
+
+	private File input;
+
+	private File output;
+
+	/**
+	 * Writes the input file.
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Setup
+	public void setup() throws IOException {
+		input = File.createTempFile("endtoend", "in");
+		output = File.createTempFile("endtoend", "out");
+		DataGenerator.write(DataGenerator.lines(distribution, lines, DataGenerator.SEED), input, false);
+	}
+
+	/**
+	 * Deletes the input and the output.
+	 */
+	@TearDown
+	public void tearDown() {
+		input.delete();
+		output.delete();
+	}
+
+	/**
+	 * Sorts the input.
+	 * @return the number of lines written
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Benchmark
+	public long sort() throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(input), StandardCharsets.UTF_8));
+		List<File> runs = ExternalSort.sortInBatch(in, input.length(), ExternalSort.defaultcomparator,
+				ExternalSort.DEFAULTMAXTEMPFILES, maxMemory, StandardCharsets.UTF_8, null, false, 0, usegzip, parallel);
+		return ExternalSort.mergeSortedFiles(runs, output, ExternalSort.defaultcomparator, StandardCharsets.UTF_8,
+				false, false, usegzip);
+	}
+}
@@ -0,0 +1,118 @@
+package com.google.code.externalsorting.jmh;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import com.google.code.externalsorting.BinaryFileBuffer;
+import com.google.code.externalsorting.ExternalSort;
+import com.google.code.externalsorting.IOStringStack;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Merge of sorted runs at varying fan-in, with and without gzip. The
+ * total number of lines is the same whatever the fan-in.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MergeBenchmark {
+
+	/**
+	 * Number of runs merged at once.
+	 */
+	@Param({"2", "16", "128", "512"})
+	public int fanIn;
+
+	/**
+	 * Total number of lines.
+	 */
+	@Param({"500000"})
+	public int lines;
+
+	/**
+	 * Runs compressed with gzip.
+	 */
+	@Param({"false", "true"})
+	public boolean usegzip;
+
+	private final List<File> runs = new ArrayList<File>();
+
+	private File output;
+
+	/**
+	 * Writes the sorted runs.
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Setup
+	public void setup() throws IOException {
+		List<String> all = DataGenerator.lines(DataGenerator.Distribution.RANDOM, lines, DataGenerator.SEED);
+		int perRun = (lines + fanIn - 1) / fanIn;
+		for (int i = 0; i < lines; i += perRun) {
+			List<String> run = new ArrayList<String>(all.subList(i, Math.min(lines, i + perRun)));
+			Collections.sort(run);
+			File f = File.createTempFile("merge", "run");
+			DataGenerator.write(run, f, usegzip);
+			runs.add(f);
+		}
+		output = File.createTempFile("merge", "out");
+	}
+
+	/**
+	 * Deletes the runs and the output.
+	 */
+	@TearDown
+	public void tearDown() {
+		for (File f : runs) {
+			f.delete();
+		}
+		runs.clear();
+		output.delete();
+	}
+
+	/**
+	 * Merges the runs, which are kept for the next invocation.
+	 * @return the number of lines written
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Benchmark
+	public long merge() throws IOException {
+		List<IOStringStack> buffers = new ArrayList<IOStringStack>();
+		for (File f : runs) {
+			InputStream in = new FileInputStream(f);
+			if (usegzip) {
+				in = new GZIPInputStream(in, 2048);
+			}
+			buffers.add(new BinaryFileBuffer(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))));
+		}
+		BufferedWriter out = new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8));
+		return ExternalSort.mergeSortedFiles(out, ExternalSort.defaultcomparator, false, buffers);
+	}
+}
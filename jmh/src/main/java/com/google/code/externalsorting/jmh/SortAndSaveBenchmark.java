@@ -0,0 +1,82 @@
+package com.google.code.externalsorting.jmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.code.externalsorting.ExternalSort;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Run generation: sorting a block of lines and writing it to a temporary
+ * file, sequentially or in parallel, with and without gzip.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SortAndSaveBenchmark {
+
+	/**
+	 * Shape of the lines.
+	 */
+	@Param({"RANDOM", "PRESORTED", "REVERSED", "DUPLICATES", "LONG_LINES", "SHORT_LINES", "UNICODE"})
+	public DataGenerator.Distribution distribution;
+
+	/**
+	 * Number of lines in the block.
+	 */
+	@Param({"100000"})
+	public int lines;
+
+	/**
+	 * Sort with a parallel stream.
+	 */
+	@Param({"false", "true"})
+	public boolean parallel;
+
+	/**
+	 * Compress the run with gzip.
+	 */
+	@Param({"false", "true"})
+	public boolean usegzip;
+
+	private List<String> block;
+
+	/**
+	 * Generates the block.
+	 */
+	@Setup
+	public void setup() {
+		block = DataGenerator.lines(distribution, lines, DataGenerator.SEED);
+	}
+
+	/**
+	 * Sorts and saves a copy of the block.
+	 * @return the size of the run
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Benchmark
+	public long sortAndSave() throws IOException {
+		File run = ExternalSort.sortAndSave(new ArrayList<String>(block), ExternalSort.defaultcomparator,
+				StandardCharsets.UTF_8, null, false, usegzip, parallel);
+		long length = run.length();
+		run.delete();
+		return length;
+	}
+}
@@ -0,0 +1,128 @@
+package com.google.code.externalsorting.jmh;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.code.externalsorting.BinaryFileBuffer;
+import com.google.code.externalsorting.ExternalSort;
+import com.google.code.externalsorting.IOStringStack;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Overhead of the stable merge, which breaks ties by the order of the runs.
+ * The lines are compared on their first characters only, so that with the
+ * DUPLICATES distribution most comparisons are ties.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StableMergeBenchmark {
+
+	/**
+	 * Shape of the lines.
+	 */
+	@Param({"RANDOM", "DUPLICATES"})
+	public DataGenerator.Distribution distribution;
+
+	/**
+	 * Number of runs merged at once.
+	 */
+	@Param({"16", "512"})
+	public int fanIn;
+
+	/**
+	 * Total number of lines.
+	 */
+	@Param({"500000"})
+	public int lines;
+
+	/**
+	 * Ties broken by the order of the runs.
+	 */
+	@Param({"false", "true"})
+	public boolean stable;
+
+	private static final Comparator<String> PREFIX = new Comparator<String>() {
+		@Override
+		public int compare(String a, String b) {
+			return a.substring(0, Math.min(2, a.length())).compareTo(b.substring(0, Math.min(2, b.length())));
+		}
+	};
+
+	private final List<File> runs = new ArrayList<File>();
+
+	private File output;
+
+	/**
+	 * Writes the sorted runs.
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Setup
+	public void setup() throws IOException {
+		List<String> all = DataGenerator.lines(distribution, lines, DataGenerator.SEED);
+		int perRun = (lines + fanIn - 1) / fanIn;
+		for (int i = 0; i < lines; i += perRun) {
+			List<String> run = new ArrayList<String>(all.subList(i, Math.min(lines, i + perRun)));
+			Collections.sort(run, PREFIX);
+			File f = File.createTempFile("stablemerge", "run");
+			DataGenerator.write(run, f, false);
+			runs.add(f);
+		}
+		output = File.createTempFile("stablemerge", "out");
+	}
+
+	/**
+	 * Deletes the runs and the output.
+	 */
+	@TearDown
+	public void tearDown() {
+		for (File f : runs) {
+			f.delete();
+		}
+		runs.clear();
+		output.delete();
+	}
+
+	/**
+	 * Merges the runs, which are kept for the next invocation.
+	 * @return the number of lines written
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Benchmark
+	public long merge() throws IOException {
+		List<IOStringStack> buffers = new ArrayList<IOStringStack>();
+		for (File f : runs) {
+			buffers.add(new BinaryFileBuffer(new BufferedReader(
+					new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8))));
+		}
+		BufferedWriter out = new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8));
+		return ExternalSort.mergeSortedFiles(out, PREFIX, false, stable, buffers);
+	}
+}
@@ -0,0 +1,62 @@
+package com.google.code.externalsorting.jmh;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.code.externalsorting.StringSizeEstimator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of estimating the size of each line while filling a block.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StringSizeEstimatorBenchmark {
+
+	private static final int LINES = 10000;
+
+	/**
+	 * Shape of the lines.
+	 */
+	@Param({"SHORT_LINES", "RANDOM", "LONG_LINES", "UNICODE"})
+	public DataGenerator.Distribution distribution;
+
+	private List<String> lines;
+
+	/**
+	 * Generates the lines.
+	 */
+	@Setup
+	public void setup() {
+		lines = DataGenerator.lines(distribution, LINES, DataGenerator.SEED);
+	}
+
+	/**
+	 * Estimates the size of every line.
+	 * @return the total estimated size
+	 */
+	@Benchmark
+	@OperationsPerInvocation(LINES)
+	public long estimatedSizeOf() {
+		long total = 0;
+		for (String line : lines) {
+			total += StringSizeEstimator.estimatedSizeOf(line);
+		}
+		return total;
+	}
+}
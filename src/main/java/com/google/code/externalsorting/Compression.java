@@ -0,0 +1,175 @@
+package com.google.code.externalsorting;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression of the temporary files.
+ *
+ * All codecs favour speed over ratio: temporary files are written once and
+ * read once, so the time spent compressing must stay below the time saved
+ * on I/O.
+ */
+public enum Compression {
+    /**
+     * No compression.
+     */
+    NONE,
+    /**
+     * gzip at the fastest level, the same as the <code>usegzip</code> flag
+     * of {@link ExternalSort}.
+     */
+    GZIP,
+    /**
+     * zlib stream at the fastest level: smaller header and a cheaper
+     * checksum than gzip.
+     */
+    DEFLATE,
+    /**
+     * Huffman coding only, without searching for repeated strings. Much
+     * faster than the other codecs, with a lower ratio.
+     */
+    HUFFMAN;
+
+    /**
+     * The two bytes starting a gzip stream.
+     */
+    private static final int GZIP_MAGIC = 0x1f8b;
+
+    /**
+     * Wraps a stream to compress what is written to it.
+     *
+     * @param out the raw stream
+     * @param bufferSize size of the compression buffer (in bytes)
+     * @return the compressing stream, or out itself for {@link #NONE}
+     * @throws IOException generic IO exception
+     */
+    public OutputStream wrap(OutputStream out, int bufferSize) throws IOException {
+        switch (this) {
+        case GZIP:
+            return new GZIPOutputStream(out, bufferSize) {
+                {
+                    this.def.setLevel(Deflater.BEST_SPEED);
+                }
+            };
+        case DEFLATE:
+            return new OwnedDeflaterOutputStream(out, new Deflater(Deflater.BEST_SPEED), bufferSize);
+        case HUFFMAN:
+            Deflater def = new Deflater(Deflater.BEST_SPEED);
+            def.setStrategy(Deflater.HUFFMAN_ONLY);
+            return new OwnedDeflaterOutputStream(out, def, bufferSize);
+        default:
+            return out;
+        }
+    }
+
+    /**
+     * Wraps a stream to decompress what is read from it.
+     *
+     * @param in the raw stream
+     * @param bufferSize size of the decompression buffer (in bytes)
+     * @return the decompressing stream, or in itself for {@link #NONE}
+     * @throws IOException generic IO exception
+     */
+    public InputStream wrap(InputStream in, int bufferSize) throws IOException {
+        switch (this) {
+        case GZIP:
+            return new GZIPInputStream(in, bufferSize);
+        case DEFLATE:
+        case HUFFMAN:
+            return new OwnedInflaterInputStream(in, bufferSize);
+        default:
+            return in;
+        }
+    }
+
+    /**
+     * Decompresses the stream if it starts like a gzip stream.
+     *
+     * @param in the raw stream
+     * @param bufferSize size of the decompression buffer (in bytes)
+     * @return a stream returning the decompressed data
+     * @throws IOException generic IO exception
+     */
+    public static InputStream detect(InputStream in, int bufferSize) throws IOException {
+        if (!in.markSupported()) {
+            in = new BufferedInputStream(in, bufferSize);
+        }
+        in.mark(2);
+        int magic = (in.read() << 8) | in.read();
+        in.reset();
+        return magic == GZIP_MAGIC ? new GZIPInputStream(in, bufferSize) : in;
+    }
+
+    /**
+     * Estimates the volume of data in a file which may be compressed with
+     * gzip. For gzip files, the trailer holds the uncompressed size modulo
+     * 2^32, so we never return less than the size of the file.
+     *
+     * @param file some file
+     * @return estimated uncompressed size (in bytes)
+     * @throws IOException generic IO exception
+     */
+    public static long uncompressedLength(File file) throws IOException {
+        long length = file.length();
+        if (length < 18) {
+            return length;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            int magic = (raf.read() << 8) | raf.read();
+            if (magic != GZIP_MAGIC) {
+                return length;
+            }
+            raf.seek(length - 4);
+            long isize = (raf.read() & 0xff) | (raf.read() & 0xff) << 8
+                | (raf.read() & 0xff) << 16 | ((long) raf.read() & 0xff) << 24;
+            return Math.max(length, isize);
+        }
+    }
+
+    /**
+     * Releases the native memory of its deflater when closed.
+     */
+    private static final class OwnedDeflaterOutputStream extends DeflaterOutputStream {
+        OwnedDeflaterOutputStream(OutputStream out, Deflater def, int size) {
+            super(out, def, size);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                def.end();
+            }
+        }
+    }
+
+    /**
+     * Releases the native memory of its inflater when closed.
+     */
+    private static final class OwnedInflaterInputStream extends InflaterInputStream {
+        OwnedInflaterInputStream(InputStream in, int size) {
+            super(in, new Inflater(), size);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package com.google.code.externalsorting;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Streams over a {@link FileChannel} with large buffers, for the temporary
+ * files: runs are written once and read back once, in big sequential
+ * chunks.
+ *
+ * In direct mode, the files are opened with <code>O_DIRECT</code>
+ * (<code>com.sun.nio.file.ExtendedOpenOption.DIRECT</code>, available from
+ * Java 10 on Linux and a few other systems): the transfers bypass the page
+ * cache, so that a sort does not evict the hot files of the processes
+ * running next to it. The buffers are then aligned on
+ * {@link #ALIGNMENT} bytes, and so are the sizes and positions of the
+ * transfers. When the option is not available, or when the file system
+ * refuses it (tmpfs for instance), the streams silently fall back to
+ * regular I/O with the same large buffers.
+ *
+ * Java offers no way to drop the pages of a file written without
+ * <code>O_DIRECT</code> from the cache (<code>posix_fadvise</code>), so
+ * direct mode is the only way to keep the cache clean.
+ */
+public final class DirectIO {
+
+    /**
+     * Default size of the buffer of a stream (in bytes).
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Alignment of the buffers and transfers in direct mode (in bytes). It is
+     * a multiple of the logical block size of the usual devices.
+     */
+    public static final int ALIGNMENT = 4096;
+
+    private static final OpenOption DIRECT = directOption();
+
+    private static final Method ALIGNED_SLICE = alignedSliceMethod();
+
+    private DirectIO() {
+    }
+
+    /**
+     * Indicates whether this JVM can open files with <code>O_DIRECT</code>.
+     * A given file system may still refuse it.
+     *
+     * @return true if direct mode is available
+     */
+    public static boolean isDirectAvailable() {
+        return DIRECT != null && ALIGNED_SLICE != null;
+    }
+
+    /**
+     * Opens a file for writing, truncating it.
+     *
+     * @param file the file
+     * @param bufferSize the size of the buffer (in bytes), rounded to a
+     *            multiple of {@link #ALIGNMENT}
+     * @param direct true to bypass the page cache if possible
+     * @return the stream
+     * @throws IOException generic IO exception
+     */
+    public static OutputStream newOutputStream(File file, int bufferSize,
+        boolean direct) throws IOException {
+        return newOutputStream(file, false, bufferSize, direct);
+    }
+
+    /**
+     * Opens a file for writing.
+     *
+     * @param file the file
+     * @param append true to append to the file rather than truncating it, in
+     *            which case the page cache is used
+     * @param bufferSize the size of the buffer (in bytes), rounded to a
+     *            multiple of {@link #ALIGNMENT}
+     * @param direct true to bypass the page cache if possible
+     * @return the stream
+     * @throws IOException generic IO exception
+     */
+    public static OutputStream newOutputStream(File file, boolean append,
+        int bufferSize, boolean direct) throws IOException {
+        List<OpenOption> options = new ArrayList<>(Arrays.<OpenOption>asList(
+            StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+            append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING));
+        FileChannel channel = direct && !append ? openDirect(file, options) : null;
+        if (channel != null) {
+            return new ChannelOutputStream(channel, bufferSize, true);
+        }
+        channel = FileChannel.open(file.toPath(), options.toArray(new OpenOption[0]));
+        return new ChannelOutputStream(channel, bufferSize, false);
+    }
+
+    /**
+     * Opens a file for reading.
+     *
+     * @param file the file
+     * @param bufferSize the size of the buffer (in bytes), rounded to a
+     *            multiple of {@link #ALIGNMENT}
+     * @param direct true to bypass the page cache if possible
+     * @return the stream
+     * @throws IOException generic IO exception
+     */
+    public static InputStream newInputStream(File file, int bufferSize,
+        boolean direct) throws IOException {
+        return newInputStream(file, 0, bufferSize, direct);
+    }
+
+    /**
+     * Opens a file for reading from an offset.
+     *
+     * @param file the file
+     * @param offset the offset of the first byte to read
+     * @param bufferSize the size of the buffer (in bytes), rounded to a
+     *            multiple of {@link #ALIGNMENT}
+     * @param direct true to bypass the page cache if possible
+     * @return the stream
+     * @throws IOException generic IO exception
+     */
+    public static InputStream newInputStream(File file, long offset,
+        int bufferSize, boolean direct) throws IOException {
+        List<OpenOption> options = new ArrayList<>(Arrays.<OpenOption>asList(
+            StandardOpenOption.READ));
+        FileChannel channel = direct ? openDirect(file, options) : null;
+        boolean aligned = channel != null;
+        if (channel == null) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+        try {
+            // direct transfers start on a block, the rest of it is skipped
+            long start = aligned ? offset & -ALIGNMENT : offset;
+            channel.position(start);
+            ChannelInputStream in = new ChannelInputStream(channel, bufferSize, aligned);
+            in.skipFully(offset - start);
+            return in;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static FileChannel openDirect(File file, List<OpenOption> options) {
+        if (!isDirectAvailable()) {
+            return null;
+        }
+        List<OpenOption> withDirect = new ArrayList<>(options);
+        withDirect.add(DIRECT);
+        try {
+            return FileChannel.open(file.toPath(), withDirect.toArray(new OpenOption[0]));
+        } catch (IOException | UnsupportedOperationException e) {
+            // the file system does not support O_DIRECT
+            return null;
+        }
+    }
+
+    private static int roundedSize(int bufferSize) {
+        return Math.max(ALIGNMENT, bufferSize & -ALIGNMENT);
+    }
+
+    /**
+     * Allocates a buffer for a stream: on the heap for regular I/O, direct and
+     * aligned for direct I/O.
+     *
+     * @return the buffer to use, followed by the buffer to free, if any
+     */
+    private static ByteBuffer[] allocate(int size, boolean direct) {
+        if (!direct) {
+            return new ByteBuffer[] {ByteBuffer.allocate(size), null};
+        }
+        ByteBuffer raw = ByteBuffer.allocateDirect(size + ALIGNMENT);
+        try {
+            ByteBuffer aligned = (ByteBuffer) ALIGNED_SLICE.invoke(raw, ALIGNMENT);
+            aligned.limit(size);
+            return new ByteBuffer[] {aligned.slice(), raw};
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static OpenOption directOption() {
+        try {
+            Class<?> c = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+            Field f = c.getField("DIRECT");
+            return (OpenOption) f.get(null);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    private static Method alignedSliceMethod() {
+        try {
+            return ByteBuffer.class.getMethod("alignedSlice", int.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static final class ChannelOutputStream extends OutputStream {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final ByteBuffer allocated;
+        private final boolean direct;
+        private boolean closed;
+
+        ChannelOutputStream(FileChannel channel, int bufferSize, boolean direct) {
+            ByteBuffer[] b = allocate(roundedSize(bufferSize), direct);
+            this.channel = channel;
+            this.buffer = b[0];
+            this.allocated = b[1];
+            this.direct = direct;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!buffer.hasRemaining()) {
+                    drain();
+                }
+                int n = Math.min(len, buffer.remaining());
+                buffer.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * Writes the buffered bytes. In direct mode, only whole blocks can be
+         * written, so the last partial block is kept until the stream is
+         * closed.
+         */
+        @Override
+        public void flush() throws IOException {
+            if (!direct) {
+                drain();
+            }
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (direct && buffer.position() % ALIGNMENT != 0) {
+                    // the last block is padded, then the file is truncated
+                    long length = channel.position() + buffer.position();
+                    while (buffer.position() % ALIGNMENT != 0) {
+                        buffer.put((byte) 0);
+                    }
+                    drain();
+                    channel.truncate(length);
+                } else {
+                    drain();
+                }
+            } finally {
+                channel.close();
+                if (allocated != null) {
+                    OffHeapRunBuffer.free(allocated);
+                }
+            }
+        }
+    }
+
+    private static final class ChannelInputStream extends InputStream {
+        private final FileChannel channel;
+        private final long size;
+        private final ByteBuffer buffer;
+        private final ByteBuffer allocated;
+        private boolean eof;
+        private boolean closed;
+
+        ChannelInputStream(FileChannel channel, int bufferSize, boolean direct)
+            throws IOException {
+            ByteBuffer[] b = allocate(roundedSize(bufferSize), direct);
+            this.channel = channel;
+            this.size = channel.size();
+            this.buffer = b[0];
+            this.allocated = b[1];
+            buffer.flip();
+        }
+
+        /**
+         * Refills the buffer. The buffer is filled completely unless the end
+         * of the file is reached, which keeps the transfers aligned in direct
+         * mode; no read is attempted past the end of the file, whose length
+         * is usually not aligned.
+         */
+        private boolean fill() throws IOException {
+            if (eof) {
+                return false;
+            }
+            buffer.clear();
+            while (buffer.hasRemaining()) {
+                if (channel.position() >= size || channel.read(buffer) < 0) {
+                    eof = true;
+                    break;
+                }
+            }
+            buffer.flip();
+            return buffer.hasRemaining();
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!buffer.hasRemaining() && !fill()) {
+                return -1;
+            }
+            return buffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining() && !fill()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        void skipFully(long n) throws IOException {
+            while (n > 0) {
+                if (!buffer.hasRemaining() && !fill()) {
+                    throw new EOFException();
+                }
+                int k = (int) Math.min(n, buffer.remaining());
+                buffer.position(buffer.position() + k);
+                n -= k;
+            }
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                channel.close();
+            } finally {
+                if (allocated != null) {
+                    OffHeapRunBuffer.free(allocated);
+                }
+            }
+        }
+    }
+}
@@ -1,24 +1,31 @@
 package com.google.code.externalsorting;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.util.stream.Collectors;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.Comparator;
 import java.util.List;
-import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
 import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
@@ -58,6 +65,7 @@ public class ExternalSort {
          */
         private static void displayUsage() {
                 System.out.println("java com.google.externalsorting.ExternalSort inputfile outputfile");
+                System.out.println("java com.google.externalsorting.ExternalSort -m inputfile... outputfile");
                 System.out.println("Flags are:");
                 System.out.println("-v or --verbose: verbose output");
                 System.out.println("-d or --distinct: prune duplicate lines");
@@ -65,20 +73,31 @@ public class ExternalSort {
                 System.out.println("-c or --charset (followed by a charset code): specify the character set to use (for sorting)");
                 System.out.println("-z or --gzip: use compression for the temporary files");
                 System.out.println("-H or --header (followed by an integer): ignore the first few lines");
-                System.out.println("-s or --store (following by a path): where to store the temporary files");
+                System.out.println("-s or --store (following by a path): where to store the temporary files, several directories are separated by '" + File.pathSeparator + "'");
+                System.out.println("--checkpoint (followed by a path): where to store the runs and the progress of the sort, to resume it if it is interrupted");
+                System.out.println("--direct: write and read the temporary files without going through the page cache, when supported");
+                System.out.println("-m or --merge: merge sorted input files (or the files of input directories), possibly gzip-compressed, and keep them");
+                System.out.println("--fanin (followed by an integer): maximal number of files merged at once, in merge mode");
+                System.out.println("--threads (followed by an integer): maximal number of files merged at once in parallel, in merge mode");
+                System.out.println("--virtual-threads: merge in parallel on virtual threads, when supported (Java 21 or better)");
+                System.out.println("-k or --key (followed by a key definition F[.C][,F[.C]][OPTS], as in GNU sort): sort on the given fields, several keys are compared in order");
+                System.out.println("--field-separator (followed by a character): separator of the fields, instead of runs of blanks");
+                System.out.println("-n or --numeric-sort: compare the keys as decimal numbers");
+                System.out.println("-g or --general-numeric-sort: compare the keys as floating-point numbers");
+                System.out.println("--human-numeric-sort: compare the keys as sizes such as 2K or 1G");
+                System.out.println("-r or --reverse: reverse the order");
+                System.out.println("-f or --ignore-case: fold lower case to upper case");
+                System.out.println("--stable: keep the lines with equal keys in their input order");
                 System.out.println("-h or --help: display this message");
         }
 
         /**
-         * Cette méthode appelle le garbage collector et retourne la mémoire libre.
+         * Retourne la mémoire disponible dans le {@link MemoryBudget} partagé,
+         * sans jamais appeler le garbage collector.
          * @return mémoire disponible en octets
          */
         public static long estimateAvailableMemory() {
-                System.gc();
-                Runtime r = Runtime.getRuntime();
-                long allocatedMemory = r.totalMemory() - r.freeMemory();
-                long presFreeMemory = r.maxMemory() - allocatedMemory;
-                return presFreeMemory;
+                return MemoryBudget.getDefault().available();
         }
 
         /**
@@ -107,8 +126,18 @@ public class ExternalSort {
         int maxtmpfiles = DEFAULTMAXTEMPFILES;
         Charset cs = Charset.defaultCharset();
         String inputfile = null, outputfile = null;
-        File tempFileStore = null;
+        List<File> tempFileStore = null;
+        File checkpointDirectory = null;
         boolean usegzip = false;
+        boolean directIO = false;
+        boolean merge = false;
+        int fanIn = ExternalSortOptions.DEFAULT_MAX_FAN_IN;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean virtualThreads = false;
+        List<String> mergedfiles = new ArrayList<>();
+        KeyComparator.Builder keys = new KeyComparator.Builder();
+        boolean keyed = false;
+        boolean stable = false;
         boolean parallel = true;
         int headersize = 0;
         for (int param = 0; param < args.length; ++param) {
@@ -145,7 +174,67 @@ public class ExternalSort {
                         } else if ((args[param].equals("-s") || args[param]
                                 .equals("--store")) && args.length > param + 1) {
                                 param++;
-                                tempFileStore = new File(args[param]);
+                                tempFileStore = TempFileStore.parse(args[param])
+                                        .getDirectories();
+                        } else if (args[param].equals("--checkpoint")
+                                && args.length > param + 1) {
+                                param++;
+                                checkpointDirectory = new File(args[param]);
+                        } else if (args[param].equals("--direct")) {
+                                directIO = true;
+                        } else if (args[param].equals("-m")
+                                || args[param].equals("--merge")) {
+                                merge = true;
+                        } else if (args[param].equals("--fanin")
+                                && args.length > param + 1) {
+                                param++;
+                                fanIn = Integer.parseInt(args[param]);
+                        } else if (args[param].equals("--threads")
+                                && args.length > param + 1) {
+                                param++;
+                                threads = Integer.parseInt(args[param]);
+                        } else if (args[param].equals("--virtual-threads")) {
+                                virtualThreads = true;
+                        } else if ((args[param].equals("-k") || args[param]
+                                .equals("--key")) && args.length > param + 1) {
+                                param++;
+                                keys.key(args[param]);
+                                keyed = true;
+                        } else if (args[param].equals("--field-separator")
+                                && args.length > param + 1) {
+                                param++;
+                                String sep = args[param].equals("\\t") ? "\t"
+                                        : args[param];
+                                if (sep.length() != 1) {
+                                        System.err.println("the field separator should be a single character");
+                                        return;
+                                }
+                                keys.delimiter(sep.charAt(0));
+                                keyed = true;
+                        } else if (args[param].equals("-n")
+                                || args[param].equals("--numeric-sort")) {
+                                keys.type(KeyComparator.Type.NUMERIC);
+                                keyed = true;
+                        } else if (args[param].equals("-g") || args[param]
+                                .equals("--general-numeric-sort")) {
+                                keys.type(KeyComparator.Type.GENERAL_NUMERIC);
+                                keyed = true;
+                        } else if (args[param].equals("--human-numeric-sort")) {
+                                keys.type(KeyComparator.Type.HUMAN_NUMERIC);
+                                keyed = true;
+                        } else if (args[param].equals("-r")
+                                || args[param].equals("--reverse")) {
+                                keys.reverse(true);
+                                keyed = true;
+                        } else if (args[param].equals("-f")
+                                || args[param].equals("--ignore-case")) {
+                                keys.ignoreCase(true);
+                                keyed = true;
+                        } else if (args[param].equals("--stable")) {
+                                stable = true;
+                                keyed = true;
+                        } else if (merge) {
+                                mergedfiles.add(args[param]);
                         } else {
                                 if (inputfile == null) {
                                         inputfile = args[param];
@@ -157,22 +246,108 @@ public class ExternalSort {
                                 }
                         }
                 }
-                if (outputfile == null) {
+                if (merge && mergedfiles.size() >= 2) {
+                        // the inputs given before -m are merged as well
+                        if (outputfile != null) {
+                                mergedfiles.add(0, outputfile);
+                        }
+                        if (inputfile != null) {
+                                mergedfiles.add(0, inputfile);
+                        }
+                        outputfile = mergedfiles.remove(mergedfiles.size() - 1);
+                }
+                if (outputfile == null || (merge && mergedfiles.isEmpty())) {
                         System.out
                                 .println("please provide input and output file names");
                         displayUsage();
                         return;
                 }
-                Comparator<String> comparator = defaultcomparator;
-                List<File> l = sortInBatch(new File(inputfile), comparator,
-                        maxtmpfiles, cs, tempFileStore, distinct, headersize,
-                        usegzip, parallel);
+                ExternalSortOptions.Builder builder = new ExternalSortOptions.Builder()
+                        .maxTmpFiles(maxtmpfiles).charset(cs)
+                        .tmpDirectories(tempFileStore).distinct(distinct)
+                        .numHeader(headersize).usegzip(usegzip)
+                        .directIO(directIO).parallel(parallel)
+                        .maxConcurrency(threads).virtualThreads(virtualThreads);
+                if (keyed) {
+                        // as with sort -u, lines with equal keys are duplicates
+                        builder.comparator(keys.stable(stable || distinct).build());
+                }
                 if (verbose) {
-                        System.out
-                                .println("created " + l.size() + " tmp files");
+                        builder.listener(new VerboseListener());
+                }
+                // the runs belong to the handle, which deletes them if the sort
+                // fails or if the JVM is stopped before the end of the sort
+                final SortHandle handle = new SortHandle();
+                builder.handle(handle);
+                Thread cleanup = new Thread(handle::close);
+                Runtime.getRuntime().addShutdownHook(cleanup);
+                try {
+                        if (merge) {
+                                List<File> inputs = new ArrayList<>();
+                                for (String name : mergedfiles) {
+                                        File f = new File(name);
+                                        File[] shards = f.listFiles(File::isFile);
+                                        if (shards == null) {
+                                                inputs.add(f);
+                                        } else {
+                                                Arrays.sort(shards);
+                                                inputs.addAll(Arrays.asList(shards));
+                                        }
+                                }
+                                long lines = mergeFiles(inputs, new File(outputfile),
+                                        builder.maxFanIn(fanIn).build());
+                                if (verbose) {
+                                        System.out.println("merged " + inputs.size()
+                                                + " files, " + lines + " lines");
+                                }
+                                return;
+                        }
+                        if (checkpointDirectory != null) {
+                                SortCheckpoint checkpoint = SortCheckpoint.open(
+                                        checkpointDirectory, new File(inputfile),
+                                        builder.build());
+                                if (verbose) {
+                                        System.out.println("resuming from " + checkpoint);
+                                }
+                                builder.checkpoint(checkpoint);
+                        }
+                        ExternalSortOptions options = builder.build();
+                        List<File> l = sortInBatch(new File(inputfile), options);
+                        if (verbose) {
+                                System.out
+                                        .println("created " + l.size() + " tmp files");
+                        }
+                        mergeSortedFiles(l, new File(outputfile), options, false);
+                } finally {
+                        handle.close();
+                        try {
+                                Runtime.getRuntime().removeShutdownHook(cleanup);
+                        } catch (IllegalStateException e) {
+                                // the JVM is stopping
+                        }
+                }
+        }
+
+        /**
+         * Prints the progress of the sort for the -v flag, at most once per
+         * second.
+         */
+        private static final class VerboseListener implements SortListener {
+                private long lastReport = 0;
+
+                @Override
+                public void phaseFinished(SortPhase phase, SortMetrics metrics) {
+                        System.out.println(phase + " done: " + metrics);
+                }
+
+                @Override
+                public synchronized void progress(SortMetrics metrics) {
+                        long now = System.nanoTime();
+                        if (now - lastReport >= 1000000000L) {
+                                lastReport = now;
+                                System.out.println(metrics);
+                        }
                 }
-                mergeSortedFiles(l, new File(outputfile), comparator, cs,
-                        distinct, false, usegzip);
         }
 
         /**
@@ -192,73 +367,78 @@ public class ExternalSort {
         public static long mergeSortedFiles(BufferedWriter fbw,
                 final Comparator<String> cmp, boolean distinct,
                 List<IOStringStack> buffers) throws IOException {
-                PriorityQueue<IOStringStack> pq = new PriorityQueue<>(
-                        11, new Comparator<IOStringStack>() {
-                                @Override
-                                public int compare(IOStringStack i,
-                                IOStringStack j) {
-                                        return cmp.compare(i.peek(), j.peek());
-                                }
-                        });
-                for (IOStringStack bfb : buffers) {
-                        if (!bfb.empty()) {
-                                pq.add(bfb);
-                        }
-                }
+                return merge(fbw, cmp, distinct, false, buffers, null,
+                        SortListener.NONE, null);
+        }
+
+        /**
+         * This merges several BinaryFileBuffer to an output writer, keeping
+         * the lines comparing equal in the order of the buffers if required.
+         *
+         * @param fbw     A buffer where we write the data.
+         * @param cmp     A comparator object that tells us how to sort the
+         *                lines.
+         * @param distinct Pass <code>true</code> if duplicate lines should be
+         *                discarded.
+         * @param stable  Pass <code>true</code> if equal lines should come out
+         *                in the order of the buffers, then in their order
+         *                within each buffer.
+         * @param buffers
+         *                Where the data should be read.
+         * @return The number of lines sorted.
+         * @throws IOException generic IO exception
+         */
+        public static long mergeSortedFiles(BufferedWriter fbw,
+                final Comparator<String> cmp, boolean distinct, boolean stable,
+                List<IOStringStack> buffers) throws IOException {
+                return merge(fbw, cmp, distinct, stable, buffers, null,
+                        SortListener.NONE, null);
+        }
+
+        private static long merge(BufferedWriter fbw,
+                final Comparator<String> cmp, boolean distinct, boolean stable,
+                List<IOStringStack> buffers, SortMetrics metrics,
+                SortListener listener, SortHandle handle) throws IOException {
+                LoserTree<String> tree = new LoserTree<>(buffers, cmp, stable);
                 long numLinesWritten = 0;
+                long numLinesRead = 0;
                 try {
-                        if (!distinct) {
-                            while (pq.size() > 0) {
-                                    IOStringStack bfb = pq.poll();
-                                    String r = bfb.pop();
-                                    fbw.write(r);
-                                    fbw.newLine();
-                                    ++numLinesWritten;
-                                    if (bfb.empty()) {
-                                            bfb.close();
-                                    } else {
-                                            pq.add(bfb); // add it back
-                                    }
-                            }
-                        } else {
-                            String lastLine = null;
-                            if(pq.size() > 0) {
-                           IOStringStack bfb = pq.poll();
-                           lastLine = bfb.pop();
-                           fbw.write(lastLine);
-                           fbw.newLine();
-                           ++numLinesWritten;
-                           if (bfb.empty()) {
-                             bfb.close();
-                           } else {
-                             pq.add(bfb); // add it back
-                           }
-                         }
-                            while (pq.size() > 0) {
-                        IOStringStack bfb = pq.poll();
-                          String r = bfb.pop();
-                          // Skip duplicate lines
-                          if  (cmp.compare(r, lastLine) != 0) {
-                            fbw.write(r);
-                            fbw.newLine();
-                            lastLine = r;
-                            ++numLinesWritten;
-                          }
-                          if (bfb.empty()) {
-                            bfb.close();
-                          } else {
-                            pq.add(bfb); // add it back
-                          }
-                            }
+                        while (!tree.isEmpty()) {
+                                checkCancelled(handle, ++numLinesRead);
+                                String r = tree.pop();
+                                // Skip duplicate lines: a line equal to the
+                                // one before is equal to the last one written
+                                if (distinct && tree.isDuplicate()) {
+                                        continue;
+                                }
+                                fbw.write(r);
+                                fbw.newLine();
+                                ++numLinesWritten;
+                                reportWritten(numLinesWritten, metrics, listener);
                         }
                 } finally {
-                        fbw.close();
-                        for (IOStringStack bfb : pq) {
-                                bfb.close();
+                        if (metrics != null) {
+                                metrics.addLinesWritten(numLinesWritten % PROGRESS_INTERVAL);
                         }
+                        fbw.close();
+                        tree.close();
                 }
                 return numLinesWritten;
+        }
 
+        private static void reportWritten(long numLinesWritten,
+                SortMetrics metrics, SortListener listener) {
+                if (metrics != null && numLinesWritten % PROGRESS_INTERVAL == 0) {
+                        metrics.addLinesWritten(PROGRESS_INTERVAL);
+                        listener.progress(metrics);
+                }
+        }
+
+        private static void checkCancelled(SortHandle handle, long count)
+                throws SortCancelledException {
+                if (handle != null && (count & (SortHandle.CHECK_INTERVAL - 1)) == 0) {
+                        handle.checkCancelled();
+                }
         }
 
 
@@ -372,33 +552,512 @@ public class ExternalSort {
         public static long mergeSortedFiles(List<File> files, File outputfile,
                 final Comparator<String> cmp, Charset cs, boolean distinct,
                 boolean append, boolean usegzip) throws IOException {
+                return mergeSortedFiles(files, outputfile, new ExternalSortOptions.Builder()
+                        .comparator(cmp).charset(cs).distinct(distinct)
+                        .usegzip(usegzip).build(), append);
+        }
+
+        /**
+         * This merges a bunch of temporary flat files, which are deleted
+         * afterwards. If the merge fails, they are deleted with the handle of
+         * the options or, without a handle, right away, unless they are the
+         * runs of a checkpoint.
+         *
+         * @param files The {@link List} of sorted {@link File}s to be merged.
+         * @param outputfile The output {@link File} to merge the results to.
+         * @param options sorting options: the comparator, the charset, whether
+         *                duplicate lines are discarded and whether the files
+         *                are compressed
+         * @param append Pass <code>true</code> if result should append to
+         *                {@link File} instead of overwrite.
+         * @return The number of lines sorted.
+         * @throws IOException generic IO exception
+         */
+        public static long mergeSortedFiles(List<File> files, File outputfile,
+                ExternalSortOptions options, boolean append) throws IOException {
+                final SortMetrics metrics = options.getMetrics();
+                final SortListener listener = options.getListener();
+                Comparator<String> cmp = options.getComparator();
+                Charset cs = options.getCharset();
+                if (metrics != null) {
+                        cmp = metrics.countComparisons(cmp);
+                        metrics.phaseStarted(SortPhase.MERGE);
+                        listener.phaseStarted(SortPhase.MERGE, metrics);
+                }
+                // without a handle, the readers are closed and the files deleted
+                // on failure, as on success; the runs of a checkpoint are kept
+                // to resume the sort
+                final SortHandle handle = options.getHandle() != null
+                        ? options.getHandle() : new SortHandle();
                 ArrayList<IOStringStack> bfbs = new ArrayList<>();
+                List<BufferedReader> readers = new ArrayList<>();
+                long rowcounter;
+                final IOBufferPlanner plan = IOBufferPlanner.plan(options, files.size());
+                try {
+                        for (File f : files) {
+                                BufferedReader br = openRun(f, 0, plan, options.isUsegzip(),
+                                        options.isDirectIO(), cs);
+                                readers.add(handle.register(br));
+
+                                BinaryFileBuffer bfb = new BinaryFileBuffer(br);
+                                bfbs.add(bfb);
+                        }
+                        OutputStream out = DirectIO.newOutputStream(outputfile,
+                                append, plan.getWriteBufferSize(), false);
+                        if (metrics != null) {
+                                out = metrics.countBytesWritten(out);
+                        }
+                        BufferedWriter fbw = new BufferedWriter(new OutputStreamWriter(
+                                out, cs), plan.getCharBufferSize());
+                        rowcounter = merge(fbw, cmp, options.isDistinct(),
+                                options.isStable(), bfbs, metrics, listener, handle);
+                } catch (IOException | RuntimeException | Error e) {
+                        handle.close();
+                        deleteUnowned(files, options);
+                        throw e;
+                }
+                for (BufferedReader br : readers) {
+                        handle.unregister(br);
+                }
                 for (File f : files) {
-                        final int BUFFERSIZE = 2048;
-                        InputStream in = new FileInputStream(f);
-                        BufferedReader br;
-                        if (usegzip) {
-                                br = new BufferedReader(
-                                        new InputStreamReader(
-                                                new GZIPInputStream(in,
-                                                        BUFFERSIZE), cs));
-                        } else {
-                                br = new BufferedReader(new InputStreamReader(
-                                        in, cs));
+                        handle.deleteTempFile(f);
+                }
+                if (options.getCheckpoint() != null) {
+                        options.getCheckpoint().delete();
+                }
+                if (metrics != null) {
+                        metrics.mergePass();
+                        metrics.phaseFinished(SortPhase.MERGE);
+                        listener.phaseFinished(SortPhase.MERGE, metrics);
+                }
+                return rowcounter;
+        }
+
+        /**
+         * Deletes the runs of a failed merge when no handle owns them, unless
+         * they belong to a checkpoint.
+         */
+        private static void deleteUnowned(List<File> runs,
+                ExternalSortOptions options) {
+                if (options.getHandle() == null && options.getCheckpoint() == null) {
+                        for (File f : runs) {
+                                f.delete();
                         }
+                }
+        }
 
-                        BinaryFileBuffer bfb = new BinaryFileBuffer(br);
-                        bfbs.add(bfb);
+        /**
+         * This merges sorted runs into several output files, each of them
+         * sorted, covering disjoint and ascending ranges of lines. The
+         * partitions are merged in parallel, by up to one thread per
+         * processor; each one reads the lines of its range from every run,
+         * starting near its lower bound when the run has an index. The runs
+         * are deleted once merged.
+         *
+         * @param runs the sorted runs
+         * @param outputfiles the output files, one per partition
+         * @param splitters at most <code>outputfiles.size() - 1</code>
+         *                splitters in ascending order, or null to estimate
+         *                them with {@link SortedRuns#estimateSplitters};
+         *                partition <code>i</code> gets the lines not less than
+         *                splitter <code>i - 1</code> and less than splitter
+         *                <code>i</code>, the partitions without splitter are
+         *                empty
+         * @param options sorting options
+         * @return the number of lines written to each output file
+         * @throws IOException generic IO exception
+         */
+        public static long[] mergeSortedFiles(final SortedRuns runs,
+                final List<File> outputfiles, List<String> splitters,
+                final ExternalSortOptions options) throws IOException {
+                final int partitions = outputfiles.size();
+                if (partitions == 0) {
+                        throw new IllegalArgumentException("no output file");
                 }
-                BufferedWriter fbw = new BufferedWriter(new OutputStreamWriter(
-                        new FileOutputStream(outputfile, append), cs));
-                long rowcounter = mergeSortedFiles(fbw, cmp, distinct, bfbs);
-                for (File f : files) {
-                        f.delete();
+                if (splitters == null) {
+                        splitters = runs.estimateSplitters(partitions);
+                }
+                if (splitters.size() >= partitions) {
+                        throw new IllegalArgumentException("too many splitters: "
+                                + splitters.size() + " for " + partitions
+                                + " partitions");
+                }
+                final List<String> bounds = splitters;
+                final SortMetrics metrics = options.getMetrics();
+                final SortListener listener = options.getListener();
+                final Comparator<String> cmp = metrics != null
+                        ? metrics.countComparisons(options.getComparator())
+                        : options.getComparator();
+                if (metrics != null) {
+                        metrics.phaseStarted(SortPhase.MERGE);
+                        listener.phaseStarted(SortPhase.MERGE, metrics);
+                }
+                final SortHandle handle = options.getHandle() != null
+                        ? options.getHandle() : new SortHandle();
+                int threads = Math.min(partitions, options.getMaxConcurrency());
+                // the partitions merged at once share the buffer budget
+                long budget = options.getIoMemory() > 0 ? options.getIoMemory()
+                        : IOBufferPlanner.defaultBudget();
+                final IOBufferPlanner plan = IOBufferPlanner.plan(budget / threads,
+                        runs.getFiles().size(), options.getIoBufferSize());
+                SortExecutor executor = newMergeExecutor(options, threads);
+                long[] counts = new long[partitions];
+                try {
+                        List<Future<Long>> merges = new ArrayList<>(partitions);
+                        for (int i = 0; i < partitions; i++) {
+                                final File outputfile = outputfiles.get(i);
+                                final String lower = i == 0 ? null : bounds.get(
+                                        Math.min(i, bounds.size()) - 1);
+                                final String upper = i < bounds.size()
+                                        ? bounds.get(i) : null;
+                                final boolean empty = i > bounds.size();
+                                merges.add(executor.submit(() -> mergePartition(
+                                        runs, outputfile, lower, upper, empty,
+                                        plan, cmp, options, handle)));
+                        }
+                        for (int i = 0; i < partitions; i++) {
+                                counts[i] = await(merges.get(i));
+                        }
+                } catch (IOException | RuntimeException | Error e) {
+                        handle.close();
+                        deleteUnowned(runs.getFiles(), options);
+                        throw e;
+                } finally {
+                        executor.close();
+                }
+                for (File f : runs.getFiles()) {
+                        handle.deleteTempFile(f);
+                }
+                if (options.getCheckpoint() != null) {
+                        options.getCheckpoint().delete();
+                }
+                if (metrics != null) {
+                        metrics.mergePass();
+                        metrics.phaseFinished(SortPhase.MERGE);
+                        listener.phaseFinished(SortPhase.MERGE, metrics);
+                }
+                return counts;
+        }
+
+        /**
+         * Merges the lines of the runs in [lower, upper) to a file.
+         */
+        private static long mergePartition(SortedRuns runs, File outputfile,
+                String lower, String upper, boolean empty, IOBufferPlanner plan,
+                Comparator<String> cmp, ExternalSortOptions options,
+                SortHandle handle) throws IOException {
+                Charset cs = options.getCharset();
+                List<IOStringStack> bfbs = new ArrayList<>();
+                List<BufferedReader> readers = new ArrayList<>();
+                try {
+                        if (!empty) {
+                                for (File f : runs.getFiles()) {
+                                        RunIndex index = runs.getIndex(f);
+                                        long offset = index == null ? 0
+                                                : index.startOffset(lower, cmp);
+                                        BufferedReader br = handle.register(openRun(
+                                                f, offset, plan, options.isUsegzip(),
+                                                options.isDirectIO(), cs));
+                                        readers.add(br);
+                                        bfbs.add(new RangeFileBuffer(br, lower,
+                                                upper, cmp));
+                                }
+                        }
+                        OutputStream out = DirectIO.newOutputStream(outputfile,
+                                plan.getWriteBufferSize(), false);
+                        if (options.getMetrics() != null) {
+                                out = options.getMetrics().countBytesWritten(out);
+                        }
+                        BufferedWriter fbw = new BufferedWriter(new OutputStreamWriter(
+                                out, cs), plan.getCharBufferSize());
+                        return merge(fbw, cmp, options.isDistinct(),
+                                options.isStable(), bfbs, options.getMetrics(),
+                                options.getListener(), handle);
+                } finally {
+                        // the runs without line in the range are not closed by the merge
+                        for (BufferedReader br : readers) {
+                                handle.unregister(br);
+                                br.close();
+                        }
+                }
+        }
+
+        private static long await(Future<Long> merge) throws IOException {
+                try {
+                        return merge.get();
+                } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SortCancelledException("sort interrupted");
+                } catch (ExecutionException e) {
+                        if (e.getCause() instanceof IOException) {
+                                throw (IOException) e.getCause();
+                        }
+                        if (e.getCause() instanceof Error) {
+                                throw (Error) e.getCause();
+                        }
+                        throw new IOException(e.getCause());
+                }
+        }
+
+        /**
+         * Runs the merges of the sort on its executor, or on threads of its own.
+         */
+        private static SortExecutor newMergeExecutor(ExternalSortOptions options,
+                int threads) {
+                return new SortExecutor(options.getExecutor(),
+                        options.isVirtualThreads(), threads, "external-sort-merge");
+        }
+
+        /**
+         * The lines of a run within a range. With a {@link KeyComparator}, the
+         * keys of each line are extracted once, for the bounds and the merge.
+         */
+        private static final class RangeFileBuffer implements IOStringStack,
+                LoserTree.KeyedRun {
+                private final BufferedReader fbr;
+                private final String upper;
+                private final Comparator<String> cmp;
+                private final KeyComparator keys;
+                private final Comparator<KeyComparator.Keys> keyOrder;
+                private final KeyComparator.Keys upperKeys;
+                private String cache;
+                private KeyComparator.Keys cacheKeys;
+
+                RangeFileBuffer(BufferedReader fbr, String lower, String upper,
+                        Comparator<String> cmp) throws IOException {
+                        this.fbr = fbr;
+                        this.upper = upper;
+                        this.cmp = cmp;
+                        this.keys = KeyComparator.of(cmp);
+                        this.keyOrder = keys == null ? null
+                                : SortMetrics.countLike(cmp, keys::compareKeys);
+                        this.upperKeys = keys == null || upper == null ? null
+                                : keys.extract(upper);
+                        KeyComparator.Keys lowerKeys = keys == null || lower == null
+                                ? null : keys.extract(lower);
+                        do {
+                                read();
+                        } while (cache != null && lower != null
+                                && compareTo(lower, lowerKeys) < 0);
+                        checkUpper();
+                }
+
+                private void read() throws IOException {
+                        cache = fbr.readLine();
+                        cacheKeys = keys == null || cache == null ? null
+                                : keys.extract(cache);
+                }
+
+                private int compareTo(String bound, KeyComparator.Keys boundKeys) {
+                        return keys == null ? cmp.compare(cache, bound)
+                                : keyOrder.compare(cacheKeys, boundKeys);
+                }
+
+                private void checkUpper() {
+                        if (cache != null && upper != null
+                                && compareTo(upper, upperKeys) >= 0) {
+                                cache = null;
+                                cacheKeys = null;
+                        }
+                }
+
+                @Override
+                public KeyComparator.Keys peekKeys() {
+                        return cacheKeys;
+                }
+
+                @Override
+                public void close() throws IOException {
+                        fbr.close();
+                }
+
+                @Override
+                public boolean empty() {
+                        return cache == null;
+                }
+
+                @Override
+                public String peek() {
+                        return cache;
+                }
+
+                @Override
+                public String pop() throws IOException {
+                        String answer = cache;
+                        read();
+                        checkUpper();
+                        return answer;
+                }
+        }
+
+        /**
+         * This merges files that are already sorted, such as the shards of a
+         * previous sort, into an output file. Unlike
+         * {@link #mergeSortedFiles(List, File, ExternalSortOptions, boolean)},
+         * the inputs are kept, and inputs compressed with gzip are detected
+         * and decompressed. When there are more inputs than
+         * {@link ExternalSortOptions#getMaxFanIn()}, groups of inputs are first
+         * merged into temporary files, in parallel and in as many passes as
+         * needed, so that the number of files open at once stays bounded.
+         *
+         * @param inputs the sorted files
+         * @param outputfile the output file
+         * @param options sorting options, whose comparator is the order of the
+         *                inputs; the temporary files follow the options
+         * @return the number of lines written
+         * @throws IOException generic IO exception
+         */
+        public static long mergeFiles(List<File> inputs, File outputfile,
+                final ExternalSortOptions options) throws IOException {
+                final SortMetrics metrics = options.getMetrics();
+                final SortListener listener = options.getListener();
+                final Comparator<String> cmp = metrics != null
+                        ? metrics.countComparisons(options.getComparator())
+                        : options.getComparator();
+                if (metrics != null) {
+                        metrics.phaseStarted(SortPhase.MERGE);
+                        listener.phaseStarted(SortPhase.MERGE, metrics);
+                }
+                final SortHandle handle = options.getHandle() != null
+                        ? options.getHandle() : new SortHandle();
+                final int fanIn = options.getMaxFanIn();
+                long budget = options.getIoMemory() > 0 ? options.getIoMemory()
+                        : IOBufferPlanner.defaultBudget();
+                SortExecutor executor = null;
+                long rowcounter;
+                try {
+                        List<File> level = inputs;
+                        boolean intermediate = false;
+                        while (level.size() > fanIn) {
+                                int groups = (level.size() + fanIn - 1) / fanIn;
+                                int threads = Math.min(groups,
+                                        options.getMaxConcurrency());
+                                if (executor == null) {
+                                        executor = newMergeExecutor(options, threads);
+                                }
+                                // the groups merged at once share the buffer budget
+                                final IOBufferPlanner plan = IOBufferPlanner.plan(
+                                        budget / threads, fanIn, options.getIoBufferSize());
+                                List<File> next = new ArrayList<>(groups);
+                                List<Future<Long>> merges = new ArrayList<>(groups);
+                                for (int g = 0; g < groups; g++) {
+                                        final List<File> group = level.subList(g * fanIn,
+                                                Math.min(level.size(), (g + 1) * fanIn));
+                                        final File merged = options.getTmpFileStore()
+                                                .createTempFile("mergeFiles", "flatfile", handle);
+                                        next.add(merged);
+                                        merges.add(executor.submit(() -> mergeGroup(group,
+                                                merged, true, plan, cmp, options, handle)));
+                                }
+                                for (int g = 0; g < groups; g++) {
+                                        await(merges.get(g));
+                                        options.getTmpFileStore().release(next.get(g));
+                                }
+                                if (intermediate) {
+                                        for (File f : level) {
+                                                handle.deleteTempFile(f);
+                                        }
+                                }
+                                if (metrics != null) {
+                                        metrics.mergePass();
+                                }
+                                level = next;
+                                intermediate = true;
+                        }
+                        rowcounter = mergeGroup(level, outputfile, false,
+                                IOBufferPlanner.plan(budget, level.size(),
+                                        options.getIoBufferSize()),
+                                cmp, options, handle);
+                        if (intermediate) {
+                                for (File f : level) {
+                                        handle.deleteTempFile(f);
+                                }
+                        }
+                } catch (IOException | RuntimeException | Error e) {
+                        handle.close();
+                        throw e;
+                } finally {
+                        if (executor != null) {
+                                executor.close();
+                        }
+                }
+                if (metrics != null) {
+                        metrics.mergePass();
+                        metrics.phaseFinished(SortPhase.MERGE);
+                        listener.phaseFinished(SortPhase.MERGE, metrics);
                 }
                 return rowcounter;
         }
 
+        /**
+         * Merges sorted files, which may be compressed with gzip, and keeps
+         * them. The progress is reported for the final output only.
+         */
+        private static long mergeGroup(List<File> files, File outputfile,
+                boolean intermediate, IOBufferPlanner plan, Comparator<String> cmp,
+                ExternalSortOptions options, SortHandle handle) throws IOException {
+                Charset cs = options.getCharset();
+                SortMetrics metrics = options.getMetrics();
+                List<IOStringStack> bfbs = new ArrayList<>();
+                List<BufferedReader> readers = new ArrayList<>();
+                try {
+                        for (File f : files) {
+                                InputStream in = Compression.detect(DirectIO.newInputStream(
+                                        f, plan.getReadBufferSize(), options.isDirectIO()),
+                                        plan.getStreamBufferSize());
+                                BufferedReader br = handle.register(new BufferedReader(
+                                        new InputStreamReader(in, cs), plan.getCharBufferSize()));
+                                readers.add(br);
+                                bfbs.add(new BinaryFileBuffer(br));
+                        }
+                        OutputStream out = DirectIO.newOutputStream(outputfile,
+                                plan.getWriteBufferSize(),
+                                intermediate && options.isDirectIO());
+                        if (intermediate && options.isUsegzip()) {
+                                out = new GZIPOutputStream(out, plan.getStreamBufferSize()) {
+                                        {
+                                                this.def.setLevel(Deflater.BEST_SPEED);
+                                        }
+                                };
+                        }
+                        if (metrics != null) {
+                                out = intermediate ? metrics.countRunBytes(out)
+                                        : metrics.countBytesWritten(out);
+                        }
+                        BufferedWriter fbw = new BufferedWriter(new OutputStreamWriter(
+                                out, cs), plan.getCharBufferSize());
+                        return merge(fbw, cmp, options.isDistinct(),
+                                options.isStable(), bfbs,
+                                intermediate ? null : metrics,
+                                options.getListener(), handle);
+                } finally {
+                        // the empty inputs are not closed by the merge
+                        for (BufferedReader br : readers) {
+                                handle.unregister(br);
+                                br.close();
+                        }
+                }
+        }
+
+        /**
+         * This sorts a file into several output files, each of them sorted,
+         * covering disjoint and ascending ranges of lines of about the same
+         * size. The splitters are estimated from the indexes of the runs, and
+         * the partitions are merged in parallel.
+         *
+         * @param input source file
+         * @param outputfiles the output files, one per partition
+         * @param options sorting options
+         * @return the number of lines written to each output file
+         * @throws IOException generic IO exception
+         */
+        public static long[] sortPartitioned(final File input,
+                final List<File> outputfiles, final ExternalSortOptions options)
+                throws IOException {
+                return mergeSortedFiles(sortIntoRuns(input, options), outputfiles,
+                        null, options);
+        }
+
         /**
          * This merges a bunch of temporary flat files
          *
@@ -419,22 +1078,13 @@ public class ExternalSort {
                 final Comparator<String> cmp, Charset cs, boolean distinct,
                 boolean usegzip) throws IOException {
                 ArrayList<IOStringStack> bfbs = new ArrayList<>();
+                IOBufferPlanner plan = IOBufferPlanner.plan(0, files.size(),
+                        DirectIO.DEFAULT_BUFFER_SIZE);
                 for (File f : files) {
-                        final int BUFFERSIZE = 2048;
                         if (f.length() == 0) {
                                 continue;
                         }
-                        InputStream in = new FileInputStream(f);
-                        BufferedReader br;
-                        if (usegzip) {
-                                br = new BufferedReader(
-                                        new InputStreamReader(
-                                                new GZIPInputStream(in,
-                                                        BUFFERSIZE), cs));
-                        } else {
-                                br = new BufferedReader(new InputStreamReader(
-                                        in, cs));
-                        }
+                        BufferedReader br = openRun(f, 0, plan, usegzip, false, cs);
 
                         BinaryFileBuffer bfb = new BinaryFileBuffer(br);
                         bfbs.add(bfb);
@@ -461,6 +1111,21 @@ public class ExternalSort {
                         output);
         }
 
+        /**
+         * This sorts a file (input) to an output file (output).
+         *
+         * @param input source file
+         * @param output output file
+         * @param options sorting options
+         * @return The number of lines sorted.
+         * @throws IOException generic IO exception
+         */
+        public static long sort(final File input, final File output,
+                final ExternalSortOptions options) throws IOException {
+                return mergeSortedFiles(sortInBatch(input, options), output,
+                        options, false);
+        }
+
         /**
          * This sorts a file (input) to an output file (output) using customized comparator
          *
@@ -516,50 +1181,155 @@ public class ExternalSort {
         public static File sortAndSave(List<String> tmplist,
                 Comparator<String> cmp, Charset cs, File tmpdirectory,
                 boolean distinct, boolean usegzip, boolean parallel) throws IOException {
-                if (parallel) {
-                  tmplist = tmplist.parallelStream().sorted(cmp).collect(Collectors.toCollection(ArrayList<String>::new));
-                } else {
-                  Collections.sort(tmplist, cmp);
+                return sortAndSave(tmplist, new ExternalSortOptions.Builder()
+                        .comparator(cmp).charset(cs).tmpDirectory(tmpdirectory)
+                        .distinct(distinct).usegzip(usegzip).parallel(parallel)
+                        .build());
+        }
+
+        /**
+         * Sort a list and save it to a temporary file
+         *
+         * @return the file containing the sorted data
+         * @param tmplist data to be sorted
+         * @param options sorting options
+         * @throws IOException generic IO exception
+         */
+        public static File sortAndSave(List<String> tmplist,
+                ExternalSortOptions options) throws IOException {
+                Comparator<String> cmp = options.getComparator();
+                if (options.getMetrics() != null) {
+                        cmp = options.getMetrics().countComparisons(cmp);
                 }
-                File newtmpfile = File.createTempFile("sortInBatch",
-                        "flatfile", tmpdirectory);
-                newtmpfile.deleteOnExit();
-                OutputStream out = new FileOutputStream(newtmpfile);
-                int ZIPBUFFERSIZE = 2048;
+                SortHandle handle = options.getHandle();
+                File newtmpfile = options.getTmpFileStore().createTempFile(
+                        "sortInBatch", "flatfile", handle);
+                sortAndSave(tmplist, cmp, options, handle, newtmpfile, null);
+                return newtmpfile;
+        }
+
+        /**
+         * Sorts the list and writes it to the file, which is deleted on
+         * failure, and returns the index of the run.
+         */
+        private static RunIndex sortAndSave(List<String> tmplist,
+                Comparator<String> cmp, ExternalSortOptions options,
+                SortHandle handle, File newtmpfile, Checksum checksum)
+                throws IOException {
+                try {
+                        if (handle != null) {
+                                handle.checkCancelled();
+                        }
+                        final List<String> lines = tmplist;
+                        if (options.getComparator() instanceof KeyComparator) {
+                          // the keys are extracted once rather than on every comparison
+                          SortExecutor.invoke(options.isParallel() ? options.getForkJoinPool() : null, () -> {
+                            ((KeyComparator) options.getComparator()).sort(lines,
+                                    options.isParallel(), options.getMetrics());
+                            return lines;
+                          });
+                        } else if (options.isParallel()) {
+                          tmplist = SortExecutor.invoke(options.getForkJoinPool(), () ->
+                                  lines.parallelStream().sorted(cmp).collect(Collectors.toCollection(ArrayList<String>::new)));
+                        } else {
+                          Collections.sort(tmplist, cmp);
+                        }
+                        return writeRun(tmplist, cmp, options, newtmpfile, checksum);
+                } catch (IOException | RuntimeException | Error e) {
+                        newtmpfile.delete();
+                        throw e;
+                } finally {
+                        options.getTmpFileStore().release(newtmpfile);
+                }
+        }
+
+        private static BufferedReader openRun(File f, long offset,
+                IOBufferPlanner plan, boolean usegzip, boolean direct, Charset cs)
+                throws IOException {
+                InputStream in = DirectIO.newInputStream(f, offset,
+                        plan.getReadBufferSize(), direct);
                 if (usegzip) {
-                        out = new GZIPOutputStream(out, ZIPBUFFERSIZE) {
-                                {
-                                        this.def.setLevel(Deflater.BEST_SPEED);
-                                }
-                        };
+                        in = new GZIPInputStream(in, plan.getStreamBufferSize());
+                }
+                return new BufferedReader(new InputStreamReader(in, cs),
+                        plan.getCharBufferSize());
+        }
+
+        private static RunIndex writeRun(List<String> tmplist,
+                Comparator<String> cmp, ExternalSortOptions options,
+                File newtmpfile, Checksum checksum) throws IOException {
+                Charset cs = options.getCharset();
+                boolean distinct = options.isDistinct();
+                IOBufferPlanner plan = IOBufferPlanner.plan(options, 0);
+                OutputStream out = newRunOutputStream(newtmpfile, plan, options,
+                        checksum);
+                RunIndex index = new RunIndex(tmplist.size());
+                if (!options.isUsegzip()) {
+                        out = index.track(out);
                 }
                 try (BufferedWriter fbw = new BufferedWriter(new OutputStreamWriter(
-                        out, cs))) {
+                        out, cs), plan.getCharBufferSize())) {
                         if (!distinct) {
                             for (String r : tmplist) {
+                                        index.record(r, fbw);
                                         fbw.write(r);
                                         fbw.newLine();
                             }
                         } else {
+                        // with a key comparator, the keys of each line are extracted once
+                        KeyComparator keys = KeyComparator.of(cmp);
+                        Comparator<KeyComparator.Keys> keyOrder = keys == null ? null
+                                : SortMetrics.countLike(cmp, keys::compareKeys);
                         String lastLine = null;
+                        KeyComparator.Keys lastKeys = null;
                         Iterator<String> i = tmplist.iterator();
                         if(i.hasNext()) {
                           lastLine = i.next();
+                          lastKeys = keys == null ? null : keys.extract(lastLine);
+                          index.record(lastLine, fbw);
                           fbw.write(lastLine);
                           fbw.newLine();
                         }
                         while (i.hasNext()) {
                           String r = i.next();
+                          KeyComparator.Keys rKeys = keys == null ? null : keys.extract(r);
                           // Skip duplicate lines
-                          if (cmp.compare(r, lastLine) != 0) {
+                          if (keys == null ? cmp.compare(r, lastLine) != 0
+                                  : keyOrder.compare(rKeys, lastKeys) != 0) {
+                            index.record(r, fbw);
                             fbw.write(r);
                             fbw.newLine();
                             lastLine = r;
+                            lastKeys = rKeys;
                           }
                         }
                         }
                 }
-                return newtmpfile;
+                return index;
+        }
+
+        /**
+         * Opens a run for writing, compressed and counted as the options say.
+         */
+        private static OutputStream newRunOutputStream(File newtmpfile,
+                IOBufferPlanner plan, ExternalSortOptions options,
+                Checksum checksum) throws IOException {
+                OutputStream out = DirectIO.newOutputStream(newtmpfile,
+                        plan.getWriteBufferSize(), options.isDirectIO());
+                if (checksum != null) {
+                        out = new CheckedOutputStream(out, checksum);
+                }
+                if (options.isUsegzip()) {
+                        out = new GZIPOutputStream(out, plan.getStreamBufferSize()) {
+                                {
+                                        this.def.setLevel(Deflater.BEST_SPEED);
+                                }
+                        };
+                }
+                if (options.getMetrics() != null) {
+                        out = options.getMetrics().countRunBytes(out);
+                }
+                return out;
         }
 
         /**
@@ -628,47 +1398,325 @@ public class ExternalSort {
                 final File tmpdirectory, final boolean distinct,
                 final int numHeader, final boolean usegzip, final boolean parallel)
                     throws IOException {
-                List<File> files = new ArrayList<>();
-                long blocksize = estimateBestSizeOfBlocks(datalength,
-                        maxtmpfiles, maxMemory);// in
-                // bytes
+                return sortInBatch(fbr, datalength, new ExternalSortOptions.Builder()
+                        .comparator(cmp).maxTmpFiles(maxtmpfiles)
+                        .maxMemory(maxMemory).charset(cs)
+                        .tmpDirectory(tmpdirectory).distinct(distinct)
+                        .numHeader(numHeader).usegzip(usegzip)
+                        .parallel(parallel).build());
+        }
+
+        /**
+         * This will simply load the file by blocks of lines, then sort them
+         * in-memory, and write the result to temporary files that have to be
+         * merged later.
+         *
+         * @param fbr data source
+         * @param datalength estimated data volume (in bytes)
+         * @param options sorting options
+         * @return a list of temporary flat files
+         * @throws IOException generic IO exception
+         */
+        public static List<File> sortInBatch(final BufferedReader fbr,
+                final long datalength, final ExternalSortOptions options)
+                    throws IOException {
+                return new ArrayList<>(sortIntoRuns(fbr, datalength, options)
+                        .getFiles());
+        }
+
+        /**
+         * This will simply load the file by blocks of lines, then sort them
+         * in-memory, and write the result to temporary files that have to be
+         * merged later. The runs come with their sparse index and metadata,
+         * a uniform sample of the input and a sketch of the distribution of
+         * the lines, as used by
+         * {@link #mergeSortedFiles(SortedRuns, List, List, ExternalSortOptions)}.
+         *
+         * @param fbr data source
+         * @param datalength estimated data volume (in bytes)
+         * @param options sorting options
+         * @return the temporary flat files
+         * @throws IOException generic IO exception
+         */
+        public static SortedRuns sortIntoRuns(final BufferedReader fbr,
+                final long datalength, final ExternalSortOptions options)
+                    throws IOException {
+                final SortMetrics metrics = options.getMetrics();
+                final SortListener listener = options.getListener();
+                Comparator<String> cmp = options.getComparator();
+                if (metrics != null) {
+                        cmp = metrics.countComparisons(cmp);
+                        metrics.setInputBytes(datalength);
+                        metrics.phaseStarted(SortPhase.RUN_GENERATION);
+                        listener.phaseStarted(SortPhase.RUN_GENERATION, metrics);
+                }
+                // without a handle, the runs created so far are deleted on failure;
+                // the runs of a checkpoint are kept to resume the sort
+                final SortHandle handle = options.getHandle() != null
+                        ? options.getHandle() : new SortHandle();
+                final SortCheckpoint checkpoint = options.getCheckpoint();
+                SortedRuns files = new SortedRuns(options.getComparator());
+                ReservoirSample sample = new ReservoirSample(options.getSampleSize(), 0);
+                // lower bound on the block size (in bytes), to respect maxtmpfiles
+                long minblocksize = estimateBestSizeOfBlocks(datalength,
+                        options.getMaxTmpFiles(), 0);
+                long maxMemory = options.getMaxMemory() < 0
+                        ? estimateAvailableMemory() : options.getMaxMemory();
+                MemoryBudget budget = MemoryBudget.getDefault();
+                long granted = budget.reserve(maxMemory, MIN_RESERVED_MEMORY);
+                MemoryAccountant accountant = new MemoryAccountant(granted, 0.5);
 
                 try {
                         List<String> tmplist = new ArrayList<>();
                         String line = "";
                         try {
                                 int counter = 0;
+                                long linesread = 0;
+                                if (checkpoint != null) {
+                                        // resume after the lines already spilled
+                                        for (File run : checkpoint.getRuns()) {
+                                                files.add(run, null);
+                                        }
+                                        long skipped = checkpoint.getLinesConsumed();
+                                        for (; linesread < skipped && fbr.readLine() != null; linesread++) {
+                                                checkCancelled(handle, linesread);
+                                        }
+                                        counter = (int) Math.min(linesread, options.getNumHeader());
+                                        if (checkpoint.isComplete()) {
+                                                line = null;
+                                        }
+                                }
                                 while (line != null) {
+                                        long blocksize = Math.max(minblocksize,
+                                                accountant.blockSize());
                                         long currentblocksize = 0;// in bytes
+                                        accountant.beginBlock();
                                         while ((currentblocksize < blocksize)
                                                 && ((line = fbr.readLine()) != null)) {
                                                 // as long as you have enough
                                                 // memory
-                                                if (counter < numHeader) {
+                                                checkCancelled(handle, ++linesread);
+                                                if (counter < options.getNumHeader()) {
                                                         counter++;
                                                         continue;
                                                 }
                                                 tmplist.add(line);
+                                                sample.offer(line);
                                                 currentblocksize += StringSizeEstimator
                                                         .estimatedSizeOf(line);
+                                                if (metrics != null && tmplist.size() % PROGRESS_INTERVAL == 0) {
+                                                        metrics.addLinesRead(PROGRESS_INTERVAL);
+                                                        listener.progress(metrics);
+                                                }
                                         }
-                                        files.add(sortAndSave(tmplist, cmp, cs,
-                                                tmpdirectory, distinct, usegzip, parallel));
+                                        accountant.endBlock(currentblocksize);
+                                        saveRun(tmplist, cmp, options, handle,
+                                                linesread, files);
                                         tmplist.clear();
                                 }
                         } catch (EOFException oef) {
                                 if (tmplist.size() > 0) {
-                                        files.add(sortAndSave(tmplist, cmp, cs,
-                                                tmpdirectory, distinct, usegzip, parallel));
+                                        // this run ends the input
+                                        saveRun(tmplist, cmp, options, handle,
+                                                Long.MAX_VALUE, files);
                                         tmplist.clear();
                                 }
                         }
+                        if (checkpoint != null && !checkpoint.isComplete()) {
+                                checkpoint.markComplete();
+                        }
+                        files.setSample(sample.getLines());
+                } catch (IOException | RuntimeException | Error e) {
+                        handle.close();
+                        throw e;
                 } finally {
+                        budget.release(granted);
                         fbr.close();
                 }
+                if (metrics != null) {
+                        metrics.phaseFinished(SortPhase.RUN_GENERATION);
+                        listener.phaseFinished(SortPhase.RUN_GENERATION, metrics);
+                }
                 return files;
         }
 
+        /**
+         * Sorts and saves a block, adds it to the runs and reports it.
+         */
+        private static void saveRun(List<String> tmplist, Comparator<String> cmp,
+                ExternalSortOptions options, SortHandle handle,
+                long linesConsumed, SortedRuns runs) throws IOException {
+                SortMetrics metrics = options.getMetrics();
+                if (metrics != null) {
+                        metrics.addLinesRead(tmplist.size() % PROGRESS_INTERVAL);
+                }
+                SortCheckpoint checkpoint = options.getCheckpoint();
+                File run;
+                RunIndex index;
+                if (checkpoint == null) {
+                        run = options.getTmpFileStore().createTempFile(
+                                "sortInBatch", "flatfile", handle);
+                        index = sortAndSave(tmplist, cmp, options, handle, run, null);
+                } else {
+                        CRC32 crc = new CRC32();
+                        run = checkpoint.createRun();
+                        index = sortAndSave(tmplist, cmp, options, handle, run, crc);
+                        checkpoint.addRun(run, linesConsumed, crc.getValue());
+                }
+                runs.add(run, index);
+                if (metrics != null) {
+                        metrics.runCreated(run);
+                        options.getListener().runCreated(run, tmplist.size(), metrics);
+                }
+        }
+
+        /**
+         * This will load the file by blocks of lines kept outside of the Java
+         * heap, sort them, and write the result to temporary files that have
+         * to be merged later with {@link #mergeSortedFiles}. Only an index of
+         * the lines lives on the heap, so the size of the blocks is bounded by
+         * the native memory rather than by the maximal heap size.
+         *
+         * @param fbr data source
+         * @param datalength estimated data volume (in bytes)
+         * @param cmp string comparator
+         * @param maxtmpfiles maximal number of temporary files
+         * @param offHeapMemory off-heap memory to use for a block (in bytes),
+         *                it is increased if needed to respect maxtmpfiles
+         * @param cs character set to use (can use
+         *                Charset.defaultCharset())
+         * @param tmpdirectory location of the temporary files (set to null for
+         *                default location)
+         * @param distinct Pass <code>true</code> if duplicate lines should be
+         *                discarded.
+         * @param numHeader number of lines to preclude before sorting starts
+         * @param usegzip use gzip compression for the temporary files
+         * @return a list of temporary flat files
+         * @throws IOException generic IO exception
+         * @see OffHeapRunBuffer
+         */
+        public static List<File> sortInBatchOffHeap(final BufferedReader fbr,
+                final long datalength, final Comparator<String> cmp,
+                final int maxtmpfiles, final long offHeapMemory, final Charset cs,
+                final File tmpdirectory, final boolean distinct,
+                final int numHeader, final boolean usegzip) throws IOException {
+                return sortInBatchOffHeap(fbr, datalength, offHeapMemory,
+                        new ExternalSortOptions.Builder().comparator(cmp)
+                                .maxTmpFiles(maxtmpfiles).charset(cs)
+                                .tmpDirectory(tmpdirectory).distinct(distinct)
+                                .numHeader(numHeader).usegzip(usegzip).build());
+        }
+
+        /**
+         * This will load the file by blocks of lines kept outside of the Java
+         * heap, sort them, and write the result to temporary files that have
+         * to be merged later with {@link #mergeSortedFiles}. The runs are
+         * written as by {@link #sortInBatch(BufferedReader, long,
+         * ExternalSortOptions)}: in the temporary directories of the options,
+         * owned by their handle, compressed or with direct I/O if required,
+         * and reported to their metrics and listener.
+         *
+         * @param fbr data source
+         * @param datalength estimated data volume (in bytes)
+         * @param offHeapMemory off-heap memory to use for a block (in bytes),
+         *                it is increased if needed to respect the maximal
+         *                number of temporary files
+         * @param options sorting options
+         * @return a list of temporary flat files
+         * @throws IOException generic IO exception
+         * @see OffHeapRunBuffer
+         */
+        public static List<File> sortInBatchOffHeap(final BufferedReader fbr,
+                final long datalength, final long offHeapMemory,
+                final ExternalSortOptions options) throws IOException {
+                final SortMetrics metrics = options.getMetrics();
+                final SortListener listener = options.getListener();
+                Comparator<String> cmp = options.getComparator();
+                if (metrics != null) {
+                        cmp = metrics.countComparisons(cmp);
+                        metrics.setInputBytes(datalength);
+                        metrics.phaseStarted(SortPhase.RUN_GENERATION);
+                        listener.phaseStarted(SortPhase.RUN_GENERATION, metrics);
+                }
+                // without a handle, the runs created so far are deleted on failure
+                final SortHandle handle = options.getHandle() != null
+                        ? options.getHandle() : new SortHandle();
+                List<File> files = new ArrayList<>();
+                long blocksize = Math.max(offHeapMemory,
+                        estimateBestSizeOfBlocks(datalength, options.getMaxTmpFiles(), 0));
+                try (OffHeapRunBuffer buffer = new OffHeapRunBuffer(blocksize,
+                        options.getCharset())) {
+                        String line;
+                        int counter = 0;
+                        long linesread = 0;
+                        while ((line = fbr.readLine()) != null) {
+                                checkCancelled(handle, ++linesread);
+                                if (counter < options.getNumHeader()) {
+                                        counter++;
+                                        continue;
+                                }
+                                if (!buffer.add(line)) {
+                                        files.add(sortAndSave(buffer, cmp, options,
+                                                handle));
+                                        buffer.clear();
+                                        buffer.add(line);
+                                }
+                                if (metrics != null && linesread % PROGRESS_INTERVAL == 0) {
+                                        metrics.addLinesRead(PROGRESS_INTERVAL);
+                                        listener.progress(metrics);
+                                }
+                        }
+                        if (buffer.size() > 0) {
+                                files.add(sortAndSave(buffer, cmp, options, handle));
+                        }
+                        if (metrics != null) {
+                                metrics.addLinesRead(linesread % PROGRESS_INTERVAL);
+                        }
+                } catch (IOException | RuntimeException | Error e) {
+                        handle.close();
+                        throw e;
+                } finally {
+                        fbr.close();
+                }
+                if (metrics != null) {
+                        metrics.phaseFinished(SortPhase.RUN_GENERATION);
+                        listener.phaseFinished(SortPhase.RUN_GENERATION, metrics);
+                }
+                return files;
+        }
+
+        /**
+         * Sorts an off-heap block and writes it to a new run, which is
+         * deleted on failure, and reports the run.
+         */
+        private static File sortAndSave(OffHeapRunBuffer buffer,
+                Comparator<String> cmp, ExternalSortOptions options,
+                SortHandle handle) throws IOException {
+                handle.checkCancelled();
+                buffer.sort(cmp);
+                File newtmpfile = options.getTmpFileStore().createTempFile(
+                        "sortInBatch", "flatfile", handle);
+                long lines;
+                try {
+                        IOBufferPlanner plan = IOBufferPlanner.plan(options, 0);
+                        try (WritableByteChannel out = Channels.newChannel(
+                                newRunOutputStream(newtmpfile, plan, options, null))) {
+                                lines = buffer.writeTo(out, cmp, options.isDistinct());
+                        }
+                } catch (IOException | RuntimeException | Error e) {
+                        newtmpfile.delete();
+                        throw e;
+                } finally {
+                        options.getTmpFileStore().release(newtmpfile);
+                }
+                SortMetrics metrics = options.getMetrics();
+                if (metrics != null) {
+                        metrics.runCreated(newtmpfile);
+                        options.getListener().runCreated(newtmpfile, lines, metrics);
+                }
+                return newtmpfile;
+        }
+
         /**
          * This will simply load the file by blocks of lines, then sort them
          * in-memory, and write the result to temporary files that have to be
@@ -880,11 +1928,52 @@ public class ExternalSort {
                 int maxtmpfiles, Charset cs, File tmpdirectory,
                 boolean distinct, int numHeader, boolean usegzip, boolean parallel)
                 throws IOException {
+                return sortInBatch(file, new ExternalSortOptions.Builder()
+                        .comparator(cmp).maxTmpFiles(maxtmpfiles).charset(cs)
+                        .tmpDirectory(tmpdirectory).distinct(distinct)
+                        .numHeader(numHeader).usegzip(usegzip)
+                        .parallel(parallel).build());
+        }
+
+        /**
+         * This will simply load the file by blocks of lines, then sort them
+         * in-memory, and write the result to temporary files that have to be
+         * merged later.
+         *
+         * @param file some flat file
+         * @param options sorting options
+         * @return a list of temporary flat files
+         * @throws IOException generic IO exception
+         */
+        public static List<File> sortInBatch(File file,
+                ExternalSortOptions options) throws IOException {
+                return new ArrayList<>(sortIntoRuns(file, options).getFiles());
+        }
+
+        /**
+         * This will simply load the file by blocks of lines, then sort them
+         * in-memory, and write the result to temporary files that have to be
+         * merged later. The runs come with their sparse index and metadata,
+         * a uniform sample of the input and a sketch of the distribution of
+         * the lines, as used by
+         * {@link #mergeSortedFiles(SortedRuns, List, List, ExternalSortOptions)}.
+         *
+         * @param file some flat file
+         * @param options sorting options
+         * @return the temporary flat files
+         * @throws IOException generic IO exception
+         */
+        public static SortedRuns sortIntoRuns(File file,
+                ExternalSortOptions options) throws IOException {
+                IOBufferPlanner plan = IOBufferPlanner.plan(options, 1);
+                InputStream in = new BufferedInputStream(new FileInputStream(file),
+                        plan.getReadBufferSize());
+                if (options.getMetrics() != null) {
+                        in = options.getMetrics().countBytesRead(in);
+                }
                 BufferedReader fbr = new BufferedReader(new InputStreamReader(
-                        new FileInputStream(file), cs));
-                return sortInBatch(fbr, file.length(), cmp, maxtmpfiles,
-                        estimateAvailableMemory(), cs, tmpdirectory, distinct,
-                        numHeader, usegzip, parallel);
+                        in, options.getCharset()), plan.getCharBufferSize());
+                return sortIntoRuns(fbr, file.length(), options);
         }
 
         /**
@@ -902,4 +1991,15 @@ public class ExternalSort {
          */
         public static final int DEFAULTMAXTEMPFILES = 1024;
 
+        /**
+         * Memory (in bytes) granted to a sort by the {@link MemoryBudget}
+         * even when the budget is exhausted, so that it can make progress.
+         */
+        public static final long MIN_RESERVED_MEMORY = 1L << 20;
+
+        /**
+         * Number of lines between two calls to {@link SortListener#progress}.
+         */
+        static final int PROGRESS_INTERVAL = 1 << 16;
+
 }
@@ -0,0 +1,568 @@
+package com.google.code.externalsorting;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Parameters for sorting lines with {@link ExternalSort}, as an
+ * alternative to the long lists of arguments of its overloads.
+ */
+public class ExternalSortOptions {
+    /**
+     * Default number of lines of the uniform sample kept by a sort.
+     */
+    public static final int DEFAULT_SAMPLE_SIZE = 1024;
+
+    /**
+     * Default number of files merged at once by
+     * {@link ExternalSort#mergeFiles}.
+     */
+    public static final int DEFAULT_MAX_FAN_IN = 512;
+
+    private final Comparator<String> comparator;
+    private final int maxTmpFiles;
+    private final long maxMemory;
+    private final Charset charset;
+    private final List<File> tmpDirectories;
+    private final TempFileStore tmpFileStore;
+    private final boolean distinct;
+    private final boolean stable;
+    private final int numHeader;
+    private final boolean usegzip;
+    private final boolean parallel;
+    private final SortListener listener;
+    private final SortMetrics metrics;
+    private final SortHandle handle;
+    private final boolean directIO;
+    private final int ioBufferSize;
+    private final long ioMemory;
+    private final int sampleSize;
+    private final int maxFanIn;
+    private final SortCheckpoint checkpoint;
+    private final Executor executor;
+    private final ForkJoinPool forkJoinPool;
+    private final int maxConcurrency;
+    private final boolean virtualThreads;
+
+    /**
+     * Gets the comparator used for sorting lines.
+     * @return the comparator
+     */
+    public Comparator<String> getComparator() {
+        return comparator;
+    }
+    /**
+     * Gets the maximum number of temporary files.
+     * @return the max number of temp files
+     */
+    public int getMaxTmpFiles() {
+        return maxTmpFiles;
+    }
+    /**
+     * Gets the maximum memory to use (in bytes).
+     * @return the max memory, or a negative value to use the memory
+     *         available when the sort starts
+     */
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+    /**
+     * Gets the charset used for reading and writing files.
+     * @return the charset
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+    /**
+     * Gets the directory of the temporary files.
+     * @return the first directory, or null for the default location
+     */
+    public File getTmpDirectory() {
+        return tmpDirectories.isEmpty() ? null : tmpDirectories.get(0);
+    }
+    /**
+     * Gets the directories of the temporary files.
+     * @return the directories, empty for the default location
+     */
+    public List<File> getTmpDirectories() {
+        return tmpDirectories;
+    }
+    /**
+     * Gets the store placing the temporary files in the directories.
+     * @return the store
+     */
+    public TempFileStore getTmpFileStore() {
+        return tmpFileStore;
+    }
+    /**
+     * Indicates whether duplicate lines are discarded.
+     * @return true if distinct, false otherwise
+     */
+    public boolean isDistinct() {
+        return distinct;
+    }
+    /**
+     * Indicates whether equal lines keep their input order, also across runs.
+     * @return true if the sort is stable, or if the comparator is a stable
+     *         {@link KeyComparator}
+     */
+    public boolean isStable() {
+        return stable || (comparator instanceof KeyComparator
+            && ((KeyComparator) comparator).isStable());
+    }
+    /**
+     * Gets the number of header lines, which are skipped.
+     * @return the number of header lines
+     */
+    public int getNumHeader() {
+        return numHeader;
+    }
+    /**
+     * Indicates whether the temporary files are compressed with gzip.
+     * @return true if the temporary files are compressed
+     */
+    public boolean isUsegzip() {
+        return usegzip;
+    }
+    /**
+     * Indicates whether each block is sorted in parallel.
+     * @return true if blocks are sorted in parallel
+     */
+    public boolean isParallel() {
+        return parallel;
+    }
+    /**
+     * Gets the listener notified of the progress of the sort.
+     * @return the listener, {@link SortListener#NONE} by default
+     */
+    public SortListener getListener() {
+        return listener;
+    }
+    /**
+     * Gets the metrics updated by the sort.
+     * @return the metrics, or null if the sort is not instrumented
+     */
+    public SortMetrics getMetrics() {
+        return metrics;
+    }
+    /**
+     * Gets the handle controlling the sort.
+     * @return the handle, or null if the sort cannot be cancelled
+     */
+    public SortHandle getHandle() {
+        return handle;
+    }
+    /**
+     * Indicates whether the temporary files bypass the page cache.
+     * @return true for direct I/O
+     * @see DirectIO
+     */
+    public boolean isDirectIO() {
+        return directIO;
+    }
+    /**
+     * Gets the largest buffer of a stream reading or writing a temporary file.
+     * @return the size (in bytes)
+     */
+    public int getIoBufferSize() {
+        return ioBufferSize;
+    }
+    /**
+     * Gets the memory for the buffers of the streams of the temporary files.
+     * @return the memory (in bytes), or 0 for the default
+     * @see IOBufferPlanner
+     */
+    public long getIoMemory() {
+        return ioMemory;
+    }
+    /**
+     * Gets the number of lines of the uniform sample kept by the sort.
+     * @return the size of the sample
+     * @see SortedRuns#getSample()
+     */
+    public int getSampleSize() {
+        return sampleSize;
+    }
+    /**
+     * Gets the number of files merged at once by {@link ExternalSort#mergeFiles}.
+     * @return the maximal fan-in
+     */
+    public int getMaxFanIn() {
+        return maxFanIn;
+    }
+    /**
+     * Gets the checkpoint recording the progress of the sort.
+     * @return the checkpoint, or null if the sort cannot be resumed
+     */
+    public SortCheckpoint getCheckpoint() {
+        return checkpoint;
+    }
+    /**
+     * Gets the executor running the blocking tasks of the sort, such as the
+     * parallel merges.
+     * @return the executor, or null if the sort uses threads of its own
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+    /**
+     * Gets the pool running the parallel in-memory sorts.
+     * @return the pool, or null for the common pool
+     */
+    public ForkJoinPool getForkJoinPool() {
+        return forkJoinPool;
+    }
+    /**
+     * Gets the number of blocking tasks of the sort run at once.
+     * @return the maximal concurrency
+     */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+    /**
+     * Checks whether the threads of the sort, when it has no executor, are
+     * virtual threads.
+     * @return true if virtual threads are requested
+     * @see SortExecutor#isVirtualThreadsAvailable()
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Builder class for constructing ExternalSortOptions with custom parameters.
+     */
+    public static class Builder {
+        private Comparator<String> cmp = ExternalSort.defaultcomparator;
+        private int maxTmpFiles = ExternalSort.DEFAULTMAXTEMPFILES;
+        private long maxMemory = -1;
+        private Charset cs = Charset.defaultCharset();
+        private List<File> tmpDirectories = Collections.emptyList();
+        private boolean distinct = false;
+        private boolean stable = false;
+        private int numHeader = 0;
+        private boolean usegzip = false;
+        private boolean parallel = true;
+        private SortListener listener = SortListener.NONE;
+        private SortMetrics metrics = null;
+        private SortHandle handle = null;
+        private boolean directIO = false;
+        private int ioBufferSize = DirectIO.DEFAULT_BUFFER_SIZE;
+        private long ioMemory = 0;
+        private int sampleSize = DEFAULT_SAMPLE_SIZE;
+        private int maxFanIn = DEFAULT_MAX_FAN_IN;
+        private SortCheckpoint checkpoint = null;
+        private Executor executor = null;
+        private ForkJoinPool forkJoinPool = null;
+        private int maxConcurrency = Runtime.getRuntime().availableProcessors();
+        private boolean virtualThreads = false;
+
+        /**
+         * Constructs a Builder with the default parameters of
+         * {@link ExternalSort}.
+         */
+        public Builder() {
+        }
+        /**
+         * Sets the comparator.
+         * @param value the comparator
+         * @return this builder
+         */
+        public Builder comparator(Comparator<String> value){
+            cmp = value;
+            return this;
+        }
+        /**
+         * Sets the maximum number of temporary files.
+         * @param value the max number of temp files
+         * @return this builder
+         */
+        public Builder maxTmpFiles(int value){
+            maxTmpFiles = value;
+            return this;
+        }
+        /**
+         * Sets the maximum memory to use. By default, the sort uses the
+         * memory available when it starts. Either way, the sort gets no
+         * more than what the {@link MemoryBudget} shared by the JVM has
+         * left, and at least {@link ExternalSort#MIN_RESERVED_MEMORY}.
+         * @param value the max memory (in bytes)
+         * @return this builder
+         */
+        public Builder maxMemory(long value){
+            maxMemory = value;
+            return this;
+        }
+        /**
+         * Sets the charset.
+         * @param value the charset
+         * @return this builder
+         */
+        public Builder charset(Charset value){
+            cs = value;
+            return this;
+        }
+        /**
+         * Sets the directory of the temporary files.
+         * @param value the directory, or null for the default location
+         * @return this builder
+         */
+        public Builder tmpDirectory(File value){
+            tmpDirectories = value == null ? Collections.<File>emptyList()
+                : Collections.singletonList(value);
+            return this;
+        }
+        /**
+         * Sets several directories for the temporary files, typically on
+         * distinct drives: the runs are spread over them.
+         * @param value the directories, or an empty list for the default
+         *        location
+         * @return this builder
+         * @see TempFileStore
+         */
+        public Builder tmpDirectories(List<File> value){
+            tmpDirectories = value == null ? Collections.<File>emptyList()
+                : Collections.unmodifiableList(new ArrayList<>(value));
+            return this;
+        }
+        /**
+         * Sets whether duplicate lines are discarded.
+         * @param value true for distinct
+         * @return this builder
+         */
+        public Builder distinct(boolean value){
+            distinct = value;
+            return this;
+        }
+        /**
+         * Sets whether lines comparing equal keep their input order: the
+         * merge breaks ties by the order of the runs, so that with
+         * {@link #distinct(boolean)} the first occurrence is kept.
+         * @param value true for a stable sort
+         * @return this builder
+         */
+        public Builder stable(boolean value){
+            stable = value;
+            return this;
+        }
+        /**
+         * Sets the number of header lines, which are skipped.
+         * @param value the number of header lines
+         * @return this builder
+         */
+        public Builder numHeader(int value){
+            numHeader = value;
+            return this;
+        }
+        /**
+         * Sets whether the temporary files are compressed with gzip.
+         * @param value true to compress
+         * @return this builder
+         */
+        public Builder usegzip(boolean value){
+            usegzip = value;
+            return this;
+        }
+        /**
+         * Sets whether each block is sorted in parallel.
+         * @param value true to sort in parallel
+         * @return this builder
+         */
+        public Builder parallel(boolean value){
+            parallel = value;
+            return this;
+        }
+        /**
+         * Sets the listener notified of the progress of the sort. Metrics
+         * are collected as well, in a new {@link SortMetrics} unless one
+         * is set with {@link #metrics}.
+         * @param value the listener
+         * @return this builder
+         */
+        public Builder listener(SortListener value){
+            listener = value == null ? SortListener.NONE : value;
+            return this;
+        }
+        /**
+         * Sets the metrics updated by the sort, for instance to register
+         * them as an MBean beforehand.
+         * @param value the metrics, or null not to collect any
+         * @return this builder
+         */
+        public Builder metrics(SortMetrics value){
+            metrics = value;
+            return this;
+        }
+        /**
+         * Sets the handle used to cancel the sort and to release its
+         * temporary files. Use the same handle for the creation of the
+         * runs and for their merge.
+         * @param value the handle, or null
+         * @return this builder
+         */
+        public Builder handle(SortHandle value){
+            handle = value;
+            return this;
+        }
+        /**
+         * Sets the checkpoint recording the progress of the sort, so that
+         * it can be resumed after a restart. The runs are then written to
+         * the directory of the checkpoint.
+         * @param value the checkpoint, or null
+         * @return this builder
+         * @see SortCheckpoint#open
+         */
+        public Builder checkpoint(SortCheckpoint value){
+            checkpoint = value;
+            return this;
+        }
+        /**
+         * Sets whether the temporary files bypass the page cache, when the
+         * JVM and the file system support it, so that a sort does not evict
+         * the files cached for other processes.
+         * @param value true for direct I/O
+         * @return this builder
+         * @see DirectIO
+         */
+        public Builder directIO(boolean value){
+            directIO = value;
+            return this;
+        }
+        /**
+         * Sets the largest buffer of a stream reading or writing a temporary
+         * file. It is rounded to a multiple of {@link DirectIO#ALIGNMENT}.
+         * @param value the size (in bytes)
+         * @return this builder
+         */
+        public Builder ioBufferSize(int value){
+            ioBufferSize = value;
+            return this;
+        }
+        /**
+         * Sets the memory for the buffers of the streams of the temporary
+         * files, split between the runs being merged and the output.
+         * @param value the memory (in bytes), or 0 for
+         *            {@link IOBufferPlanner#defaultBudget()}
+         * @return this builder
+         * @see IOBufferPlanner
+         */
+        public Builder ioMemory(long value){
+            ioMemory = value;
+            return this;
+        }
+        /**
+         * Sets the number of lines of the uniform sample kept by the sort.
+         * @param value the size of the sample, 0 for none
+         * @return this builder
+         * @see SortedRuns#getSample()
+         */
+        public Builder sampleSize(int value){
+            if (value < 0) {
+                throw new IllegalArgumentException("negative sample size: " + value);
+            }
+            sampleSize = value;
+            return this;
+        }
+        /**
+         * Sets the number of files merged at once by
+         * {@link ExternalSort#mergeFiles}: with more inputs, they are merged
+         * in several passes.
+         * @param value the maximal fan-in, at least 2
+         * @return this builder
+         */
+        public Builder maxFanIn(int value){
+            if (value < 2) {
+                throw new IllegalArgumentException("fan-in too small: " + value);
+            }
+            maxFanIn = value;
+            return this;
+        }
+        /**
+         * Sets the executor running the blocking tasks of the sort, such as
+         * the parallel merges, which may be shared with other sorts. The sort
+         * never shuts it down.
+         * @param value the executor, or null for threads of the sort
+         * @return this builder
+         */
+        public Builder executor(Executor value){
+            executor = value;
+            return this;
+        }
+        /**
+         * Sets the pool running the parallel in-memory sorts, rather than the
+         * common pool.
+         * @param value the pool, or null for the common pool
+         * @return this builder
+         */
+        public Builder forkJoinPool(ForkJoinPool value){
+            forkJoinPool = value;
+            return this;
+        }
+        /**
+         * Sets the number of blocking tasks of the sort run at once, on its
+         * executor or on its own threads.
+         * @param value the maximal concurrency, at least 1
+         * @return this builder
+         */
+        public Builder maxConcurrency(int value){
+            if (value < 1) {
+                throw new IllegalArgumentException("no concurrency: " + value);
+            }
+            maxConcurrency = value;
+            return this;
+        }
+        /**
+         * Sets whether the sort, when it has no executor, runs its blocking
+         * tasks on virtual threads. Without virtual threads (before Java 21),
+         * it uses platform threads.
+         * @param value true for virtual threads
+         * @return this builder
+         */
+        public Builder virtualThreads(boolean value){
+            virtualThreads = value;
+            return this;
+        }
+        /**
+         * Builds the ExternalSortOptions instance.
+         * @return a new ExternalSortOptions
+         */
+        public ExternalSortOptions build(){
+            return new ExternalSortOptions(this);
+        }
+    }
+
+    private ExternalSortOptions(Builder builder){
+        this.comparator = builder.cmp;
+        this.maxTmpFiles = builder.maxTmpFiles;
+        this.maxMemory = builder.maxMemory;
+        this.charset = builder.cs;
+        this.tmpDirectories = builder.tmpDirectories;
+        this.tmpFileStore = new TempFileStore(builder.tmpDirectories);
+        this.distinct = builder.distinct;
+        this.stable = builder.stable;
+        this.numHeader = builder.numHeader;
+        this.usegzip = builder.usegzip;
+        this.parallel = builder.parallel;
+        this.listener = builder.listener;
+        this.metrics = builder.metrics == null && builder.listener != SortListener.NONE
+            ? new SortMetrics() : builder.metrics;
+        this.handle = builder.handle;
+        this.directIO = builder.directIO;
+        this.ioBufferSize = builder.ioBufferSize;
+        this.ioMemory = builder.ioMemory;
+        this.sampleSize = builder.sampleSize;
+        this.maxFanIn = builder.maxFanIn;
+        this.checkpoint = builder.checkpoint;
+        this.executor = builder.executor;
+        this.forkJoinPool = builder.forkJoinPool;
+        this.maxConcurrency = builder.maxConcurrency;
+        this.virtualThreads = builder.virtualThreads;
+    }
+
+}
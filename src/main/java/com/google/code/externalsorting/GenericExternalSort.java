@@ -0,0 +1,478 @@
+package com.google.code.externalsorting;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * External-memory sorting of arbitrary objects.
+ *
+ * Whereas {@link ExternalSort} sorts lines of text, this class sorts any
+ * type for which a {@link Serializer} is available. The temporary files
+ * hold the compact binary encoding produced by the serializer, so the
+ * elements never have to be turned into text and parsed back. During the
+ * merge, each temporary file is deserialized one element at a time.
+ *
+ * Usage:
+ * <pre>
+ * List&lt;File&gt; runs = GenericExternalSort.sortInBatch(records.iterator(),
+ *         estimatedBytes, comparator, serializer, sizeEstimator);
+ * GenericExternalSort.mergeSortedFiles(runs, output, comparator, serializer);
+ * </pre>
+ *
+ * As with {@link ExternalSort}, a {@link SortHandle} passed to both phases
+ * cancels the sort on request or after a deadline, and owns its temporary
+ * files and open readers.
+ */
+public final class GenericExternalSort {
+
+        private GenericExternalSort() {
+        }
+
+        /**
+         * This merges several sorted buffers to an output.
+         *
+         * @param <T> the type of the elements
+         * @param out where the elements are written
+         * @param cmp comparator used to sort the elements
+         * @param serializer how the elements are written
+         * @param distinct Pass <code>true</code> if duplicate elements should
+         *                be discarded.
+         * @param buffers where the data should be read
+         * @return The number of elements written.
+         * @throws IOException generic IO exception
+         */
+        public static <T> long mergeSortedFiles(DataOutput out,
+                final Comparator<T> cmp, Serializer<T> serializer,
+                boolean distinct, List<? extends IOStack<T>> buffers)
+                throws IOException {
+                return mergeSortedFiles(out, cmp, serializer, distinct, buffers,
+                        null);
+        }
+
+        /**
+         * This merges several sorted buffers to an output, checking a handle
+         * for cancellation.
+         *
+         * @param <T> the type of the elements
+         * @param out where the elements are written
+         * @param cmp comparator used to sort the elements
+         * @param serializer how the elements are written
+         * @param distinct Pass <code>true</code> if duplicate elements should
+         *                be discarded.
+         * @param buffers where the data should be read
+         * @param handle the handle of the sort, or null
+         * @return The number of elements written.
+         * @throws IOException generic IO exception, or a
+         *             {@link SortCancelledException} if the sort was cancelled
+         */
+        public static <T> long mergeSortedFiles(DataOutput out,
+                final Comparator<T> cmp, Serializer<T> serializer,
+                boolean distinct, List<? extends IOStack<T>> buffers,
+                SortHandle handle) throws IOException {
+                List<IOStack<T>> runs = new ArrayList<>();
+                for (IOStack<T> bfb : buffers) {
+                        if (!bfb.empty()) {
+                                runs.add(bfb);
+                        } else {
+                                bfb.close();
+                        }
+                }
+                LoserTree<T> tree = new LoserTree<>(runs, cmp, false);
+                long numWritten = 0;
+                long numRead = 0;
+                try {
+                        while (!tree.isEmpty()) {
+                                if (handle != null && (++numRead & (SortHandle.CHECK_INTERVAL - 1)) == 0) {
+                                        handle.checkCancelled();
+                                }
+                                T r = tree.pop();
+                                // Skip duplicates
+                                if (!distinct || !tree.isDuplicate()) {
+                                        serializer.write(out, r);
+                                        ++numWritten;
+                                }
+                        }
+                } finally {
+                        // also closes a buffer whose next element could not be read
+                        tree.close();
+                }
+                return numWritten;
+        }
+
+        /**
+         * This merges a bunch of temporary files and deletes them.
+         *
+         * @param <T> the type of the elements
+         * @param files The {@link List} of sorted {@link File}s to be merged.
+         * @param outputfile The output {@link File} to merge the results to.
+         * @param cmp comparator used to sort the elements
+         * @param serializer how the elements are written
+         * @return The number of elements written.
+         * @throws IOException generic IO exception
+         */
+        public static <T> long mergeSortedFiles(List<File> files,
+                File outputfile, Comparator<T> cmp, Serializer<T> serializer)
+                throws IOException {
+                return mergeSortedFiles(files, outputfile, cmp, serializer,
+                        false, false);
+        }
+
+        /**
+         * This merges a bunch of temporary files and deletes them. The
+         * output file uses the same (uncompressed) format as the temporary
+         * files: it can be read back with an {@link ObjectFileBuffer}.
+         *
+         * @param <T> the type of the elements
+         * @param files The {@link List} of sorted {@link File}s to be merged.
+         * @param outputfile The output {@link File} to merge the results to.
+         * @param cmp comparator used to sort the elements
+         * @param serializer how the elements are written
+         * @param distinct Pass <code>true</code> if duplicate elements should
+         *                be discarded.
+         * @param usegzip assumes we used gzip compression for temporary files
+         * @return The number of elements written.
+         * @throws IOException generic IO exception
+         */
+        public static <T> long mergeSortedFiles(List<File> files,
+                File outputfile, Comparator<T> cmp, Serializer<T> serializer,
+                boolean distinct, boolean usegzip) throws IOException {
+                return mergeSortedFiles(files, outputfile, cmp, serializer,
+                        distinct, usegzip, null);
+        }
+
+        /**
+         * This merges a bunch of temporary files and deletes them, checking a
+         * handle for cancellation. The output file uses the same
+         * (uncompressed) format as the temporary files: it can be read back
+         * with an {@link ObjectFileBuffer}.
+         *
+         * @param <T> the type of the elements
+         * @param files The {@link List} of sorted {@link File}s to be merged.
+         * @param outputfile The output {@link File} to merge the results to.
+         * @param cmp comparator used to sort the elements
+         * @param serializer how the elements are written
+         * @param distinct Pass <code>true</code> if duplicate elements should
+         *                be discarded.
+         * @param usegzip assumes we used gzip compression for temporary files
+         * @param handle the handle owning the files, or null
+         * @return The number of elements written.
+         * @throws IOException generic IO exception, or a
+         *             {@link SortCancelledException} if the sort was cancelled
+         */
+        public static <T> long mergeSortedFiles(List<File> files,
+                File outputfile, Comparator<T> cmp, Serializer<T> serializer,
+                boolean distinct, boolean usegzip, SortHandle handle)
+                throws IOException {
+                // without a handle, the readers are closed on failure
+                final SortHandle owner = handle != null ? handle : new SortHandle();
+                ArrayList<ObjectFileBuffer<T>> bfbs = new ArrayList<>();
+                List<DataInputStream> streams = new ArrayList<>();
+                IOBufferPlanner plan = IOBufferPlanner.plan(0, files.size(),
+                        DirectIO.DEFAULT_BUFFER_SIZE);
+                long numWritten;
+                try {
+                        for (File f : files) {
+                                DataInputStream in = owner.register(openRun(f, usegzip, plan));
+                                streams.add(in);
+                                bfbs.add(new ObjectFileBuffer<>(in, serializer));
+                        }
+                        try (DataOutputStream out = new DataOutputStream(
+                                new BufferedOutputStream(DirectIO.newOutputStream(outputfile,
+                                        plan.getWriteBufferSize(), false),
+                                        plan.getStreamBufferSize()))) {
+                                numWritten = mergeSortedFiles(out, cmp, serializer,
+                                        distinct, bfbs, owner);
+                        }
+                } catch (IOException | RuntimeException | Error e) {
+                        owner.close();
+                        if (handle == null) {
+                                // nobody else owns the runs
+                                for (File f : files) {
+                                        f.delete();
+                                }
+                        }
+                        throw e;
+                }
+                for (DataInputStream in : streams) {
+                        owner.unregister(in);
+                }
+                for (File f : files) {
+                        owner.deleteTempFile(f);
+                }
+                return numWritten;
+        }
+
+        /**
+         * Sort a list and save it to a temporary file
+         *
+         * @param <T> the type of the elements
+         * @return the file containing the sorted data
+         * @param tmplist data to be sorted
+         * @param cmp comparator used to sort the elements
+         * @param serializer how the elements are written
+         * @param tmpdirectory location of the temporary files (set to null for
+         *                default location)
+         * @param distinct Pass <code>true</code> if duplicate elements should
+         *                be discarded.
+         * @param usegzip set to <code>true</code> to use gzip compression for
+         *                the temporary files
+         * @param parallel set to <code>true</code> when sorting in parallel
+         * @throws IOException generic IO exception
+         */
+        public static <T> File sortAndSave(List<T> tmplist,
+                Comparator<T> cmp, Serializer<T> serializer, File tmpdirectory,
+                boolean distinct, boolean usegzip, boolean parallel)
+                throws IOException {
+                return sortAndSave(tmplist, cmp, serializer, tmpdirectory,
+                        distinct, usegzip, parallel, null);
+        }
+
+        /**
+         * Sort a list and save it to a temporary file owned by a handle
+         *
+         * @param <T> the type of the elements
+         * @return the file containing the sorted data
+         * @param tmplist data to be sorted
+         * @param cmp comparator used to sort the elements
+         * @param serializer how the elements are written
+         * @param tmpdirectory location of the temporary files (set to null for
+         *                default location)
+         * @param distinct Pass <code>true</code> if duplicate elements should
+         *                be discarded.
+         * @param usegzip set to <code>true</code> to use gzip compression for
+         *                the temporary files
+         * @param parallel set to <code>true</code> when sorting in parallel
+         * @param handle the handle owning the file, or null
+         * @throws IOException generic IO exception, or a
+         *             {@link SortCancelledException} if the sort was cancelled
+         */
+        public static <T> File sortAndSave(List<T> tmplist,
+                Comparator<T> cmp, Serializer<T> serializer, File tmpdirectory,
+                boolean distinct, boolean usegzip, boolean parallel,
+                SortHandle handle) throws IOException {
+                if (handle != null) {
+                        handle.checkCancelled();
+                }
+                if (parallel) {
+                        tmplist = tmplist.parallelStream().sorted(cmp)
+                                .collect(Collectors.toCollection(ArrayList<T>::new));
+                } else {
+                        Collections.sort(tmplist, cmp);
+                }
+                File newtmpfile = handle != null
+                        ? handle.createTempFile("sortInBatch", "binaryfile", tmpdirectory)
+                        : File.createTempFile("sortInBatch", "binaryfile", tmpdirectory);
+                try {
+                        IOBufferPlanner plan = IOBufferPlanner.plan(0, 0,
+                                DirectIO.DEFAULT_BUFFER_SIZE);
+                        OutputStream out = DirectIO.newOutputStream(newtmpfile,
+                                plan.getWriteBufferSize(), false);
+                        if (usegzip) {
+                                out = new GZIPOutputStream(out, plan.getStreamBufferSize()) {
+                                        {
+                                                this.def.setLevel(Deflater.BEST_SPEED);
+                                        }
+                                };
+                        }
+                        try (DataOutputStream dos = new DataOutputStream(
+                                new BufferedOutputStream(out, plan.getStreamBufferSize()))) {
+                                T last = null;
+                                boolean first = true;
+                                for (T r : tmplist) {
+                                        // Skip duplicates
+                                        if (first || !distinct || cmp.compare(r, last) != 0) {
+                                                serializer.write(dos, r);
+                                                last = r;
+                                                first = false;
+                                        }
+                                }
+                        }
+                } catch (IOException | RuntimeException | Error e) {
+                        newtmpfile.delete();
+                        throw e;
+                }
+                return newtmpfile;
+        }
+
+        /**
+         * This will simply load the elements by blocks, then sort them
+         * in-memory, and write the result to temporary files that have to be
+         * merged later.
+         *
+         * @param <T> the type of the elements
+         * @param input data source
+         * @param datalength estimated data volume (in bytes)
+         * @param cmp comparator used to sort the elements
+         * @param serializer how the elements are written
+         * @param sizeEstimator estimated memory usage of an element (in bytes)
+         * @return a list of temporary files
+         * @throws IOException generic IO exception
+         */
+        public static <T> List<File> sortInBatch(Iterator<T> input,
+                long datalength, Comparator<T> cmp, Serializer<T> serializer,
+                ToLongFunction<? super T> sizeEstimator) throws IOException {
+                return sortInBatch(input, datalength, cmp, serializer,
+                        sizeEstimator, ExternalSort.DEFAULTMAXTEMPFILES,
+                        ExternalSort.estimateAvailableMemory(), null, false,
+                        false, true);
+        }
+
+        /**
+         * This will simply load the elements by blocks, then sort them
+         * in-memory, and write the result to temporary files that have to be
+         * merged later.
+         *
+         * @param <T> the type of the elements
+         * @param input data source
+         * @param datalength estimated data volume (in bytes)
+         * @param cmp comparator used to sort the elements
+         * @param serializer how the elements are written
+         * @param sizeEstimator estimated memory usage of an element (in bytes)
+         * @param maxtmpfiles maximal number of temporary files
+         * @param maxMemory maximum amount of memory to use (in bytes), capped
+         *                by what the {@link MemoryBudget} has left
+         * @param tmpdirectory location of the temporary files (set to null for
+         *                default location)
+         * @param distinct Pass <code>true</code> if duplicate elements should
+         *                be discarded.
+         * @param usegzip use gzip compression for the temporary files
+         * @param parallel sort in parallel
+         * @return a list of temporary files
+         * @throws IOException generic IO exception
+         */
+        public static <T> List<File> sortInBatch(Iterator<T> input,
+                long datalength, Comparator<T> cmp, Serializer<T> serializer,
+                ToLongFunction<? super T> sizeEstimator, int maxtmpfiles,
+                long maxMemory, File tmpdirectory, boolean distinct,
+                boolean usegzip, boolean parallel) throws IOException {
+                return sortInBatch(input, datalength, cmp, serializer,
+                        sizeEstimator, maxtmpfiles, maxMemory, tmpdirectory,
+                        distinct, usegzip, parallel, null);
+        }
+
+        /**
+         * This will simply load the elements by blocks, then sort them
+         * in-memory, and write the result to temporary files, owned by a
+         * handle, that have to be merged later.
+         *
+         * @param <T> the type of the elements
+         * @param input data source
+         * @param datalength estimated data volume (in bytes)
+         * @param cmp comparator used to sort the elements
+         * @param serializer how the elements are written
+         * @param sizeEstimator estimated memory usage of an element (in bytes)
+         * @param maxtmpfiles maximal number of temporary files
+         * @param maxMemory maximum amount of memory to use (in bytes), capped
+         *                by what the {@link MemoryBudget} has left
+         * @param tmpdirectory location of the temporary files (set to null for
+         *                default location)
+         * @param distinct Pass <code>true</code> if duplicate elements should
+         *                be discarded.
+         * @param usegzip use gzip compression for the temporary files
+         * @param parallel sort in parallel
+         * @param handle the handle owning the temporary files, or null
+         * @return a list of temporary files
+         * @throws IOException generic IO exception, or a
+         *             {@link SortCancelledException} if the sort was cancelled
+         */
+        public static <T> List<File> sortInBatch(Iterator<T> input,
+                long datalength, Comparator<T> cmp, Serializer<T> serializer,
+                ToLongFunction<? super T> sizeEstimator, int maxtmpfiles,
+                long maxMemory, File tmpdirectory, boolean distinct,
+                boolean usegzip, boolean parallel, SortHandle handle)
+                throws IOException {
+                // without a handle, the runs created so far are deleted on failure
+                final SortHandle owner = handle != null ? handle : new SortHandle();
+                List<File> files = new ArrayList<>();
+                // lower bound on the block size (in bytes), to respect maxtmpfiles
+                long minblocksize = ExternalSort.estimateBestSizeOfBlocks(
+                        datalength, maxtmpfiles, 0);
+                MemoryBudget budget = MemoryBudget.getDefault();
+                long granted = budget.reserve(maxMemory,
+                        ExternalSort.MIN_RESERVED_MEMORY);
+                try {
+                        MemoryAccountant accountant = new MemoryAccountant(granted, 0.5);
+                        long blocksize = Math.max(minblocksize, accountant.blockSize());
+                        List<T> tmplist = new ArrayList<>();
+                        long currentblocksize = 0;
+                        long numRead = 0;
+                        accountant.beginBlock();
+                        while (input.hasNext()) {
+                                if ((++numRead & (SortHandle.CHECK_INTERVAL - 1)) == 0) {
+                                        owner.checkCancelled();
+                                }
+                                T e = input.next();
+                                tmplist.add(e);
+                                currentblocksize += sizeEstimator.applyAsLong(e);
+                                if (currentblocksize >= blocksize) {
+                                        accountant.endBlock(currentblocksize);
+                                        files.add(sortAndSave(tmplist, cmp, serializer,
+                                                tmpdirectory, distinct, usegzip, parallel, owner));
+                                        tmplist.clear();
+                                        currentblocksize = 0;
+                                        blocksize = Math.max(minblocksize, accountant.blockSize());
+                                        accountant.beginBlock();
+                                }
+                        }
+                        if (!tmplist.isEmpty()) {
+                                files.add(sortAndSave(tmplist, cmp, serializer,
+                                        tmpdirectory, distinct, usegzip, parallel, owner));
+                        }
+                } catch (IOException | RuntimeException | Error e) {
+                        owner.close();
+                        throw e;
+                } finally {
+                        budget.release(granted);
+                }
+                return files;
+        }
+
+        /**
+         * This sorts the elements to an output file using default parameters.
+         *
+         * @param <T> the type of the elements
+         * @param input data source
+         * @param output output file, it can be read back with an
+         *                {@link ObjectFileBuffer}
+         * @param cmp comparator used to sort the elements
+         * @param serializer how the elements are written
+         * @param sizeEstimator estimated memory usage of an element (in bytes)
+         * @return The number of elements written.
+         * @throws IOException generic IO exception
+         */
+        public static <T> long sort(Iterator<T> input, File output,
+                Comparator<T> cmp, Serializer<T> serializer,
+                ToLongFunction<? super T> sizeEstimator) throws IOException {
+                return mergeSortedFiles(sortInBatch(input, 0, cmp, serializer,
+                        sizeEstimator), output, cmp, serializer);
+        }
+
+        private static DataInputStream openRun(File f, boolean usegzip,
+                IOBufferPlanner plan) throws IOException {
+                InputStream in = DirectIO.newInputStream(f,
+                        plan.getReadBufferSize(), false);
+                if (usegzip) {
+                        in = new GZIPInputStream(in, plan.getStreamBufferSize());
+                }
+                return new DataInputStream(new BufferedInputStream(in,
+                        plan.getStreamBufferSize()));
+        }
+
+}
@@ -0,0 +1,173 @@
+package com.google.code.externalsorting;
+
+/**
+ * Sizes of the buffers of the streams reading and writing the temporary
+ * files, derived from a memory budget and from the number of runs read at
+ * once (the fan-in).
+ *
+ * A quarter of the budget goes to the output, the rest is shared by the
+ * runs: with a few runs, every stream gets the largest buffer; with a
+ * thousand runs on spinning disks, the reads stay as large as the budget
+ * allows rather than degrading to 8 KB random reads. The merge is
+ * sequential, so the file buffer of each run is its prefetch: it is refilled
+ * in one transfer once consumed.
+ *
+ * Each share is split between the file buffer (half of it) and the smaller
+ * buffers stacked over it: gzip, data streams and decoded characters.
+ */
+public final class IOBufferPlanner {
+
+    /**
+     * Smallest file buffer given to a stream (in bytes).
+     */
+    public static final int MIN_BUFFER_SIZE = DirectIO.ALIGNMENT;
+
+    /**
+     * Largest default budget (in bytes).
+     */
+    public static final long MAX_DEFAULT_BUDGET = 64L << 20;
+
+    private static final int MIN_STREAM_BUFFER_SIZE = 512;
+
+    private static final int MAX_STREAM_BUFFER_SIZE = 64 << 10;
+
+    private final long budget;
+
+    private final int fanIn;
+
+    private final int readBufferSize;
+
+    private final int writeBufferSize;
+
+    private final int streamBufferSize;
+
+    private final int charBufferSize;
+
+    private IOBufferPlanner(long budget, int fanIn, int maxBufferSize) {
+        this.budget = budget;
+        this.fanIn = fanIn;
+        long readShare;
+        long writeShare;
+        if (fanIn == 0) {
+            readShare = 0;
+            writeShare = budget;
+        } else {
+            writeShare = Math.min(budget / 4, 2L * maxBufferSize);
+            readShare = (budget - writeShare) / fanIn;
+        }
+        this.readBufferSize = fileBufferSize(readShare / 2, maxBufferSize);
+        this.writeBufferSize = fileBufferSize(writeShare / 2, maxBufferSize);
+        // the stacked buffers are sized for the runs when merging
+        long share = fanIn == 0 ? writeShare : readShare;
+        this.streamBufferSize = (int) Math.max(MIN_STREAM_BUFFER_SIZE,
+            Math.min(MAX_STREAM_BUFFER_SIZE, share / 8));
+        this.charBufferSize = (int) Math.max(MIN_STREAM_BUFFER_SIZE,
+            Math.min(MAX_STREAM_BUFFER_SIZE, share / 16));
+    }
+
+    /**
+     * Plans the buffers of a sort.
+     *
+     * @param budget the memory for all the buffers (in bytes), or 0 for
+     *            {@link #defaultBudget()}
+     * @param fanIn the number of runs read at once, or 0 when only writing
+     * @param maxBufferSize the largest file buffer of a stream (in bytes)
+     * @return the plan
+     */
+    public static IOBufferPlanner plan(long budget, int fanIn, int maxBufferSize) {
+        if (fanIn < 0) {
+            throw new IllegalArgumentException("negative fan-in: " + fanIn);
+        }
+        return new IOBufferPlanner(budget > 0 ? budget : defaultBudget(), fanIn,
+            Math.max(MIN_BUFFER_SIZE, maxBufferSize));
+    }
+
+    /**
+     * Plans the buffers of a sort from its options.
+     *
+     * @param options the options of the sort
+     * @param fanIn the number of runs read at once, or 0 when only writing
+     * @return the plan
+     */
+    public static IOBufferPlanner plan(ExternalSortOptions options, int fanIn) {
+        return plan(options.getIoMemory(), fanIn, options.getIoBufferSize());
+    }
+
+    /**
+     * Gets the default budget: a sixteenth of the memory available to the
+     * sorts, between 1 MB and {@link #MAX_DEFAULT_BUDGET}.
+     *
+     * @return the budget (in bytes)
+     */
+    public static long defaultBudget() {
+        return Math.max(1L << 20, Math.min(MAX_DEFAULT_BUDGET,
+            MemoryBudget.getDefault().available() / 16));
+    }
+
+    private static int fileBufferSize(long size, int maxBufferSize) {
+        return (int) Math.max(MIN_BUFFER_SIZE,
+            Math.min(maxBufferSize, size) & -DirectIO.ALIGNMENT);
+    }
+
+    /**
+     * Gets the budget of the plan.
+     *
+     * @return the budget (in bytes)
+     */
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Gets the number of runs read at once.
+     *
+     * @return the fan-in
+     */
+    public int getFanIn() {
+        return fanIn;
+    }
+
+    /**
+     * Gets the size of the file buffer of each run being read.
+     *
+     * @return the size (in bytes)
+     */
+    public int getReadBufferSize() {
+        return readBufferSize;
+    }
+
+    /**
+     * Gets the size of the file buffer of the output.
+     *
+     * @return the size (in bytes)
+     */
+    public int getWriteBufferSize() {
+        return writeBufferSize;
+    }
+
+    /**
+     * Gets the size of the byte buffers stacked over the file streams: gzip
+     * compression and data streams.
+     *
+     * @return the size (in bytes)
+     */
+    public int getStreamBufferSize() {
+        return streamBufferSize;
+    }
+
+    /**
+     * Gets the size of the buffers of the readers and writers of characters.
+     *
+     * @return the size (in chars)
+     */
+    public int getCharBufferSize() {
+        return charBufferSize;
+    }
+
+    @Override
+    public String toString() {
+        return "IOBufferPlanner [budget=" + budget + ", fanIn=" + fanIn
+            + ", read=" + readBufferSize + ", write=" + writeBufferSize
+            + ", stream=" + streamBufferSize + ", chars=" + charBufferSize + "]";
+    }
+}
@@ -0,0 +1,37 @@
+package com.google.code.externalsorting;
+
+import java.io.IOException;
+
+/**
+ * General interface for a sorted source of elements that can be merged.
+ * {@link IOStringStack} is the specialization used for lines of text.
+ *
+ * @param <T> the type of the elements
+ */
+public interface IOStack<T> {
+    /**
+     * Closes the underlying resource.
+     * @throws IOException if an I/O error occurs
+     */
+    public void close() throws IOException;
+
+    /**
+     * Checks if the stack is empty.
+     * @return true if empty, false otherwise
+     */
+    public boolean empty();
+
+    /**
+     * Returns the next element without removing it.
+     * @return the next element
+     */
+    public T peek();
+
+    /**
+     * Removes and returns the next element.
+     * @return the next element
+     * @throws IOException if an I/O error occurs
+     */
+    public T pop() throws IOException;
+
+}
@@ -5,8 +5,9 @@ import java.io.IOException;
 /**
  * General interface to abstract away BinaryFileBuffer 
  * so that users of the library can roll their own.
+ * This is the {@link String} specialization of {@link IOStack}.
  */
-public interface IOStringStack {
+public interface IOStringStack extends IOStack<String> {
     /**
      * Closes the underlying resource.
      * @throws IOException if an I/O error occurs
@@ -0,0 +1,727 @@
+package com.google.code.externalsorting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Compares lines on key fields, like the <code>-k</code>, <code>-t</code>,
+ * <code>-n</code>, <code>-g</code>, <code>-h</code>, <code>-r</code>,
+ * <code>-f</code> and <code>-s</code> options of GNU sort.
+ *
+ * A key spans from a field (and optionally a character of it) to another
+ * field, or to the end of the line. Fields are separated by a delimiter, or
+ * by runs of blanks when there is none, in which case leading blanks are not
+ * part of a field. Keys without an ordering option of their own take the
+ * global ones; without any key, the whole line is the key. When all the keys
+ * are equal, the lines are compared as strings, unless the comparator is
+ * stable.
+ *
+ * During run generation, {@link ExternalSort} extracts the keys of each line
+ * once, as a number or as a (case-folded) string, before sorting: the
+ * comparisons of the in-memory sort do not parse the lines again. The merge
+ * likewise keeps the keys of the head line of each run, and the off-heap
+ * runs the keys of their lines.
+ */
+public final class KeyComparator implements Comparator<String> {
+
+    /**
+     * How a key is compared.
+     */
+    public enum Type {
+        /**
+         * As a string.
+         */
+        TEXT,
+        /**
+         * As a decimal number, with an optional sign and fraction; other keys
+         * are zero.
+         */
+        NUMERIC,
+        /**
+         * As a floating-point number, read like strtod in the C locale: a
+         * decimal or hexadecimal number with an optional exponent, an infinity
+         * or a NaN. The keys which do not start with a number come first, then
+         * the NaNs.
+         */
+        GENERAL_NUMERIC,
+        /**
+         * As a number followed by an optional K, M, G, T, P, E, Z or Y suffix,
+         * each a power of 1024, like the output of <code>du -h</code>.
+         */
+        HUMAN_NUMERIC
+    }
+
+    private static final String SUFFIXES = "KMGTPEZY";
+
+    /**
+     * The key of a NaN, which comes after the keys which are not numbers
+     * (Double.NaN): both are NaNs, told apart by their bits.
+     */
+    private static final long NAN_KEY_BITS = 0x7ff8000000000001L;
+
+    private static final double NAN_KEY = Double.longBitsToDouble(NAN_KEY_BITS);
+
+    private final Key[] keys;
+
+    private final int[] slots;
+
+    private final int numbers;
+
+    private final int texts;
+
+    private final char delimiter;
+
+    private final boolean blanks;
+
+    private final boolean reverse;
+
+    private final boolean stable;
+
+    private KeyComparator(Builder builder) {
+        List<Key> list = new ArrayList<>(builder.keys);
+        if (list.isEmpty()) {
+            list.add(new Key(1, 0, 0, 0));
+        }
+        keys = new Key[list.size()];
+        slots = new int[keys.length];
+        int n = 0;
+        int t = 0;
+        for (int i = 0; i < keys.length; i++) {
+            Key k = list.get(i);
+            keys[i] = k.hasOrdering() ? k
+                : k.withOrdering(builder.type, builder.reverse, builder.ignoreCase);
+            slots[i] = keys[i].type == Type.TEXT ? t++ : n++;
+        }
+        numbers = n;
+        texts = t;
+        delimiter = builder.delimiter;
+        blanks = builder.blanks;
+        reverse = builder.reverse;
+        stable = builder.stable;
+    }
+
+    /**
+     * Checks whether lines with equal keys are kept in their input order.
+     *
+     * @return true if there is no last-resort comparison of the lines
+     */
+    public boolean isStable() {
+        return stable;
+    }
+
+    @Override
+    public int compare(String a, String b) {
+        return compareKeys(extract(a), extract(b));
+    }
+
+    /**
+     * Sorts lines, extracting their keys once.
+     *
+     * @param lines the lines, sorted in place
+     * @param parallel whether to use several threads
+     * @param metrics where to count the comparisons, or null
+     */
+    void sort(List<String> lines, boolean parallel, SortMetrics metrics) {
+        Keys[] decorated = new Keys[lines.size()];
+        if (parallel) {
+            Arrays.parallelSetAll(decorated, i -> extract(lines.get(i)));
+        } else {
+            for (int i = 0; i < decorated.length; i++) {
+                decorated[i] = extract(lines.get(i));
+            }
+        }
+        Comparator<Keys> order = this::compareKeys;
+        if (metrics != null) {
+            order = metrics.countComparisons(order);
+        }
+        // both sorts are stable
+        if (parallel) {
+            Arrays.parallelSort(decorated, order);
+        } else {
+            Arrays.sort(decorated, order);
+        }
+        for (int i = 0; i < decorated.length; i++) {
+            lines.set(i, decorated[i].line);
+        }
+    }
+
+    /**
+     * Gets the key comparator behind a comparator, which may count its
+     * calls.
+     *
+     * @param cmp the comparator
+     * @return the key comparator, or null if cmp does not compare keys
+     */
+    static KeyComparator of(Comparator<?> cmp) {
+        Comparator<?> c = SortMetrics.uncounted(cmp);
+        return c instanceof KeyComparator ? (KeyComparator) c : null;
+    }
+
+    /**
+     * Extracts the keys of a line.
+     *
+     * @param line the line
+     * @return the keys
+     */
+    Keys extract(String line) {
+        return extract(line, true);
+    }
+
+    /**
+     * Extracts the keys of a line, possibly without keeping the line, whose
+     * comparison then falls to the caller.
+     *
+     * @param line the line
+     * @param keepLine whether the keys refer to the line
+     * @return the keys
+     */
+    Keys extract(String line, boolean keepLine) {
+        Keys k = new Keys(keepLine ? line : null, numbers == 0 ? null : new double[numbers],
+            texts == 0 ? null : new String[texts]);
+        for (int i = 0; i < keys.length; i++) {
+            Key key = keys[i];
+            int begin = position(line, key.startField, key.startChar, false);
+            int end = key.endField == 0 ? line.length()
+                : position(line, key.endField, key.endChar, true);
+            if (end < begin) {
+                end = begin;
+            }
+            switch (key.type) {
+            case TEXT:
+                String s = line.substring(begin, end);
+                k.texts[slots[i]] = key.ignoreCase ? s.toUpperCase(Locale.ROOT) : s;
+                break;
+            case NUMERIC:
+                k.numbers[slots[i]] = parseNumeric(line, begin, end, false);
+                break;
+            case GENERAL_NUMERIC:
+                k.numbers[slots[i]] = parseGeneral(line, begin, end);
+                break;
+            default:
+                k.numbers[slots[i]] = parseNumeric(line, begin, end, true);
+            }
+        }
+        return k;
+    }
+
+    /**
+     * Compares lines from their keys, as {@link #compare(String, String)}.
+     *
+     * @param a the keys of a line
+     * @param b the keys of another line
+     * @return the comparison of the lines
+     */
+    int compareKeys(Keys a, Keys b) {
+        int c = compareFields(a, b);
+        return c != 0 || stable ? c : breakTie(a.line.compareTo(b.line));
+    }
+
+    /**
+     * Compares lines from their keys, without the last-resort comparison of
+     * the lines.
+     *
+     * @param a the keys of a line
+     * @param b the keys of another line
+     * @return the comparison of the keys
+     */
+    int compareFields(Keys a, Keys b) {
+        for (int i = 0; i < keys.length; i++) {
+            Key key = keys[i];
+            int c;
+            if (key.type == Type.TEXT) {
+                c = a.texts[slots[i]].compareTo(b.texts[slots[i]]);
+            } else {
+                c = compareNumbers(a.numbers[slots[i]], b.numbers[slots[i]]);
+            }
+            if (c != 0) {
+                return key.reverse ? -c : c;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Orders lines whose keys are equal.
+     *
+     * @param lines the comparison of the lines as strings
+     * @return the comparison of the lines, 0 if the comparator is stable
+     */
+    int breakTie(int lines) {
+        if (stable) {
+            return 0;
+        }
+        return reverse ? -lines : lines;
+    }
+
+    /**
+     * Not-a-number stands for the keys which are not numbers: they come
+     * first, then the NaNs.
+     */
+    private static int compareNumbers(double x, double y) {
+        if (Double.isNaN(x)) {
+            return Double.isNaN(y) ? Integer.compare(nanRank(x), nanRank(y)) : -1;
+        }
+        return Double.isNaN(y) ? 1 : Double.compare(x, y);
+    }
+
+    private static int nanRank(double x) {
+        return Double.doubleToRawLongBits(x) == NAN_KEY_BITS ? 1 : 0;
+    }
+
+    /**
+     * Finds where a key starts, or ends, in a line.
+     *
+     * @param field the field, from 1
+     * @param character the character in the field, from 1, or 0 for the
+     *            beginning of the field (or its end, for the end of a key)
+     * @param end whether this is the end of a key, which includes the
+     *            character
+     */
+    private int position(String line, int field, int character, boolean end) {
+        int length = line.length();
+        int start = 0;
+        if (blanks) {
+            for (int f = 1; ; f++) {
+                while (start < length && isBlank(line.charAt(start))) {
+                    start++;
+                }
+                if (f == field) {
+                    break;
+                }
+                while (start < length && !isBlank(line.charAt(start))) {
+                    start++;
+                }
+            }
+        } else {
+            for (int f = 1; f < field && start < length; f++) {
+                int next = line.indexOf(delimiter, start);
+                start = next < 0 ? length : next + 1;
+            }
+        }
+        int stop = start;
+        if (blanks) {
+            while (stop < length && !isBlank(line.charAt(stop))) {
+                stop++;
+            }
+        } else {
+            int next = line.indexOf(delimiter, start);
+            stop = next < 0 ? length : next;
+        }
+        if (character == 0) {
+            return end ? stop : start;
+        }
+        return Math.min(stop, start + character - (end ? 0 : 1));
+    }
+
+    private static boolean isBlank(char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    /**
+     * Only ASCII digits make numbers, as in GNU sort in the C locale: other
+     * digits, such as Arabic-Indic ones, are not parsed by Double.
+     */
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static double parseNumeric(String line, int begin, int end, boolean human) {
+        int i = begin;
+        while (i < end && isBlank(line.charAt(i))) {
+            i++;
+        }
+        boolean negative = i < end && line.charAt(i) == '-';
+        if (negative) {
+            i++;
+        }
+        int digits = i;
+        boolean point = false;
+        while (i < end && (isDigit(line.charAt(i))
+            || (line.charAt(i) == '.' && !point))) {
+            point |= line.charAt(i) == '.';
+            i++;
+        }
+        double value = 0;
+        if (i > digits && !(i == digits + 1 && point)) {
+            value = Double.parseDouble(line.substring(digits, i));
+        }
+        if (human && i < end) {
+            int power = SUFFIXES.indexOf(Character.toUpperCase(line.charAt(i)));
+            value = Math.scalb(value, 10 * (power + 1));
+        }
+        return negative && value != 0 ? -value : value;
+    }
+
+    /**
+     * Parses the longest prefix of a key which is a number, in a single scan
+     * of the grammar of strtod.
+     */
+    private static double parseGeneral(String line, int begin, int end) {
+        int i = begin;
+        while (i < end && isBlank(line.charAt(i))) {
+            i++;
+        }
+        int start = i;
+        boolean negative = false;
+        if (i < end && (line.charAt(i) == '+' || line.charAt(i) == '-')) {
+            negative = line.charAt(i) == '-';
+            i++;
+        }
+        if (end - i >= 3 && line.regionMatches(true, i, "inf", 0, 3)) {
+            return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+        }
+        if (end - i >= 3 && line.regionMatches(true, i, "nan", 0, 3)) {
+            return NAN_KEY;
+        }
+        if (end - i >= 2 && line.charAt(i) == '0'
+            && (line.charAt(i + 1) == 'x' || line.charAt(i + 1) == 'X')) {
+            double hex = parseHex(line, i + 2, end, negative);
+            if (!Double.isNaN(hex)) {
+                return hex;
+            }
+            // only the 0 before the x is a number
+        }
+        int digits = 0;
+        while (i < end && isDigit(line.charAt(i))) {
+            i++;
+            digits++;
+        }
+        if (i < end && line.charAt(i) == '.') {
+            i++;
+            while (i < end && isDigit(line.charAt(i))) {
+                i++;
+                digits++;
+            }
+        }
+        if (digits == 0) {
+            return Double.NaN;
+        }
+        i = exponent(line, i, end, 'e');
+        return Double.parseDouble(line.substring(start, i));
+    }
+
+    /**
+     * Parses a hexadecimal number, after its 0x prefix.
+     *
+     * @return the number, or Double.NaN if there is no hexadecimal digit
+     */
+    private static double parseHex(String line, int begin, int end, boolean negative) {
+        int i = begin;
+        int digits = 0;
+        while (i < end && Character.digit(line.charAt(i), 16) >= 0 && line.charAt(i) < 0x80) {
+            i++;
+            digits++;
+        }
+        if (i < end && line.charAt(i) == '.') {
+            i++;
+            while (i < end && Character.digit(line.charAt(i), 16) >= 0 && line.charAt(i) < 0x80) {
+                i++;
+                digits++;
+            }
+        }
+        if (digits == 0) {
+            return Double.NaN;
+        }
+        int significand = i;
+        i = exponent(line, i, end, 'p');
+        // Java requires the binary exponent of hexadecimal numbers
+        return Double.parseDouble((negative ? "-0x" : "0x") + line.substring(begin, significand)
+            + (i > significand ? line.substring(significand, i) : "p0"));
+    }
+
+    /**
+     * Skips an exponent, which needs at least a digit.
+     *
+     * @return the end of the exponent, or i if there is none
+     */
+    private static int exponent(String line, int i, int end, char marker) {
+        if (i >= end || Character.toLowerCase(line.charAt(i)) != marker) {
+            return i;
+        }
+        int j = i + 1;
+        if (j < end && (line.charAt(j) == '+' || line.charAt(j) == '-')) {
+            j++;
+        }
+        if (j >= end || !isDigit(line.charAt(j))) {
+            return i;
+        }
+        while (j < end && isDigit(line.charAt(j))) {
+            j++;
+        }
+        return j;
+    }
+
+    @Override
+    public String toString() {
+        return "KeyComparator [keys=" + Arrays.toString(keys)
+            + (blanks ? "" : ", delimiter=" + delimiter)
+            + (reverse ? ", reverse" : "") + (stable ? ", stable" : "") + "]";
+    }
+
+    /**
+     * The keys extracted from a line.
+     */
+    static final class Keys {
+        final String line;
+
+        final double[] numbers;
+
+        final String[] texts;
+
+        Keys(String line, double[] numbers, String[] texts) {
+            this.line = line;
+            this.numbers = numbers;
+            this.texts = texts;
+        }
+    }
+
+    /**
+     * A key: where it is in the line and how it is compared.
+     */
+    public static final class Key {
+        private final int startField;
+
+        private final int startChar;
+
+        private final int endField;
+
+        private final int endChar;
+
+        private Type type;
+
+        private boolean reverse;
+
+        private boolean ignoreCase;
+
+        private boolean ordering;
+
+        /**
+         * Constructs a key compared with the global options.
+         *
+         * @param startField the first field, from 1
+         * @param startChar the first character of the first field, from 1,
+         *            or 0 for the whole field
+         * @param endField the last field, or 0 for the end of the line
+         * @param endChar the last character of the last field, or 0 for the
+         *            whole field
+         */
+        public Key(int startField, int startChar, int endField, int endChar) {
+            if (startField < 1 || startChar < 0 || endField < 0 || endChar < 0) {
+                throw new IllegalArgumentException("invalid key position");
+            }
+            this.startField = startField;
+            this.startChar = startChar;
+            this.endField = endField;
+            this.endChar = endChar;
+            this.type = Type.TEXT;
+        }
+
+        /**
+         * Parses a key definition as given to <code>sort -k</code>:
+         * <code>F[.C][,F[.C]][OPTS]</code>, where the options are
+         * <code>n</code>, <code>g</code>, <code>h</code>, <code>r</code> and
+         * <code>f</code>; the <code>b</code> option is accepted and ignored,
+         * since leading blanks are never part of a field split on blanks.
+         *
+         * @param spec the definition, such as <code>2,2n</code>
+         * @return the key
+         */
+        public static Key parse(String spec) {
+            String[] bounds = spec.split(",", -1);
+            if (bounds.length > 2) {
+                throw new IllegalArgumentException("invalid key: " + spec);
+            }
+            int[] start = new int[2];
+            int[] stop = new int[2];
+            String options = parsePosition(bounds[0], start, spec);
+            if (bounds.length == 2) {
+                options += parsePosition(bounds[1], stop, spec);
+            }
+            Key key = new Key(start[0], start[1], stop[0], stop[1]);
+            for (char c : options.toCharArray()) {
+                switch (c) {
+                case 'n':
+                    key.type = Type.NUMERIC;
+                    break;
+                case 'g':
+                    key.type = Type.GENERAL_NUMERIC;
+                    break;
+                case 'h':
+                    key.type = Type.HUMAN_NUMERIC;
+                    break;
+                case 'r':
+                    key.reverse = true;
+                    break;
+                case 'f':
+                    key.ignoreCase = true;
+                    break;
+                case 'b':
+                    continue;
+                default:
+                    throw new IllegalArgumentException("invalid key: " + spec);
+                }
+                key.ordering = true;
+            }
+            return key;
+        }
+
+        private static String parsePosition(String s, int[] position, String spec) {
+            int i = 0;
+            while (i < s.length() && (isDigit(s.charAt(i)) || s.charAt(i) == '.')) {
+                i++;
+            }
+            String[] parts = s.substring(0, i).split("\\.", -1);
+            try {
+                position[0] = Integer.parseInt(parts[0]);
+                position[1] = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid key: " + spec);
+            }
+            if (parts.length > 2) {
+                throw new IllegalArgumentException("invalid key: " + spec);
+            }
+            return s.substring(i);
+        }
+
+        /**
+         * Sets how the key is compared, instead of the global options.
+         *
+         * @param type the type of the key
+         * @param reverse whether to reverse the order
+         * @param ignoreCase whether to fold lower case to upper case
+         * @return a copy of the key
+         */
+        public Key withOrdering(Type type, boolean reverse, boolean ignoreCase) {
+            Key key = new Key(startField, startChar, endField, endChar);
+            key.type = type;
+            key.reverse = reverse;
+            key.ignoreCase = ignoreCase;
+            key.ordering = true;
+            return key;
+        }
+
+        boolean hasOrdering() {
+            return ordering;
+        }
+
+        @Override
+        public String toString() {
+            return startField + (startChar > 0 ? "." + startChar : "")
+                + (endField > 0 ? "," + endField + (endChar > 0 ? "." + endChar : "") : "")
+                + " " + type + (reverse ? " reverse" : "")
+                + (ignoreCase ? " ignoreCase" : "");
+        }
+    }
+
+    /**
+     * Builder of a key comparator.
+     */
+    public static final class Builder {
+        private final List<Key> keys = new ArrayList<>();
+
+        private char delimiter = '\t';
+
+        private boolean blanks = true;
+
+        private Type type = Type.TEXT;
+
+        private boolean reverse = false;
+
+        private boolean ignoreCase = false;
+
+        private boolean stable = false;
+
+        /**
+         * Sets the field delimiter; fields are otherwise separated by runs of
+         * blanks.
+         *
+         * @param value the delimiter
+         * @return this builder
+         */
+        public Builder delimiter(char value) {
+            delimiter = value;
+            blanks = false;
+            return this;
+        }
+
+        /**
+         * Adds a key, compared after the keys already added.
+         *
+         * @param value the key
+         * @return this builder
+         */
+        public Builder key(Key value) {
+            keys.add(value);
+            return this;
+        }
+
+        /**
+         * Adds a key from its definition, see {@link Key#parse(String)}.
+         *
+         * @param spec the definition
+         * @return this builder
+         */
+        public Builder key(String spec) {
+            return key(Key.parse(spec));
+        }
+
+        /**
+         * Sets the type of the keys without options of their own.
+         *
+         * @param value the type
+         * @return this builder
+         */
+        public Builder type(Type value) {
+            type = value;
+            return this;
+        }
+
+        /**
+         * Reverses the order of the keys without options of their own, and
+         * of the last-resort comparison.
+         *
+         * @param value whether to reverse the order
+         * @return this builder
+         */
+        public Builder reverse(boolean value) {
+            reverse = value;
+            return this;
+        }
+
+        /**
+         * Folds lower case to upper case in the keys without options of
+         * their own.
+         *
+         * @param value whether to ignore the case
+         * @return this builder
+         */
+        public Builder ignoreCase(boolean value) {
+            ignoreCase = value;
+            return this;
+        }
+
+        /**
+         * Disables the last-resort comparison of the whole lines: lines with
+         * equal keys are equal.
+         *
+         * @param value whether the comparator is stable
+         * @return this builder
+         */
+        public Builder stable(boolean value) {
+            stable = value;
+            return this;
+        }
+
+        /**
+         * Builds the comparator.
+         *
+         * @return the comparator
+         */
+        public KeyComparator build() {
+            return new KeyComparator(this);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.google.code.externalsorting;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Tournament tree of the heads of sorted runs, for a k-way merge of lines or
+ * of the elements of a {@link GenericExternalSort}.
+ *
+ * Each internal node keeps the run which lost the match played there, and
+ * the root keeps the winner: once the smallest line is popped, its run plays
+ * back up to the root against the losers on its path, at one comparison per
+ * level, where a binary heap compares both children at each level.
+ *
+ * When stable, ties go to the run which comes first in the list, so that
+ * equal lines come out in the order of the runs, then in their order within
+ * each run: no sequence number is stored with the lines.
+ *
+ * With a {@link KeyComparator}, the keys of each head are extracted once,
+ * when its run advances, rather than on every comparison; runs which already
+ * have the keys of their lines give them with {@link KeyedRun}.
+ *
+ * @param <T> the type of the elements
+ */
+final class LoserTree<T> {
+
+    /**
+     * A run which extracts the keys of its head line itself.
+     */
+    interface KeyedRun {
+        /**
+         * Gets the keys of the head line.
+         *
+         * @return the keys, or null if the run does not have them
+         */
+        KeyComparator.Keys peekKeys();
+    }
+
+    private final IOStack<T>[] runs;
+
+    private final T[] heads;
+
+    private final int[] tree;
+
+    private final Comparator<T> cmp;
+
+    private final KeyComparator keys;
+
+    private final KeyComparator.Keys[] headKeys;
+
+    private final Comparator<KeyComparator.Keys> keyOrder;
+
+    private final boolean stable;
+
+    private T last;
+
+    private KeyComparator.Keys lastKeys;
+
+    private T previous;
+
+    private KeyComparator.Keys previousKeys;
+
+    /**
+     * Constructs the tree. The runs which are empty are not closed.
+     *
+     * @param runs the sorted runs, in input order when stable
+     * @param cmp the order of the elements, possibly counting its calls
+     * @param stable whether ties go to the first run
+     */
+    @SuppressWarnings("unchecked")
+    LoserTree(List<? extends IOStack<T>> runs, Comparator<T> cmp, boolean stable) {
+        this.runs = runs.toArray(new IOStack[0]);
+        this.heads = (T[]) new Object[this.runs.length];
+        this.cmp = cmp;
+        this.keys = KeyComparator.of(cmp);
+        this.headKeys = keys == null ? null : new KeyComparator.Keys[heads.length];
+        this.keyOrder = keys == null ? null
+            : SortMetrics.countLike(cmp, keys::compareKeys);
+        this.stable = stable;
+        for (int i = 0; i < heads.length; i++) {
+            setHead(i, this.runs[i].empty() ? null : this.runs[i].peek());
+        }
+        this.tree = new int[Math.max(1, heads.length)];
+        if (heads.length > 0) {
+            tree[0] = build(1);
+        }
+    }
+
+    /**
+     * Plays the matches below a node: leaves are the nodes from k to 2k - 1.
+     */
+    private int build(int node) {
+        if (node >= heads.length) {
+            return node - heads.length;
+        }
+        int a = build(2 * node);
+        int b = build(2 * node + 1);
+        if (beats(a, b)) {
+            tree[node] = b;
+            return a;
+        }
+        tree[node] = a;
+        return b;
+    }
+
+    /**
+     * Checks whether a run wins against another: exhausted runs lose.
+     */
+    private boolean beats(int a, int b) {
+        if (heads[b] == null) {
+            return true;
+        }
+        if (heads[a] == null) {
+            return false;
+        }
+        int c = keys == null ? cmp.compare(heads[a], heads[b])
+            : keyOrder.compare(headKeys[a], headKeys[b]);
+        return c < 0 || (c == 0 && (!stable || a < b));
+    }
+
+    private void setHead(int run, T line) {
+        heads[run] = line;
+        if (keys != null) {
+            KeyComparator.Keys k = null;
+            if (line != null && runs[run] instanceof KeyedRun) {
+                k = ((KeyedRun) runs[run]).peekKeys();
+            }
+            // a key comparator compares strings
+            headKeys[run] = k != null || line == null ? k : keys.extract((String) line);
+        }
+    }
+
+    /**
+     * Checks whether all the runs are exhausted.
+     *
+     * @return true if there is no line left
+     */
+    boolean isEmpty() {
+        return heads.length == 0 || heads[tree[0]] == null;
+    }
+
+    /**
+     * Removes the smallest line. Runs are closed once exhausted, or by
+     * {@link #close()} if reading their next line fails.
+     *
+     * @return the line
+     * @throws IOException generic IO exception
+     */
+    T pop() throws IOException {
+        int winner = tree[0];
+        IOStack<T> run = runs[winner];
+        previous = last;
+        previousKeys = lastKeys;
+        lastKeys = keys == null ? null : headKeys[winner];
+        T line = run.pop();
+        last = line;
+        if (run.empty()) {
+            setHead(winner, null);
+            run.close();
+        } else {
+            setHead(winner, run.peek());
+        }
+        for (int node = (winner + heads.length) >>> 1; node > 0; node >>>= 1) {
+            if (beats(tree[node], winner)) {
+                int loser = winner;
+                winner = tree[node];
+                tree[node] = loser;
+            }
+        }
+        tree[0] = winner;
+        return line;
+    }
+
+    /**
+     * Checks whether the line popped last compares equal to the one popped
+     * before it.
+     *
+     * @return true if the last two lines popped are equal
+     */
+    boolean isDuplicate() {
+        if (previous == null) {
+            return false;
+        }
+        return keys == null ? cmp.compare(last, previous) == 0
+            : keyOrder.compare(lastKeys, previousKeys) == 0;
+    }
+
+    /**
+     * Closes the runs which are not exhausted.
+     *
+     * @throws IOException generic IO exception
+     */
+    void close() throws IOException {
+        for (int i = 0; i < heads.length; i++) {
+            if (heads[i] != null) {
+                heads[i] = null;
+                runs[i].close();
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.google.code.externalsorting;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+/**
+ * Adapts the size of the blocks loaded in memory while generating runs.
+ *
+ * Size estimators such as {@link StringSizeEstimator} must be fast, so they
+ * cannot know whether a string is compact or how the list holding it
+ * grows. Instead, for each block, we compare the estimated size with the
+ * growth of the heap reported by the {@link MemoryMXBean}, and we keep a
+ * correction ratio. The block size (in estimated bytes) is then chosen so
+ * that a block really uses the target fraction of the memory.
+ *
+ * Measurements spanning a garbage collection, or too small to be
+ * meaningful, are ignored. Measurements include the garbage created while
+ * reading, so the correction errs on the side of caution.
+ */
+public final class MemoryAccountant {
+
+    /**
+     * Blocks smaller than this (in estimated bytes) are not measured.
+     */
+    static final long MIN_MEASURED_BLOCK = 1L << 20;
+
+    private static final double MIN_RATIO = 0.25;
+
+    private static final double MAX_RATIO = 4;
+
+    private final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+
+    private final long targetBytes;
+
+    private double ratio = 1;
+
+    private long usedAtStart;
+
+    private long collectionsAtStart;
+
+    /**
+     * Constructs an accountant.
+     *
+     * @param maxMemory maximum amount of memory to use (in bytes)
+     * @param targetFraction fraction of maxMemory that a block should use
+     */
+    public MemoryAccountant(long maxMemory, double targetFraction) {
+        this.targetBytes = (long) (maxMemory * targetFraction);
+    }
+
+    /**
+     * Call before filling a block.
+     */
+    public void beginBlock() {
+        this.collectionsAtStart = collectionCount();
+        this.usedAtStart = memoryBean.getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Call once a block is full, before sorting it.
+     *
+     * @param estimatedBytes the sum of the estimated sizes of the block
+     */
+    public void endBlock(long estimatedBytes) {
+        long used = memoryBean.getHeapMemoryUsage().getUsed();
+        if (estimatedBytes < MIN_MEASURED_BLOCK || collectionCount() != collectionsAtStart) {
+            return;
+        }
+        long delta = used - usedAtStart;
+        if (delta <= 0) {
+            return;
+        }
+        double sample = Math.min(MAX_RATIO, Math.max(MIN_RATIO, (double) delta / estimatedBytes));
+        // react at once when we underestimate, slowly when we overestimate
+        ratio = sample > ratio ? sample : (ratio + sample) / 2;
+    }
+
+    /**
+     * Current ratio between the measured and the estimated memory usage.
+     *
+     * @return the correction ratio
+     */
+    public double getRatio() {
+        return ratio;
+    }
+
+    /**
+     * Size of the next block, in the units of the size estimator.
+     *
+     * @return the block size (in estimated bytes)
+     */
+    public long blockSize() {
+        return (long) (targetBytes / ratio);
+    }
+
+    private static long collectionCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+}
@@ -0,0 +1,169 @@
+package com.google.code.externalsorting;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Memory shared by the sorts running in the same JVM.
+ *
+ * Each sort reserves the memory it needs for its blocks and releases it
+ * once its runs are written, so that concurrent sorts do not oversubscribe
+ * the heap. The amount handed out is bounded by a configurable limit and
+ * by the heap headroom reported by the {@link MemoryPoolMXBean}s: we use
+ * the usage measured after the last collection, so that we never need to
+ * force a garbage collection to get a meaningful figure. When the live
+ * data of a pool, after its last collection, fills most of its maximal
+ * size, only the minimal amounts are granted until the pressure goes away.
+ * The usage thresholds of the pools, which are JVM-wide settings, are left
+ * alone.
+ *
+ * The methods of this class are thread-safe and never block.
+ */
+public final class MemoryBudget {
+
+    /**
+     * Fraction of a pool's maximal size which, filled after a collection,
+     * puts the heap under pressure.
+     */
+    static final double PRESSURE_THRESHOLD = 0.9;
+
+    private static final MemoryBudget DEFAULT = new MemoryBudget(Long.MAX_VALUE);
+
+    private long limit;
+
+    private long reserved = 0;
+
+    /**
+     * Constructs a budget.
+     *
+     * @param limit maximal amount of memory (in bytes) that can be reserved
+     *            at any given time, it is further bounded by the heap headroom
+     */
+    public MemoryBudget(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * The budget used by default by {@link ExternalSort},
+     * {@link GenericExternalSort} and the CSV sort.
+     *
+     * @return the budget shared by the whole JVM
+     */
+    public static MemoryBudget getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Changes the maximal amount of memory that can be reserved.
+     *
+     * @param limit the limit (in bytes)
+     */
+    public synchronized void setLimit(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Gets the maximal amount of memory that can be reserved.
+     *
+     * @return the limit (in bytes)
+     */
+    public synchronized long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Gets the memory currently reserved.
+     *
+     * @return the reserved memory (in bytes)
+     */
+    public synchronized long getReserved() {
+        return reserved;
+    }
+
+    /**
+     * Memory that can be reserved right now.
+     *
+     * @return available memory (in bytes)
+     */
+    public synchronized long available() {
+        if (underPressure()) {
+            return 0;
+        }
+        return Math.max(0, Math.min(limit - reserved, heapHeadroom() - reserved));
+    }
+
+    /**
+     * Reserves memory. It grants as much of the desired memory as is
+     * available, but never less than the minimum, even if less is desired:
+     * a sort must always be able to make progress. The desired amount is
+     * typically the maximal memory set by the caller, so that an explicit
+     * limit is capped by what this budget has left.
+     *
+     * @param desired the memory we would like to use (in bytes)
+     * @param minimum the memory we cannot do without (in bytes)
+     * @return the memory granted (in bytes), to be released with {@link #release}
+     */
+    public synchronized long reserve(long desired, long minimum) {
+        long granted = Math.max(minimum, Math.min(desired, available()));
+        reserved += granted;
+        return granted;
+    }
+
+    /**
+     * Gives back memory obtained with {@link #reserve}.
+     *
+     * @param bytes the memory to release (in bytes)
+     */
+    public synchronized void release(long bytes) {
+        reserved = Math.max(0, reserved - bytes);
+    }
+
+    /**
+     * Maximal heap minus the live data, as measured after the last
+     * collection of each heap pool.
+     *
+     * @return the heap headroom (in bytes)
+     */
+    static long heapHeadroom() {
+        long live = 0;
+        for (MemoryPoolMXBean pool : heapPools()) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage == null) {
+                usage = pool.getUsage();
+            }
+            live += usage.getUsed();
+        }
+        return Runtime.getRuntime().maxMemory() - live;
+    }
+
+    /**
+     * Checks whether a heap pool is nearly full of live data, as measured
+     * after its last collection.
+     *
+     * @return true if the heap is under pressure
+     */
+    static boolean underPressure() {
+        for (MemoryPoolMXBean pool : heapPools()) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage != null && usage.getMax() > 0
+                    && usage.getUsed() >= usage.getMax() * PRESSURE_THRESHOLD) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        List<MemoryPoolMXBean> answer = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                answer.add(pool);
+            }
+        }
+        return answer;
+    }
+}
@@ -0,0 +1,182 @@
+package com.google.code.externalsorting;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.PlatformManagedObject;
+import java.lang.reflect.Method;
+
+/**
+ * Describes how the running JVM lays out objects in memory: reference
+ * size (compressed oops or not), object header size, alignment and
+ * whether strings are compact (Java 9 and above store Latin-1 strings
+ * with one byte per character).
+ *
+ * The values are detected once, at class initialization, from the
+ * HotSpot diagnostic bean when it is available. Otherwise we fall back
+ * on conservative defaults that overestimate rather than underestimate.
+ */
+public final class MemoryLayout {
+
+    /**
+     * Whether the JVM uses 64-bit addresses.
+     */
+    public static final boolean IS_64_BIT_JVM;
+
+    /**
+     * Whether object references are compressed to 4 bytes on a 64-bit JVM.
+     */
+    public static final boolean COMPRESSED_OOPS;
+
+    /**
+     * Whether Latin-1 strings use a single byte per character.
+     */
+    public static final boolean COMPACT_STRINGS;
+
+    /**
+     * Size of an object reference (in bytes).
+     */
+    public static final int REFERENCE_SIZE;
+
+    /**
+     * Size of the header of an ordinary object (in bytes).
+     */
+    public static final int OBJECT_HEADER;
+
+    /**
+     * Size of the header of an array, including its length (in bytes).
+     */
+    public static final int ARRAY_HEADER;
+
+    /**
+     * Objects are padded to a multiple of this value (in bytes).
+     */
+    public static final int OBJECT_ALIGNMENT;
+
+    /**
+     * Size of a {@link String} instance, excluding its backing array.
+     */
+    public static final int STRING_SHALLOW_SIZE;
+
+    private MemoryLayout() {
+    }
+
+    static {
+        String arch = System.getProperty("sun.arch.data.model");
+        IS_64_BIT_JVM = arch == null || !arch.contains("32");
+        String oops = vmOption("UseCompressedOops");
+        String classPointers = vmOption("UseCompressedClassPointers");
+        if (!IS_64_BIT_JVM) {
+            COMPRESSED_OOPS = false;
+        } else if (oops != null) {
+            COMPRESSED_OOPS = Boolean.parseBoolean(oops);
+        } else {
+            // we cannot tell, assume the larger references
+            COMPRESSED_OOPS = false;
+        }
+        boolean compressedClassPointers = classPointers != null
+            ? Boolean.parseBoolean(classPointers) : COMPRESSED_OOPS;
+        String alignment = vmOption("ObjectAlignmentInBytes");
+        OBJECT_ALIGNMENT = alignment != null ? Integer.parseInt(alignment) : 8;
+        String compact = vmOption("CompactStrings");
+        COMPACT_STRINGS = compact != null && Boolean.parseBoolean(compact);
+        REFERENCE_SIZE = IS_64_BIT_JVM && !COMPRESSED_OOPS ? 8 : 4;
+        if (!IS_64_BIT_JVM) {
+            OBJECT_HEADER = 8;
+        } else {
+            OBJECT_HEADER = compressedClassPointers ? 12 : 16;
+        }
+        ARRAY_HEADER = align(OBJECT_HEADER + 4);
+        // value reference, int hash, and on Java 9 and above a byte coder
+        // and a boolean hashIsZero
+        STRING_SHALLOW_SIZE = align(OBJECT_HEADER + REFERENCE_SIZE + 4 + 2);
+    }
+
+    /**
+     * Rounds the size up to the object alignment.
+     *
+     * @param size a size in bytes
+     * @return the padded size in bytes
+     */
+    public static long align(long size) {
+        return (size + OBJECT_ALIGNMENT - 1) / OBJECT_ALIGNMENT * OBJECT_ALIGNMENT;
+    }
+
+    private static int align(int size) {
+        return (int) align((long) size);
+    }
+
+    /**
+     * Size of an array of primitive values.
+     *
+     * @param length number of elements
+     * @param elementSize size of each element (in bytes)
+     * @return the size in bytes
+     */
+    public static long arraySize(int length, int elementSize) {
+        return align(ARRAY_HEADER + (long) length * elementSize);
+    }
+
+    /**
+     * Upper bound on the size of a {@link String} of the given length,
+     * including its backing array, assuming two bytes per character.
+     *
+     * @param length number of characters
+     * @return the size in bytes
+     */
+    public static long stringSize(int length) {
+        return STRING_SHALLOW_SIZE + arraySize(length, 2);
+    }
+
+    /**
+     * Size of a {@link String}, including its backing array.
+     *
+     * @param s the string
+     * @return the size in bytes
+     */
+    public static long stringSize(String s) {
+        return STRING_SHALLOW_SIZE + arraySize(s.length(), charSize(s));
+    }
+
+    /**
+     * Number of bytes used by each character of a string: one if strings are
+     * compact and this one is Latin-1, two otherwise. The characters are
+     * scanned up to the first one beyond Latin-1.
+     *
+     * @param s the string
+     * @return 1 or 2
+     */
+    public static int charSize(CharSequence s) {
+        if (!COMPACT_STRINGS) {
+            return 2;
+        }
+        for (int i = 0, n = s.length(); i < n; i++) {
+            if (s.charAt(i) > 0xFF) {
+                return 2;
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Fetches the value of a HotSpot VM option.
+     *
+     * @param name the option
+     * @return the value, or null if it cannot be determined
+     */
+    static String vmOption(String name) {
+        try {
+            @SuppressWarnings("unchecked")
+            Class<? extends PlatformManagedObject> beanClass = (Class<? extends PlatformManagedObject>) Class
+                .forName("com.sun.management.HotSpotDiagnosticMXBean");
+            Object bean = ManagementFactory.getPlatformMXBean(beanClass);
+            if (bean == null) {
+                return null;
+            }
+            Method getVMOption = beanClass.getMethod("getVMOption", String.class);
+            Object option = getVMOption.invoke(bean, name);
+            return (String) option.getClass().getMethod("getValue").invoke(option);
+        } catch (Exception | LinkageError e) {
+            // not a HotSpot JVM, or the option does not exist (e.g., CompactStrings on Java 8)
+            return null;
+        }
+    }
+}
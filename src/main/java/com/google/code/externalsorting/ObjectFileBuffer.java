@@ -0,0 +1,123 @@
+package com.google.code.externalsorting;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Thin wrapper on top of a DataInputStream which keeps the last
+ * deserialized element in memory. Elements are only deserialized when
+ * the previous one has been consumed.
+ *
+ * The end of the stream ends the elements only between two elements: a
+ * stream ending within an element, such as a truncated run, is an error.
+ *
+ * @param <T> the type of the elements
+ */
+public final class ObjectFileBuffer<T> implements IOStack<T> {
+    /**
+     * Constructs an ObjectFileBuffer reading from the given stream.
+     * @param in the stream to read from
+     * @param serializer how the elements were written
+     * @throws IOException if an I/O error occurs
+     */
+    public ObjectFileBuffer(DataInputStream in, Serializer<T> serializer) throws IOException {
+        this.in = in;
+        this.counter = new CountingInputStream(in);
+        this.data = new DataInputStream(counter);
+        this.serializer = serializer;
+        reload();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.in.close();
+    }
+
+    @Override
+    public boolean empty() {
+        return this.empty;
+    }
+
+    @Override
+    public T peek() {
+        return this.cache;
+    }
+
+    @Override
+    public T pop() throws IOException {
+        T answer = peek();
+        reload();
+        return answer;
+    }
+
+    private void reload() throws IOException {
+        long start = this.counter.count;
+        try {
+            this.cache = this.serializer.read(this.data);
+        } catch (EOFException eof) {
+            if (this.counter.count != start) {
+                throw new IOException("truncated element at byte " + start
+                    + " of the stream", eof);
+            }
+            this.cache = null;
+            this.empty = true;
+        }
+    }
+
+    private final DataInputStream in;
+
+    private final CountingInputStream counter;
+
+    private final DataInputStream data;
+
+    private final Serializer<T> serializer;
+
+    private T cache;
+
+    private boolean empty = false;
+
+    /**
+     * Counts the bytes read, to tell where the elements begin.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,397 @@
+package com.google.code.externalsorting;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Holds a block of lines outside of the Java heap.
+ *
+ * The lines are encoded in direct {@link ByteBuffer}s and only an index
+ * (offset and length of each line) lives on the heap. Sorting permutes the
+ * index, and the sorted lines are written out by copying slices of the
+ * direct buffers to a channel. The direct buffers are reused from one run
+ * to the next and freed as soon as the buffer is closed, rather than when
+ * the garbage collector gets to them.
+ *
+ * When the comparator is {@link ExternalSort#defaultcomparator} and the
+ * character set is UTF-8, the lines are compared without decoding them.
+ * With a {@link KeyComparator}, the keys of each line are extracted once
+ * before the sort and kept on the heap until the buffer is cleared. Other
+ * comparators need the lines as strings: they are decoded on each
+ * comparison, which is slower.
+ */
+public final class OffHeapRunBuffer implements AutoCloseable {
+
+    /**
+     * Maximal size of a single direct buffer (in bytes). A line cannot be
+     * longer than that once encoded.
+     */
+    static final int MAX_CHUNK_SIZE = 1 << 28;
+
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    private final Charset cs;
+
+    private final CharsetEncoder encoder;
+
+    private final byte[] newline;
+
+    private final long capacity;
+
+    private final int chunkSize;
+
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+
+    private int currentChunk = 0;
+
+    private long[] offsets = new long[1024];
+
+    private int[] lengths = new int[1024];
+
+    private int[] order = null;
+
+    private KeyComparator.Keys[] keys = null;
+
+    private KeyComparator keyComparator = null;
+
+    private Comparator<KeyComparator.Keys> keyOrder = null;
+
+    private int size = 0;
+
+    private ByteBuffer writeBuffer;
+
+    /**
+     * Constructs a buffer. No off-heap memory is allocated until lines are
+     * added.
+     *
+     * @param capacity maximal off-heap memory to use (in bytes)
+     * @param cs character set used to encode the lines
+     */
+    public OffHeapRunBuffer(long capacity, Charset cs) {
+        this.capacity = capacity;
+        this.chunkSize = (int) Math.max(1, Math.min(capacity, MAX_CHUNK_SIZE));
+        this.cs = cs;
+        this.encoder = cs.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.newline = System.lineSeparator().getBytes(cs);
+    }
+
+    /**
+     * Gets the number of lines in the buffer.
+     *
+     * @return the number of lines
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Heap memory used by the index (in bytes).
+     *
+     * @return the size of the index
+     */
+    public long indexSize() {
+        return MemoryLayout.arraySize(offsets.length, 8) + 2 * MemoryLayout.arraySize(lengths.length, 4);
+    }
+
+    /**
+     * Appends a line.
+     *
+     * @param line the line to append
+     * @return false if the buffer is full, in which case the line was not
+     *         added
+     * @throws IOException if the line is longer than a chunk
+     */
+    public boolean add(String line) throws IOException {
+        CharBuffer in = CharBuffer.wrap(line);
+        while (true) {
+            if (currentChunk == chunks.size()) {
+                if ((long) chunks.size() * chunkSize + chunkSize > capacity && !chunks.isEmpty()) {
+                    return false;
+                }
+                chunks.add(ByteBuffer.allocateDirect(chunkSize));
+            }
+            ByteBuffer chunk = chunks.get(currentChunk);
+            int start = chunk.position();
+            encoder.reset();
+            CoderResult result = encoder.encode(in, chunk, true);
+            if (!result.isOverflow()) {
+                result = encoder.flush(chunk);
+            }
+            if (!result.isOverflow()) {
+                if (size == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, size * 2);
+                    lengths = Arrays.copyOf(lengths, size * 2);
+                }
+                offsets[size] = (long) currentChunk * chunkSize + start;
+                lengths[size] = chunk.position() - start;
+                size++;
+                return true;
+            }
+            // does not fit: try again at the beginning of the next chunk
+            chunk.position(start);
+            in.rewind();
+            if (start == 0) {
+                throw new IOException("line too long for an off-heap buffer: " + line.length() + " characters");
+            }
+            currentChunk++;
+        }
+    }
+
+    /**
+     * Sorts the lines. The sort is stable.
+     *
+     * @param cmp comparator used to sort the lines
+     */
+    public void sort(Comparator<String> cmp) {
+        extractKeys(cmp);
+        order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        int[] tmp = new int[size];
+        mergeSort(order, tmp, 0, size, cmp);
+    }
+
+    private void mergeSort(int[] a, int[] tmp, int from, int to, Comparator<String> cmp) {
+        if (to - from < 16) {
+            for (int i = from + 1; i < to; i++) {
+                int v = a[i];
+                int j = i - 1;
+                while (j >= from && compare(a[j], v, cmp) > 0) {
+                    a[j + 1] = a[j];
+                    j--;
+                }
+                a[j + 1] = v;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(a, tmp, from, mid, cmp);
+        mergeSort(a, tmp, mid, to, cmp);
+        if (compare(a[mid - 1], a[mid], cmp) <= 0) {
+            return;
+        }
+        System.arraycopy(a, from, tmp, from, to - from);
+        int i = from, j = mid, k = from;
+        while (i < mid && j < to) {
+            a[k++] = compare(tmp[j], tmp[i], cmp) < 0 ? tmp[j++] : tmp[i++];
+        }
+        while (i < mid) {
+            a[k++] = tmp[i++];
+        }
+        while (j < to) {
+            a[k++] = tmp[j++];
+        }
+    }
+
+    private void extractKeys(Comparator<String> cmp) {
+        KeyComparator k = KeyComparator.of(cmp);
+        if (k == null) {
+            keys = null;
+            return;
+        }
+        // the lines are not kept with their keys: ties decode them
+        keys = new KeyComparator.Keys[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = k.extract(get(i), false);
+        }
+        keyComparator = k;
+        keyOrder = SortMetrics.countLike(cmp, k::compareFields);
+    }
+
+    int compare(int i, int j, Comparator<String> cmp) {
+        if (keys != null) {
+            int c = keyOrder.compare(keys[i], keys[j]);
+            if (c != 0) {
+                return c;
+            }
+            return keyComparator.breakTie(keyComparator.isStable() ? 0 : compareLines(i, j));
+        }
+        if (cmp == ExternalSort.defaultcomparator) {
+            return compareLines(i, j);
+        }
+        return cmp.compare(get(i), get(j));
+    }
+
+    /**
+     * Compares two lines as strings.
+     */
+    private int compareLines(int i, int j) {
+        if (cs.equals(StandardCharsets.UTF_8)) {
+            return compareUtf8(i, j);
+        }
+        return get(i).compareTo(get(j));
+    }
+
+    /**
+     * Compares two UTF-8 lines in the order of {@link String#compareTo},
+     * that is, by UTF-16 code units.
+     */
+    private int compareUtf8(int i, int j) {
+        ByteBuffer a = chunks.get((int) (offsets[i] / chunkSize));
+        ByteBuffer b = chunks.get((int) (offsets[j] / chunkSize));
+        int ai = (int) (offsets[i] % chunkSize);
+        int bi = (int) (offsets[j] % chunkSize);
+        int n = Math.min(lengths[i], lengths[j]);
+        for (int k = 0; k < n; k++) {
+            int x = a.get(ai + k) & 0xFF;
+            int y = b.get(bi + k) & 0xFF;
+            if (x != y) {
+                // Supplementary characters (lead bytes 0xF0 and above) are
+                // surrogate pairs in UTF-16, which sort before U+E000-U+FFFF
+                // (lead bytes 0xEE and 0xEF).
+                if (x >= 0xEE && y >= 0xEE) {
+                    x = x >= 0xF0 ? x - 0x10 : x;
+                    y = y >= 0xF0 ? y - 0x10 : y;
+                }
+                return x - y;
+            }
+        }
+        return lengths[i] - lengths[j];
+    }
+
+    /**
+     * Decodes a line.
+     *
+     * @param i index of the line, in insertion order
+     * @return the line
+     */
+    String get(int i) {
+        ByteBuffer slice = slice(i);
+        return cs.decode(slice).toString();
+    }
+
+    private ByteBuffer slice(int i) {
+        ByteBuffer chunk = chunks.get((int) (offsets[i] / chunkSize)).duplicate();
+        int start = (int) (offsets[i] % chunkSize);
+        chunk.limit(start + lengths[i]);
+        chunk.position(start);
+        return chunk;
+    }
+
+    /**
+     * Writes the lines, in sorted order if {@link #sort} was called, each
+     * followed by a line separator.
+     *
+     * @param out where the lines are written
+     * @param cmp comparator used to sort the lines
+     * @param distinct Pass <code>true</code> if duplicate lines should be
+     *            discarded.
+     * @return the number of lines written
+     * @throws IOException generic IO exception
+     */
+    public long writeTo(WritableByteChannel out, Comparator<String> cmp, boolean distinct) throws IOException {
+        if (writeBuffer == null) {
+            writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        }
+        long written = 0;
+        int last = -1;
+        for (int k = 0; k < size; k++) {
+            int i = order == null ? k : order[k];
+            // Skip duplicate lines
+            if (distinct && last >= 0 && compare(i, last, cmp) == 0) {
+                continue;
+            }
+            ByteBuffer slice = slice(i);
+            if (slice.remaining() + newline.length > writeBuffer.remaining()) {
+                drain(out);
+            }
+            if (slice.remaining() + newline.length > writeBuffer.remaining()) {
+                // larger than the write buffer: write the slice directly
+                while (slice.hasRemaining()) {
+                    out.write(slice);
+                }
+            } else {
+                writeBuffer.put(slice);
+            }
+            writeBuffer.put(newline);
+            last = i;
+            written++;
+        }
+        drain(out);
+        return written;
+    }
+
+    private void drain(WritableByteChannel out) throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            out.write(writeBuffer);
+        }
+        writeBuffer.clear();
+    }
+
+    /**
+     * Empties the buffer, keeping the off-heap memory for the next run.
+     */
+    public void clear() {
+        for (ByteBuffer chunk : chunks) {
+            chunk.clear();
+        }
+        currentChunk = 0;
+        size = 0;
+        order = null;
+        keys = null;
+    }
+
+    /**
+     * Frees the off-heap memory.
+     */
+    @Override
+    public void close() {
+        for (ByteBuffer chunk : chunks) {
+            free(chunk);
+        }
+        chunks.clear();
+        if (writeBuffer != null) {
+            free(writeBuffer);
+            writeBuffer = null;
+        }
+        currentChunk = 0;
+        size = 0;
+        order = null;
+        keys = null;
+    }
+
+    /**
+     * Releases the memory of a direct buffer right away. On Java 9 and
+     * above we use Unsafe.invokeCleaner, on Java 8 the cleaner of the
+     * buffer. If neither is accessible, the memory is released when the
+     * buffer is garbage collected.
+     */
+    static void free(ByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (NoSuchMethodException java8) {
+            try {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            } catch (Exception | LinkageError e) {
+                // left to the garbage collector
+            }
+        } catch (Exception | LinkageError e) {
+            // left to the garbage collector
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.google.code.externalsorting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Approximate distribution of the lines of a sort, in bounded memory.
+ *
+ * The sketch is a sorted list of weighted lines, each standing for the lines
+ * of the input up to it. It is fed with the sparse index of every run, which
+ * is already a sorted and regular sample of the run, so that building it
+ * costs a merge of a few thousand lines per run. When it grows past its
+ * capacity, it keeps the lines at evenly spaced ranks. The error on a rank is
+ * about the number of lines divided by the capacity, plus the interval of the
+ * run indexes.
+ */
+public final class QuantileSketch {
+
+    /**
+     * Default number of lines kept.
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final Comparator<String> cmp;
+
+    private final int capacity;
+
+    private List<String> values = new ArrayList<>();
+
+    private long[] weights = new long[0];
+
+    private long count = 0;
+
+    /**
+     * Constructs an empty sketch.
+     *
+     * @param cmp the order of the lines
+     * @param capacity the number of lines kept, at most
+     */
+    public QuantileSketch(Comparator<String> cmp, int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("capacity too small: " + capacity);
+        }
+        this.cmp = cmp;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Adds the index of a run.
+     *
+     * @param index the index
+     */
+    void add(RunIndex index) {
+        List<String> lines = index.getLines();
+        if (lines.isEmpty()) {
+            return;
+        }
+        long[] w = new long[lines.size()];
+        Arrays.fill(w, index.getInterval());
+        // the last indexed line stands for the lines up to the end of the run
+        w[w.length - 1] = index.getLineCount() - (long) (w.length - 1) * index.getInterval();
+        merge(lines, w);
+    }
+
+    private void merge(List<String> lines, long[] w) {
+        List<String> mergedValues = new ArrayList<>(values.size() + lines.size());
+        long[] mergedWeights = new long[values.size() + lines.size()];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < values.size() || j < lines.size()) {
+            if (j == lines.size()
+                || (i < values.size() && cmp.compare(values.get(i), lines.get(j)) <= 0)) {
+                mergedValues.add(values.get(i));
+                mergedWeights[k++] = weights[i++];
+            } else {
+                mergedValues.add(lines.get(j));
+                mergedWeights[k++] = w[j++];
+            }
+        }
+        for (long x : w) {
+            count += x;
+        }
+        values = mergedValues;
+        weights = mergedWeights;
+        if (values.size() > capacity) {
+            compact();
+        }
+    }
+
+    /**
+     * Keeps the lines at evenly spaced ranks, each standing for the lines
+     * since the previous one kept.
+     */
+    private void compact() {
+        List<String> keptValues = new ArrayList<>(capacity);
+        long[] keptWeights = new long[capacity];
+        int n = 0;
+        long cumulative = 0;
+        long previous = 0;
+        int next = 1;
+        for (int i = 0; i < values.size() && next <= capacity; i++) {
+            cumulative += weights[i];
+            long target = count * next / capacity;
+            if (cumulative >= target) {
+                keptValues.add(values.get(i));
+                keptWeights[n++] = cumulative - previous;
+                previous = cumulative;
+                while (next <= capacity && count * next / capacity <= cumulative) {
+                    next++;
+                }
+            }
+        }
+        values = keptValues;
+        weights = Arrays.copyOf(keptWeights, n);
+    }
+
+    /**
+     * Gets the number of lines summarized.
+     *
+     * @return the number of lines
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Estimates a quantile.
+     *
+     * @param q the fraction of the lines, between 0 and 1
+     * @return a line with about <code>q * getCount()</code> lines before or
+     *         equal to it, or null if the sketch is empty
+     */
+    public String quantile(double q) {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException("not a fraction: " + q);
+        }
+        if (values.isEmpty()) {
+            return null;
+        }
+        long target = (long) Math.ceil(q * count);
+        long cumulative = 0;
+        for (int i = 0; i < values.size(); i++) {
+            cumulative += weights[i];
+            if (cumulative >= target) {
+                return values.get(i);
+            }
+        }
+        return values.get(values.size() - 1);
+    }
+
+    /**
+     * Estimates the rank of a line.
+     *
+     * @param line the line
+     * @return the fraction of the lines less than it, between 0 and 1
+     */
+    public double rank(String line) {
+        if (count == 0) {
+            return 0;
+        }
+        // a weighted line stands for the lines before it, down to the previous
+        long less = 0;
+        for (int i = 0; i < values.size() && cmp.compare(values.get(i), line) < 0; i++) {
+            less += weights[i];
+        }
+        return (double) less / count;
+    }
+
+    /**
+     * Estimates the splitters cutting the lines into partitions of about the
+     * same size.
+     *
+     * @param partitions the number of partitions
+     * @return the <code>partitions - 1</code> splitters, in ascending order,
+     *         or none if the sketch is empty
+     */
+    public List<String> splitters(int partitions) {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("no partition");
+        }
+        List<String> splitters = new ArrayList<>(partitions - 1);
+        if (values.isEmpty()) {
+            return splitters;
+        }
+        for (int p = 1; p < partitions; p++) {
+            splitters.add(quantile((double) p / partitions));
+        }
+        return splitters;
+    }
+
+    @Override
+    public String toString() {
+        return "QuantileSketch [count=" + count + ", size=" + values.size()
+            + ", capacity=" + capacity + "]";
+    }
+}
@@ -0,0 +1,84 @@
+package com.google.code.externalsorting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Uniform sample of the lines read by a sort, in bounded memory.
+ *
+ * We use Li's algorithm L: once the reservoir is full, the number of lines to
+ * skip before the next replacement is drawn at random, so that a line costs a
+ * comparison of counters and the random draws are logarithmic in the number
+ * of lines.
+ */
+final class ReservoirSample {
+
+    private final int size;
+
+    private final List<String> reservoir;
+
+    private final Random random;
+
+    private long seen = 0;
+
+    private long next;
+
+    private double w;
+
+    /**
+     * Constructs an empty sample.
+     *
+     * @param size the number of lines kept
+     * @param seed the seed of the random draws
+     */
+    ReservoirSample(int size, long seed) {
+        this.size = size;
+        this.reservoir = new ArrayList<>(Math.min(size, 1 << 16));
+        this.random = new Random(seed);
+        this.w = Math.exp(Math.log(random.nextDouble()) / Math.max(1, size));
+        // index of the next line to replace
+        this.next = size - 1;
+        skip();
+    }
+
+    private void skip() {
+        double gap = Math.floor(Math.log(random.nextDouble()) / Math.log(1 - w)) + 1;
+        next = gap < Long.MAX_VALUE - next ? next + (long) gap : Long.MAX_VALUE;
+    }
+
+    /**
+     * Offers a line to the sample.
+     *
+     * @param line the line
+     */
+    void offer(String line) {
+        long i = seen++;
+        if (i < size) {
+            reservoir.add(line);
+        } else if (i == next && size > 0) {
+            reservoir.set(random.nextInt(size), line);
+            w *= Math.exp(Math.log(random.nextDouble()) / size);
+            skip();
+        }
+    }
+
+    /**
+     * Gets the sample.
+     *
+     * @return the lines kept, in no particular order
+     */
+    List<String> getLines() {
+        return Collections.unmodifiableList(reservoir);
+    }
+
+    /**
+     * Gets the number of lines offered.
+     *
+     * @return the number of lines
+     */
+    long getSeen() {
+        return seen;
+    }
+}
@@ -0,0 +1,178 @@
+package com.google.code.externalsorting;
+
+import java.io.Flushable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Sparse index of a sorted run, built while the run is written: every few
+ * lines, the line and, for an uncompressed run, the offset where it starts.
+ *
+ * The indexed lines are a regular sample of the run, each standing for
+ * {@link #getInterval()} lines, from which the splitters of a partitioned
+ * merge are estimated. The offsets let each partition start reading the run
+ * near its lower bound rather than from the beginning.
+ */
+final class RunIndex {
+
+    /**
+     * Number of lines indexed in a run, at most.
+     */
+    static final int SAMPLES_PER_RUN = 1024;
+
+    private final int interval;
+
+    private final List<String> lines = new ArrayList<>();
+
+    private long[] offsets;
+
+    private PositionOutputStream position;
+
+    private long lineCount = 0;
+
+    private String lastLine;
+
+    /**
+     * Constructs the index of a run being written.
+     *
+     * @param expectedLines the number of lines of the run, at most
+     */
+    RunIndex(int expectedLines) {
+        this.interval = Math.max(1, expectedLines / SAMPLES_PER_RUN);
+    }
+
+    /**
+     * Records the offsets of the indexed lines, as written to a stream.
+     * Compressed runs cannot be read from an offset: their index only keeps
+     * the lines.
+     *
+     * @param out the stream of the uncompressed run
+     * @return the stream to write the run to
+     */
+    OutputStream track(OutputStream out) {
+        position = new PositionOutputStream(out);
+        offsets = new long[16];
+        return position;
+    }
+
+    /**
+     * Records a line about to be written.
+     *
+     * @param line the line
+     * @param writer the writer of the run, flushed before an indexed line so
+     *            that its offset is known
+     * @throws IOException generic IO exception
+     */
+    void record(String line, Flushable writer) throws IOException {
+        lastLine = line;
+        if (lineCount++ % interval != 0) {
+            return;
+        }
+        if (position != null) {
+            writer.flush();
+            if (lines.size() == offsets.length) {
+                offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+            }
+            offsets[lines.size()] = position.count;
+        }
+        lines.add(line);
+    }
+
+    /**
+     * Gets the number of lines of the run.
+     *
+     * @return the number of lines written
+     */
+    long getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * Gets the last line of the run.
+     *
+     * @return the last line written, or null
+     */
+    String getLastLine() {
+        return lastLine;
+    }
+
+    /**
+     * Gets the number of lines of the run each indexed line stands for.
+     *
+     * @return the interval between indexed lines
+     */
+    int getInterval() {
+        return interval;
+    }
+
+    /**
+     * Gets the indexed lines.
+     *
+     * @return the lines, in the order of the run
+     */
+    List<String> getLines() {
+        return Collections.unmodifiableList(lines);
+    }
+
+    /**
+     * Finds where to start reading the run to get all its lines not less than
+     * a bound.
+     *
+     * @param lower the bound, or null to read the whole run
+     * @param cmp the comparator the run was sorted with
+     * @return the offset of a line starting before the first line not less
+     *         than the bound
+     */
+    long startOffset(String lower, Comparator<String> cmp) {
+        if (lower == null || position == null) {
+            return 0;
+        }
+        // last indexed line less than the bound: the lines equal to the bound
+        // may start right after it
+        int lo = 0;
+        int hi = lines.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cmp.compare(lines.get(mid), lower) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo == 0 ? 0 : offsets[lo - 1];
+    }
+
+    /**
+     * Counts the bytes written. Flushes are not forwarded: the file stream
+     * keeps its large buffer.
+     */
+    private static final class PositionOutputStream extends FilterOutputStream {
+        long count = 0;
+
+        PositionOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() {
+        }
+    }
+}
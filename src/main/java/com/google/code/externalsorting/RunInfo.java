@@ -0,0 +1,68 @@
+package com.google.code.externalsorting;
+
+import java.io.File;
+
+/**
+ * Metadata of a sorted run, gathered while it was written.
+ *
+ * @see SortedRuns#getRunInfos()
+ */
+public final class RunInfo {
+
+    private final File file;
+
+    private final long lineCount;
+
+    private final String min;
+
+    private final String max;
+
+    RunInfo(File file, RunIndex index) {
+        this.file = file;
+        this.lineCount = index.getLineCount();
+        this.min = index.getLines().isEmpty() ? null : index.getLines().get(0);
+        this.max = index.getLastLine();
+    }
+
+    /**
+     * Gets the run.
+     *
+     * @return the temporary file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Gets the number of lines of the run, after the removal of the duplicates
+     * if the sort is distinct.
+     *
+     * @return the number of lines
+     */
+    public long getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * Gets the smallest line of the run.
+     *
+     * @return the first line, or null if the run is empty
+     */
+    public String getMin() {
+        return min;
+    }
+
+    /**
+     * Gets the largest line of the run.
+     *
+     * @return the last line, or null if the run is empty
+     */
+    public String getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "RunInfo [file=" + file + ", lineCount=" + lineCount + "]";
+    }
+}
@@ -0,0 +1,30 @@
+package com.google.code.externalsorting;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Converts elements to and from the compact binary form used in the
+ * temporary files of {@link GenericExternalSort}.
+ *
+ * @param <T> the type of the elements
+ */
+public interface Serializer<T> {
+    /**
+     * Writes one element.
+     * @param out where the element is written
+     * @param value the element to write
+     * @throws IOException if an I/O error occurs
+     */
+    public void write(DataOutput out, T value) throws IOException;
+
+    /**
+     * Reads one element previously written with {@link #write}.
+     * @param in where the element is read from
+     * @return the element
+     * @throws java.io.EOFException if there is no more element
+     * @throws IOException if an I/O error occurs
+     */
+    public T read(DataInput in) throws IOException;
+}
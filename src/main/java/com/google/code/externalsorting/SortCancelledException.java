@@ -0,0 +1,22 @@
+package com.google.code.externalsorting;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Thrown by a sort that was cancelled through its {@link SortHandle}, that
+ * passed the deadline of its handle, or whose thread was interrupted. By the
+ * time it is thrown, the temporary files of the handle have been deleted.
+ */
+public class SortCancelledException extends InterruptedIOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructs the exception.
+     *
+     * @param message the reason of the cancellation
+     */
+    public SortCancelledException(String message) {
+        super(message);
+    }
+}
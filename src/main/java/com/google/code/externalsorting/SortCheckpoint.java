@@ -0,0 +1,313 @@
+package com.google.code.externalsorting;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Progress of a sort of a file, kept on disk so that a sort interrupted by a
+ * crash or a restart can resume where it stopped.
+ *
+ * The runs of a checkpointed sort are written to the directory of the
+ * checkpoint, and each completed run is recorded in a manifest
+ * (<code>sort.manifest</code>) along with the number of input lines it
+ * covers, its length and its CRC32. When the sort is restarted with a
+ * checkpoint of the same directory, the runs are verified, the input lines
+ * they cover are skipped, and if the whole input was spilled, the sort goes
+ * straight to the merge. Runs failing verification, and the ones after them,
+ * are deleted and their lines sorted again. The manifest also records the
+ * input (path, length, modification time) and the options shaping the runs;
+ * if they changed, the previous runs are discarded.
+ *
+ * The comparator cannot be recorded: a resumed sort must use the same one.
+ * Runs are not forced to the disk, so after a power failure some runs may be
+ * sorted again. The runs and the manifest are deleted once merged; they are
+ * kept when the sort fails or is cancelled, until {@link #delete()} is called.
+ *
+ * Pass the checkpoint to {@link ExternalSortOptions.Builder#checkpoint}.
+ */
+public final class SortCheckpoint {
+
+    /**
+     * Name of the manifest in the directory of the checkpoint.
+     */
+    public static final String MANIFEST = "sort.manifest";
+
+    private static final String RUN_PREFIX = "run";
+
+    private static final String RUN_SUFFIX = ".run";
+
+    private static final String VERSION = "1";
+
+    private final File directory;
+
+    private final Properties fingerprint = new Properties();
+
+    private final List<Run> runs = new ArrayList<>();
+
+    private boolean complete;
+
+    private SortCheckpoint(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Opens the checkpoint of the sort of a file, resuming the progress
+     * recorded in the directory if it was made for the same input and options.
+     * The directory is created if needed.
+     *
+     * @param directory the directory of the runs and of the manifest
+     * @param input the file to sort
+     * @param options the options of the sort
+     * @return the checkpoint
+     * @throws IOException generic IO exception
+     */
+    public static SortCheckpoint open(File directory, File input,
+        ExternalSortOptions options) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        SortCheckpoint checkpoint = new SortCheckpoint(directory);
+        Properties p = checkpoint.fingerprint;
+        p.setProperty("version", VERSION);
+        p.setProperty("input", input.getAbsolutePath());
+        p.setProperty("inputLength", Long.toString(input.length()));
+        p.setProperty("inputLastModified", Long.toString(input.lastModified()));
+        p.setProperty("charset", options.getCharset().name());
+        p.setProperty("distinct", Boolean.toString(options.isDistinct()));
+        p.setProperty("numHeader", Integer.toString(options.getNumHeader()));
+        p.setProperty("usegzip", Boolean.toString(options.isUsegzip()));
+        checkpoint.load();
+        return checkpoint;
+    }
+
+    /**
+     * Gets the directory of the runs and of the manifest.
+     *
+     * @return the directory
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Gets the completed runs, in the order of the input.
+     *
+     * @return the runs
+     */
+    public synchronized List<File> getRuns() {
+        List<File> files = new ArrayList<>(runs.size());
+        for (Run r : runs) {
+            files.add(r.file);
+        }
+        return files;
+    }
+
+    /**
+     * Gets the number of input lines, header included, covered by the
+     * completed runs.
+     *
+     * @return the number of lines to skip when resuming
+     */
+    public synchronized long getLinesConsumed() {
+        return runs.isEmpty() ? 0 : runs.get(runs.size() - 1).linesConsumed;
+    }
+
+    /**
+     * Indicates whether the whole input was spilled to runs.
+     *
+     * @return true if only the merge remains
+     */
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Checks the length and the CRC32 of every run.
+     *
+     * @throws IOException if a run is missing or corrupted
+     */
+    public synchronized void verify() throws IOException {
+        for (Run r : runs) {
+            if (!r.isValid()) {
+                throw new IOException("corrupted run " + r.file);
+            }
+        }
+    }
+
+    /**
+     * Deletes the runs and the manifest.
+     */
+    public synchronized void delete() {
+        for (Run r : runs) {
+            r.file.delete();
+        }
+        runs.clear();
+        complete = false;
+        new File(directory, MANIFEST).delete();
+    }
+
+    /**
+     * Creates the file of a new run.
+     *
+     * @return the empty file
+     * @throws IOException generic IO exception
+     */
+    File createRun() throws IOException {
+        return File.createTempFile(RUN_PREFIX, RUN_SUFFIX, directory);
+    }
+
+    /**
+     * Records a completed run and saves the manifest.
+     *
+     * @param file the run, once closed
+     * @param linesConsumed the number of input lines covered by this run and
+     *            the previous ones, header included
+     * @param crc the CRC32 of the content of the file
+     * @throws IOException generic IO exception
+     */
+    synchronized void addRun(File file, long linesConsumed, long crc)
+        throws IOException {
+        runs.add(new Run(file, linesConsumed, file.length(), crc));
+        save();
+    }
+
+    /**
+     * Records that the whole input was spilled and saves the manifest.
+     *
+     * @throws IOException generic IO exception
+     */
+    synchronized void markComplete() throws IOException {
+        complete = true;
+        save();
+    }
+
+    private void load() throws IOException {
+        File manifest = new File(directory, MANIFEST);
+        Properties saved = new Properties();
+        if (manifest.exists()) {
+            try (InputStream in = new FileInputStream(manifest)) {
+                saved.load(in);
+            }
+        }
+        boolean sameSort = true;
+        for (String key : fingerprint.stringPropertyNames()) {
+            sameSort &= fingerprint.getProperty(key).equals(saved.getProperty(key));
+        }
+        List<Run> previous = new ArrayList<>();
+        for (int i = 0; saved.getProperty("run." + i) != null; i++) {
+            previous.add(Run.parse(directory, saved.getProperty("run." + i)));
+        }
+        Set<File> kept = new HashSet<>();
+        if (sameSort) {
+            for (Run r : previous) {
+                if (!r.isValid()) {
+                    break;
+                }
+                runs.add(r);
+                kept.add(r.file);
+            }
+            complete = runs.size() == previous.size()
+                && Boolean.parseBoolean(saved.getProperty("complete"));
+        }
+        // runs written but not recorded before a crash, or discarded
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (name.startsWith(RUN_PREFIX) && name.endsWith(RUN_SUFFIX)
+                    && !kept.contains(f)) {
+                    f.delete();
+                }
+            }
+        }
+        if (!sameSort || runs.size() != previous.size()) {
+            save();
+        }
+    }
+
+    private void save() throws IOException {
+        Properties p = new Properties();
+        p.putAll(fingerprint);
+        p.setProperty("complete", Boolean.toString(complete));
+        for (int i = 0; i < runs.size(); i++) {
+            p.setProperty("run." + i, runs.get(i).toString());
+        }
+        // the manifest is replaced atomically, a crash leaves the old one
+        File tmp = new File(directory, MANIFEST + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            p.store(out, "externalsortinginjava checkpoint");
+        }
+        Files.move(tmp.toPath(), new File(directory, MANIFEST).toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SortCheckpoint [directory=" + directory + ", runs=" + runs.size()
+            + ", linesConsumed=" + getLinesConsumed() + ", complete=" + complete + "]";
+    }
+
+    /**
+     * A completed run, as recorded in the manifest.
+     */
+    private static final class Run {
+        final File file;
+        final long linesConsumed;
+        final long length;
+        final long crc;
+
+        Run(File file, long linesConsumed, long length, long crc) {
+            this.file = file;
+            this.linesConsumed = linesConsumed;
+            this.length = length;
+            this.crc = crc;
+        }
+
+        static Run parse(File directory, String value) throws IOException {
+            String[] parts = value.split(",");
+            if (parts.length != 4) {
+                throw new IOException("invalid manifest entry: " + value);
+            }
+            try {
+                return new Run(new File(directory, parts[0]),
+                    Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+                    Long.parseLong(parts[3], 16));
+            } catch (NumberFormatException e) {
+                throw new IOException("invalid manifest entry: " + value, e);
+            }
+        }
+
+        boolean isValid() throws IOException {
+            if (!file.isFile() || file.length() != length) {
+                return false;
+            }
+            CRC32 c = new CRC32();
+            byte[] buffer = new byte[1 << 16];
+            try (InputStream in = new FileInputStream(file)) {
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    c.update(buffer, 0, n);
+                }
+            }
+            return c.getValue() == crc;
+        }
+
+        @Override
+        public String toString() {
+            return file.getName() + "," + linesConsumed + "," + length + ","
+                + Long.toHexString(crc);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.google.code.externalsorting;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Runs the parallel work of a sort.
+ *
+ * The blocking tasks of a sort (spilling runs, merging partitions or groups
+ * of files) are submitted to a SortExecutor, which runs at most a given
+ * number of them at once on an executor of the caller, possibly shared with
+ * other sorts and with the application, or else on threads of its own. On
+ * Java 21 or better, the threads of its own can be virtual threads: they are
+ * created by reflection, so that the library still runs on Java 8.
+ *
+ * The in-memory sorts, which are CPU-bound, run with {@link #invoke} in a
+ * ForkJoinPool of the caller rather than in the common pool.
+ */
+public final class SortExecutor {
+
+    private static final Method NEW_VIRTUAL_THREAD_EXECUTOR = virtualThreadFactoryMethod();
+
+    private final Executor executor;
+
+    private final ExecutorService owned;
+
+    private final int maxConcurrency;
+
+    private final Deque<FutureTask<?>> queued = new ArrayDeque<>();
+
+    private final Set<FutureTask<?>> started = new HashSet<>();
+
+    private final Set<FutureTask<?>> running = new HashSet<>();
+
+    private boolean closed = false;
+
+    /**
+     * Constructs an executor for the tasks of a sort.
+     *
+     * @param executor where to run the tasks, or null for threads owned by
+     *            this executor
+     * @param virtualThreads whether the threads owned by this executor are
+     *            virtual threads, when they are available
+     * @param maxConcurrency the number of tasks run at once, at most
+     * @param threadName the name of the threads owned by this executor
+     */
+    public SortExecutor(Executor executor, boolean virtualThreads,
+        int maxConcurrency, final String threadName) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("no concurrency: " + maxConcurrency);
+        }
+        this.maxConcurrency = maxConcurrency;
+        if (executor != null) {
+            this.owned = null;
+            this.executor = executor;
+        } else {
+            this.owned = virtualThreads && isVirtualThreadsAvailable()
+                ? newVirtualThreadExecutor()
+                : Executors.newFixedThreadPool(maxConcurrency, r -> {
+                    Thread t = new Thread(r, threadName);
+                    t.setDaemon(true);
+                    return t;
+                });
+            this.executor = owned;
+        }
+    }
+
+    /**
+     * Checks whether virtual threads are available (Java 21 or better).
+     *
+     * @return true if virtual threads are available
+     */
+    public static boolean isVirtualThreadsAvailable() {
+        return NEW_VIRTUAL_THREAD_EXECUTOR != null;
+    }
+
+    /**
+     * Creates an executor starting a virtual thread per task, such as
+     * <code>Executors.newVirtualThreadPerTaskExecutor()</code>.
+     *
+     * @return the executor
+     * @throws UnsupportedOperationException if virtual threads are not
+     *             available
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        if (NEW_VIRTUAL_THREAD_EXECUTOR == null) {
+            throw new UnsupportedOperationException("virtual threads need Java 21");
+        }
+        try {
+            return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("virtual threads unavailable", e);
+        }
+    }
+
+    private static Method virtualThreadFactoryMethod() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException | SecurityException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Runs a CPU-bound computation, such as a parallel sort, in a pool: its
+     * parallel streams and fork/join tasks use the pool rather than the
+     * common pool.
+     *
+     * @param <T> the type of the result
+     * @param pool the pool, or null to run the computation in the calling
+     *            thread (and its parallel parts in the common pool)
+     * @param computation the computation
+     * @return the result of the computation
+     */
+    public static <T> T invoke(ForkJoinPool pool, Supplier<T> computation) {
+        if (pool == null || ForkJoinTask.getPool() == pool) {
+            return computation.get();
+        }
+        return pool.invoke(ForkJoinTask.adapt(computation::get));
+    }
+
+    /**
+     * Submits a task, which starts once fewer than the maximal number of
+     * tasks of this executor are running.
+     *
+     * @param <T> the type of the result
+     * @param task the task
+     * @return the future result of the task
+     * @throws RejectedExecutionException if the executor is closed, or if the
+     *             underlying executor rejects the task
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        FutureTask<T> future = new FutureTask<>(task);
+        synchronized (this) {
+            if (closed) {
+                throw new RejectedExecutionException("sort executor closed");
+            }
+            if (started.size() >= maxConcurrency) {
+                queued.addLast(future);
+                return future;
+            }
+            started.add(future);
+        }
+        start(future);
+        return future;
+    }
+
+    private void start(final FutureTask<?> first) {
+        try {
+            executor.execute(() -> {
+                // the thread of a finished task goes on with the next queued
+                // one, so that the executor never holds more than
+                // maxConcurrency of our tasks
+                FutureTask<?> future = first;
+                while (future != null && begin(future)) {
+                    future.run();
+                    future = finished(future);
+                    if (future != null) {
+                        // as in a thread pool, an interrupt cancelling a task
+                        // is not passed on to the next one
+                        Thread.interrupted();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            first.cancel(false);
+            FutureTask<?> next = finished(first);
+            if (next != null) {
+                start(next);
+            }
+            throw e;
+        }
+    }
+
+    private synchronized boolean begin(FutureTask<?> future) {
+        // a task still waiting in the executor when we were closed was dropped
+        return started.contains(future) && running.add(future);
+    }
+
+    private synchronized FutureTask<?> finished(FutureTask<?> future) {
+        started.remove(future);
+        running.remove(future);
+        FutureTask<?> next = closed ? null : queued.pollFirst();
+        if (next != null) {
+            started.add(next);
+        }
+        notifyAll();
+        return next;
+    }
+
+    /**
+     * Cancels the tasks which are not finished, interrupting those which are
+     * running, and waits for them to return: once closed, no task of the sort
+     * is touching its files. The tasks handed to the underlying executor but
+     * not yet run by it are dropped rather than waited for, since a saturated
+     * or shut down executor may never run them. The threads owned by the
+     * executor are stopped.
+     */
+    public void close() {
+        boolean interrupted = false;
+        synchronized (this) {
+            closed = true;
+            for (FutureTask<?> future : queued) {
+                future.cancel(false);
+            }
+            queued.clear();
+            for (FutureTask<?> future : started) {
+                future.cancel(true);
+            }
+            started.retainAll(running);
+            while (!running.isEmpty()) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (owned != null) {
+            owned.shutdownNow();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SortExecutor [maxConcurrency=" + maxConcurrency + ", running="
+            + started.size() + ", queued=" + queued.size()
+            + (owned != null ? ", owned" : "") + "]";
+    }
+}
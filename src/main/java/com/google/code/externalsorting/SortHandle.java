@@ -0,0 +1,223 @@
+package com.google.code.externalsorting;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Controls the lifecycle of a sort: it cancels the sort on request or after
+ * a deadline, and it owns the temporary files and the open readers of the
+ * sort, so that they can be released promptly rather than when the JVM
+ * exits.
+ *
+ * Pass the same handle to {@link ExternalSortOptions.Builder#handle} (or to
+ * the CSV sort options) for the creation of the runs and for their merge.
+ * The sorts check the handle every {@link #CHECK_INTERVAL} lines: once
+ * {@link #cancel()} has been called, the deadline has passed or the sorting
+ * thread has been interrupted, they close the handle and throw a
+ * {@link SortCancelledException}. A sort failing for any other reason closes
+ * the handle as well. Closing the handle closes the readers still open and
+ * deletes the temporary files that were not merged yet.
+ *
+ * A handle is meant for a single sort and is thread-safe: it is usually
+ * cancelled from another thread than the one sorting.
+ */
+public final class SortHandle implements Closeable {
+
+    /**
+     * Number of lines or records processed by the sorts between two checks of
+     * the handle.
+     */
+    public static final int CHECK_INTERVAL = 1 << 10;
+
+    private final long deadline;
+
+    private final boolean hasDeadline;
+
+    private volatile boolean cancelled;
+
+    private boolean closed;
+
+    private final Set<File> tmpFiles = new LinkedHashSet<>();
+
+    private final Set<Closeable> resources = new LinkedHashSet<>();
+
+    /**
+     * Constructs a handle without deadline.
+     */
+    public SortHandle() {
+        this.deadline = 0;
+        this.hasDeadline = false;
+    }
+
+    /**
+     * Constructs a handle cancelling the sort after a timeout.
+     *
+     * @param timeout the maximal duration of the sort, starting now
+     * @param unit the unit of the timeout
+     */
+    public SortHandle(long timeout, TimeUnit unit) {
+        this.deadline = System.nanoTime() + unit.toNanos(timeout);
+        this.hasDeadline = true;
+    }
+
+    /**
+     * Requests the cancellation of the sort. The sort stops at its next check
+     * of the handle, and cleans up.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Indicates whether the sort was cancelled or passed its deadline.
+     *
+     * @return true if the sort must stop
+     */
+    public boolean isCancelled() {
+        return cancelled || (hasDeadline && System.nanoTime() - deadline >= 0);
+    }
+
+    /**
+     * Throws if the sort must stop. The interrupted status of the thread is
+     * left unchanged.
+     *
+     * @throws SortCancelledException if the sort was cancelled, passed its
+     *             deadline or if the current thread was interrupted
+     */
+    public void checkCancelled() throws SortCancelledException {
+        if (cancelled) {
+            throw new SortCancelledException("sort cancelled");
+        }
+        if (hasDeadline && System.nanoTime() - deadline >= 0) {
+            throw new SortCancelledException("sort timed out");
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            throw new SortCancelledException("sort interrupted");
+        }
+    }
+
+    /**
+     * Creates a temporary file owned by the handle.
+     *
+     * @param prefix the prefix of the file name
+     * @param suffix the suffix of the file name
+     * @param directory the directory, or null for the default location
+     * @return the new empty file
+     * @throws IOException generic IO exception, or a
+     *             {@link SortCancelledException} if the handle was closed
+     */
+    public File createTempFile(String prefix, String suffix, File directory)
+        throws IOException {
+        File f = File.createTempFile(prefix, suffix, directory);
+        synchronized (this) {
+            if (!closed) {
+                tmpFiles.add(f);
+                return f;
+            }
+        }
+        f.delete();
+        throw new SortCancelledException("sort handle closed");
+    }
+
+    /**
+     * Deletes a file, which the handle no longer owns.
+     *
+     * @param f the file
+     * @return true if the file was deleted
+     */
+    public boolean deleteTempFile(File f) {
+        synchronized (this) {
+            tmpFiles.remove(f);
+        }
+        return f.delete();
+    }
+
+    /**
+     * Gets the temporary files owned by the handle.
+     *
+     * @return a copy of the list of files
+     */
+    public synchronized List<File> getTempFiles() {
+        return new ArrayList<>(tmpFiles);
+    }
+
+    /**
+     * Registers a resource, closed with the handle unless it is unregistered
+     * first.
+     *
+     * @param <T> the type of the resource
+     * @param resource the resource
+     * @return the resource
+     * @throws SortCancelledException if the handle was closed, in which case
+     *             the resource is closed
+     */
+    public <T extends Closeable> T register(T resource) throws SortCancelledException {
+        synchronized (this) {
+            if (!closed) {
+                resources.add(resource);
+                return resource;
+            }
+        }
+        closeQuietly(resource);
+        throw new SortCancelledException("sort handle closed");
+    }
+
+    /**
+     * Unregisters a resource, which the caller closes.
+     *
+     * @param resource the resource
+     */
+    public synchronized void unregister(Closeable resource) {
+        resources.remove(resource);
+    }
+
+    /**
+     * Indicates whether the handle was closed.
+     *
+     * @return true if closed
+     */
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Closes the registered resources and deletes the temporary files owned
+     * by the handle. Later attempts to create temporary files or to register
+     * resources fail. Closing a closed handle has no effect.
+     */
+    @Override
+    public void close() {
+        List<Closeable> toClose;
+        List<File> toDelete;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            toClose = new ArrayList<>(resources);
+            toDelete = new ArrayList<>(tmpFiles);
+            resources.clear();
+            tmpFiles.clear();
+        }
+        for (Closeable c : toClose) {
+            closeQuietly(c);
+        }
+        for (File f : toDelete) {
+            f.delete();
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try {
+            c.close();
+        } catch (IOException e) {
+            // the resource is being discarded
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.google.code.externalsorting;
+
+import java.io.File;
+
+/**
+ * Callbacks reporting the progress of a sort. All the methods do nothing
+ * by default, so that implementations only override what they need.
+ *
+ * The callbacks are invoked from the sorting threads: they should return
+ * quickly. With concurrent spills, they may be invoked from several
+ * threads at once.
+ *
+ * @see ExternalSortOptions.Builder#listener
+ */
+public interface SortListener {
+
+    /**
+     * A listener that ignores all the events.
+     */
+    SortListener NONE = new SortListener() {
+    };
+
+    /**
+     * Called when a phase starts.
+     *
+     * @param phase the phase
+     * @param metrics the metrics of the sort
+     */
+    default void phaseStarted(SortPhase phase, SortMetrics metrics) {
+    }
+
+    /**
+     * Called when a phase is over.
+     *
+     * @param phase the phase
+     * @param metrics the metrics of the sort
+     */
+    default void phaseFinished(SortPhase phase, SortMetrics metrics) {
+    }
+
+    /**
+     * Called when a temporary file (a run) has been written.
+     *
+     * @param run the temporary file
+     * @param lines the number of lines (or records) in the run
+     * @param metrics the metrics of the sort
+     */
+    default void runCreated(File run, long lines, SortMetrics metrics) {
+    }
+
+    /**
+     * Called at regular intervals while lines are read or written.
+     *
+     * @param metrics the metrics of the sort
+     */
+    default void progress(SortMetrics metrics) {
+    }
+}
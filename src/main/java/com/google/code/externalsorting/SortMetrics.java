@@ -0,0 +1,420 @@
+package com.google.code.externalsorting;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters describing a sort while it runs: phase timings, lines and bytes
+ * read and written, runs and their sizes, merge passes and comparisons.
+ *
+ * Pass an instance to {@link ExternalSortOptions.Builder#metrics} (or to the
+ * CSV sort options) to collect them; it can be registered as an MBean with
+ * {@link #register}. Without metrics, sorts do not count anything. An
+ * instance describes one sort at a time.
+ *
+ * The methods updating the counters are called by the sorts; they are
+ * thread-safe.
+ */
+public final class SortMetrics implements SortMetricsMBean {
+
+    /**
+     * Domain of the object names used by {@link #register}.
+     */
+    public static final String JMX_DOMAIN = "com.google.code.externalsorting";
+
+    private volatile SortPhase phase;
+
+    private volatile long inputBytes = -1;
+
+    private volatile long startNanos;
+
+    private final long[] phaseStartNanos = new long[SortPhase.values().length];
+
+    private final long[] phaseNanos = new long[SortPhase.values().length];
+
+    private final LongAdder bytesRead = new LongAdder();
+
+    private final LongAdder linesRead = new LongAdder();
+
+    private final LongAdder bytesWritten = new LongAdder();
+
+    private final LongAdder linesWritten = new LongAdder();
+
+    private final LongAdder runsCreated = new LongAdder();
+
+    private final LongAdder runBytes = new LongAdder();
+
+    private final LongAdder runBytesOnDisk = new LongAdder();
+
+    private final LongAdder comparisons = new LongAdder();
+
+    private final AtomicLong mergePasses = new AtomicLong();
+
+    private ObjectName objectName;
+
+    /**
+     * Registers these metrics with the platform MBean server.
+     *
+     * @param name value of the <code>name</code> key of the object name,
+     *            which is <code>com.google.code.externalsorting:type=SortMetrics,name=...</code>
+     * @return the object name
+     * @throws JMException if the registration fails, for instance because the
+     *             name is already taken
+     */
+    public synchronized ObjectName register(String name) throws JMException {
+        ObjectName on = new ObjectName(JMX_DOMAIN + ":type=SortMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+        objectName = on;
+        return on;
+    }
+
+    /**
+     * Unregisters these metrics from the platform MBean server, if they were
+     * registered.
+     *
+     * @throws JMException if the unregistration fails
+     */
+    public synchronized void unregister() throws JMException {
+        if (objectName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            objectName = null;
+        }
+    }
+
+    /**
+     * Records the start of a phase.
+     *
+     * @param p the phase
+     */
+    public synchronized void phaseStarted(SortPhase p) {
+        long now = System.nanoTime();
+        if (phase == null) {
+            startNanos = now;
+        }
+        phaseStartNanos[p.ordinal()] = now;
+        phase = p;
+    }
+
+    /**
+     * Records the end of a phase.
+     *
+     * @param p the phase
+     */
+    public synchronized void phaseFinished(SortPhase p) {
+        phaseNanos[p.ordinal()] += System.nanoTime() - phaseStartNanos[p.ordinal()];
+        phaseStartNanos[p.ordinal()] = 0;
+    }
+
+    /**
+     * Sets the expected size of the input.
+     *
+     * @param bytes the size of the input (in bytes)
+     */
+    public void setInputBytes(long bytes) {
+        inputBytes = bytes;
+    }
+
+    /**
+     * Adds lines read from the input.
+     *
+     * @param lines the number of lines
+     */
+    public void addLinesRead(long lines) {
+        linesRead.add(lines);
+    }
+
+    /**
+     * Adds lines written to the output.
+     *
+     * @param lines the number of lines
+     */
+    public void addLinesWritten(long lines) {
+        linesWritten.add(lines);
+    }
+
+    /**
+     * Records a temporary file.
+     *
+     * @param run the temporary file, once closed
+     */
+    public void runCreated(File run) {
+        runsCreated.increment();
+        runBytesOnDisk.add(run.length());
+    }
+
+    /**
+     * Records a merge pass.
+     */
+    public void mergePass() {
+        mergePasses.incrementAndGet();
+    }
+
+    /**
+     * Wraps the input so that the bytes read are counted.
+     *
+     * @param in the raw input
+     * @return the counting stream
+     */
+    public InputStream countBytesRead(InputStream in) {
+        return new CountingInputStream(in, bytesRead);
+    }
+
+    /**
+     * Wraps the output so that the bytes written are counted.
+     *
+     * @param out the raw output
+     * @return the counting stream
+     */
+    public OutputStream countBytesWritten(OutputStream out) {
+        return new CountingOutputStream(out, bytesWritten);
+    }
+
+    /**
+     * Wraps the stream writing a temporary file, before compression, so that
+     * the size of the runs is counted.
+     *
+     * @param out the stream, compressing or not
+     * @return the counting stream
+     */
+    public OutputStream countRunBytes(OutputStream out) {
+        return new CountingOutputStream(out, runBytes);
+    }
+
+    /**
+     * Wraps a comparator so that its calls are counted.
+     *
+     * @param <T> the type of the compared objects
+     * @param cmp the comparator
+     * @return the counting comparator
+     */
+    public <T> Comparator<T> countComparisons(final Comparator<T> cmp) {
+        return new CountingComparator<>(cmp, comparisons);
+    }
+
+    /**
+     * Gets the comparator wrapped by {@link #countComparisons}.
+     *
+     * @param cmp a comparator, counting or not
+     * @return the comparator whose calls are counted, or cmp itself
+     */
+    static <T> Comparator<T> uncounted(Comparator<T> cmp) {
+        return cmp instanceof CountingComparator
+            ? ((CountingComparator<T>) cmp).cmp : cmp;
+    }
+
+    /**
+     * Counts the calls of a comparator along with those of another one: a
+     * comparison of decorated lines counts as a comparison of the lines.
+     *
+     * @param counted a comparator, counting or not
+     * @param cmp the comparator to count
+     * @return cmp, counting its calls if counted does
+     */
+    static <T> Comparator<T> countLike(Comparator<?> counted, Comparator<T> cmp) {
+        return counted instanceof CountingComparator
+            ? new CountingComparator<>(cmp, ((CountingComparator<?>) counted).count) : cmp;
+    }
+
+    @Override
+    public String getPhase() {
+        SortPhase p = phase;
+        return p == null ? null : p.name();
+    }
+
+    @Override
+    public long getInputBytes() {
+        return inputBytes;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getLinesRead() {
+        return linesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getLinesWritten() {
+        return linesWritten.sum();
+    }
+
+    @Override
+    public long getRunsCreated() {
+        return runsCreated.sum();
+    }
+
+    @Override
+    public long getRunBytes() {
+        return runBytes.sum();
+    }
+
+    @Override
+    public long getRunBytesOnDisk() {
+        return runBytesOnDisk.sum();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        long onDisk = getRunBytesOnDisk();
+        return onDisk == 0 ? 1.0 : (double) getRunBytes() / onDisk;
+    }
+
+    @Override
+    public long getMergePasses() {
+        return mergePasses.get();
+    }
+
+    @Override
+    public long getComparisons() {
+        return comparisons.sum();
+    }
+
+    @Override
+    public long getRunGenerationMillis() {
+        return phaseMillis(SortPhase.RUN_GENERATION);
+    }
+
+    @Override
+    public long getMergeMillis() {
+        return phaseMillis(SortPhase.MERGE);
+    }
+
+    @Override
+    public long getElapsedMillis() {
+        return phase == null ? 0 : (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    @Override
+    public long getEstimatedMillisRemaining() {
+        long read = getLinesRead();
+        long elapsed = getElapsedMillis();
+        if (read == 0 || elapsed == 0) {
+            return -1;
+        }
+        long expectedLines = read;
+        if (phase == SortPhase.RUN_GENERATION) {
+            long bytes = getBytesRead();
+            if (bytes == 0 || inputBytes <= 0) {
+                return -1;
+            }
+            expectedLines = (long) ((double) read * inputBytes / bytes);
+        }
+        // each line is read once and written once
+        long done = read + getLinesWritten();
+        long remaining = Math.max(0, 2 * expectedLines - done);
+        return (long) ((double) elapsed * remaining / done);
+    }
+
+    private synchronized long phaseMillis(SortPhase p) {
+        long nanos = phaseNanos[p.ordinal()];
+        if (phaseStartNanos[p.ordinal()] != 0) {
+            nanos += System.nanoTime() - phaseStartNanos[p.ordinal()];
+        }
+        return nanos / 1000000;
+    }
+
+    @Override
+    public String toString() {
+        return "SortMetrics [phase=" + getPhase() + ", linesRead=" + getLinesRead()
+            + ", linesWritten=" + getLinesWritten() + ", runs=" + getRunsCreated()
+            + ", compressionRatio=" + String.format("%.2f", getCompressionRatio())
+            + ", mergePasses=" + getMergePasses() + ", comparisons=" + getComparisons()
+            + ", elapsedMillis=" + getElapsedMillis()
+            + ", estimatedMillisRemaining=" + getEstimatedMillisRemaining() + "]";
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        private final LongAdder count;
+
+        CountingInputStream(InputStream in, LongAdder count) {
+            super(in);
+            this.count = count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count.increment();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count.add(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count.add(skipped);
+            return skipped;
+        }
+    }
+
+    private static final class CountingComparator<T> implements Comparator<T> {
+        private final Comparator<T> cmp;
+
+        private final LongAdder count;
+
+        CountingComparator(Comparator<T> cmp, LongAdder count) {
+            this.cmp = cmp;
+            this.count = count;
+        }
+
+        @Override
+        public int compare(T a, T b) {
+            count.increment();
+            return cmp.compare(a, b);
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private final LongAdder count;
+
+        CountingOutputStream(OutputStream out, LongAdder count) {
+            super(out);
+            this.count = count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count.increment();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count.add(len);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.google.code.externalsorting;
+
+/**
+ * Management interface of {@link SortMetrics}, so that the progress of a
+ * sort can be followed through JMX.
+ */
+public interface SortMetricsMBean {
+
+    /**
+     * Gets the current phase.
+     *
+     * @return the name of the phase, or null before the sort starts
+     */
+    String getPhase();
+
+    /**
+     * Gets the expected size of the input.
+     *
+     * @return the size of the input (in bytes), or -1 if unknown
+     */
+    long getInputBytes();
+
+    /**
+     * Gets the number of bytes read from the input. Only counted when the
+     * sort opens the input file itself.
+     *
+     * @return the number of bytes read
+     */
+    long getBytesRead();
+
+    /**
+     * Gets the number of lines (or records) read from the input.
+     *
+     * @return the number of lines read
+     */
+    long getLinesRead();
+
+    /**
+     * Gets the number of bytes written to the output. Only counted when the
+     * sort opens the output file itself.
+     *
+     * @return the number of bytes written
+     */
+    long getBytesWritten();
+
+    /**
+     * Gets the number of lines (or records) written to the output.
+     *
+     * @return the number of lines written
+     */
+    long getLinesWritten();
+
+    /**
+     * Gets the number of temporary files written.
+     *
+     * @return the number of runs
+     */
+    long getRunsCreated();
+
+    /**
+     * Gets the size of the temporary files, before compression.
+     *
+     * @return the size of the runs (in bytes)
+     */
+    long getRunBytes();
+
+    /**
+     * Gets the size of the temporary files on disk.
+     *
+     * @return the size of the runs on disk (in bytes)
+     */
+    long getRunBytesOnDisk();
+
+    /**
+     * Gets the ratio between the size of the runs before and after
+     * compression.
+     *
+     * @return the compression ratio, 1 without compression
+     */
+    double getCompressionRatio();
+
+    /**
+     * Gets the number of merge passes.
+     *
+     * @return the number of merge passes
+     */
+    long getMergePasses();
+
+    /**
+     * Gets the number of calls to the comparator.
+     *
+     * @return the number of comparisons
+     */
+    long getComparisons();
+
+    /**
+     * Gets the time spent generating runs.
+     *
+     * @return the duration of the run generation (in milliseconds)
+     */
+    long getRunGenerationMillis();
+
+    /**
+     * Gets the time spent merging.
+     *
+     * @return the duration of the merge (in milliseconds)
+     */
+    long getMergeMillis();
+
+    /**
+     * Gets the time elapsed since the sort started.
+     *
+     * @return the elapsed time (in milliseconds)
+     */
+    long getElapsedMillis();
+
+    /**
+     * Estimates the time needed to complete the sort, assuming that each
+     * line costs the same when it is read and when it is merged.
+     *
+     * @return the estimated remaining time (in milliseconds), or -1 if it
+     *         cannot be estimated yet
+     */
+    long getEstimatedMillisRemaining();
+}
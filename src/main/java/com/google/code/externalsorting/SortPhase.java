@@ -0,0 +1,16 @@
+package com.google.code.externalsorting;
+
+/**
+ * The phases of an external sort.
+ */
+public enum SortPhase {
+    /**
+     * The input is read by blocks, each block is sorted in memory and
+     * written to a temporary file (a run).
+     */
+    RUN_GENERATION,
+    /**
+     * The runs are merged into the output.
+     */
+    MERGE
+}
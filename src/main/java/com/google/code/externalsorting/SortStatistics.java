@@ -0,0 +1,212 @@
+package com.google.code.externalsorting;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Statistics of a sort, per run and per phase, collected as a
+ * {@link SortListener}: set it as the listener of the sort options, of the
+ * lines or of the CSV records.
+ *
+ * All the counts are longs, so that they can be reconciled with the row
+ * counts of inputs of billions of lines.
+ */
+public final class SortStatistics implements SortListener {
+
+    private final List<Run> runs = new ArrayList<>();
+
+    private final List<Phase> phases = new ArrayList<>();
+
+    @Override
+    public synchronized void runCreated(File run, long lines, SortMetrics metrics) {
+        runs.add(new Run(run, lines, run.length()));
+    }
+
+    @Override
+    public synchronized void phaseFinished(SortPhase phase, SortMetrics metrics) {
+        long millis = phase == SortPhase.RUN_GENERATION
+            ? metrics.getRunGenerationMillis() : metrics.getMergeMillis();
+        phases.add(new Phase(phase, millis, metrics.getLinesRead(),
+            metrics.getLinesWritten(), metrics.getBytesRead(),
+            metrics.getBytesWritten()));
+    }
+
+    /**
+     * Gets the runs written so far.
+     *
+     * @return the runs, in the order they were completed
+     */
+    public synchronized List<Run> getRuns() {
+        return Collections.unmodifiableList(new ArrayList<>(runs));
+    }
+
+    /**
+     * Gets the phases finished so far.
+     *
+     * @return the phases, in the order they finished
+     */
+    public synchronized List<Phase> getPhases() {
+        return Collections.unmodifiableList(new ArrayList<>(phases));
+    }
+
+    /**
+     * Gets the number of lines (or records) of all the runs, before the
+     * removal of duplicates.
+     *
+     * @return the number of lines
+     */
+    public synchronized long getRunLines() {
+        long lines = 0;
+        for (Run r : runs) {
+            lines += r.lines;
+        }
+        return lines;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SortStatistics [runs=" + runs.size() + ", runLines=" + getRunLines()
+            + ", phases=" + phases + "]";
+    }
+
+    /**
+     * A run, as it was when completed.
+     */
+    public static final class Run {
+        private final File file;
+
+        private final long lines;
+
+        private final long bytes;
+
+        Run(File file, long lines, long bytes) {
+            this.file = file;
+            this.lines = lines;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Gets the temporary file of the run, which is deleted by the merge.
+         *
+         * @return the file
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Gets the number of lines (or records) sorted in the run, before the
+         * removal of duplicates.
+         *
+         * @return the number of lines
+         */
+        public long getLines() {
+            return lines;
+        }
+
+        /**
+         * Gets the size of the run on disk.
+         *
+         * @return the size (in bytes)
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return file.getName() + " [lines=" + lines + ", bytes=" + bytes + "]";
+        }
+    }
+
+    /**
+     * The counters of a sort when a phase finished. The counters are
+     * cumulative: the lines read by the run generation are still counted
+     * at the end of the merge.
+     */
+    public static final class Phase {
+        private final SortPhase phase;
+
+        private final long millis;
+
+        private final long linesRead;
+
+        private final long linesWritten;
+
+        private final long bytesRead;
+
+        private final long bytesWritten;
+
+        Phase(SortPhase phase, long millis, long linesRead, long linesWritten,
+            long bytesRead, long bytesWritten) {
+            this.phase = phase;
+            this.millis = millis;
+            this.linesRead = linesRead;
+            this.linesWritten = linesWritten;
+            this.bytesRead = bytesRead;
+            this.bytesWritten = bytesWritten;
+        }
+
+        /**
+         * Gets the phase.
+         *
+         * @return the phase
+         */
+        public SortPhase getPhase() {
+            return phase;
+        }
+
+        /**
+         * Gets the duration of the phase.
+         *
+         * @return the duration (in milliseconds)
+         */
+        public long getMillis() {
+            return millis;
+        }
+
+        /**
+         * Gets the number of lines (or records) read from the input.
+         *
+         * @return the number of lines
+         */
+        public long getLinesRead() {
+            return linesRead;
+        }
+
+        /**
+         * Gets the number of lines (or records) written to the output.
+         *
+         * @return the number of lines
+         */
+        public long getLinesWritten() {
+            return linesWritten;
+        }
+
+        /**
+         * Gets the number of bytes read from the input.
+         *
+         * @return the number of bytes
+         */
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        /**
+         * Gets the number of bytes written to the output.
+         *
+         * @return the number of bytes
+         */
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        @Override
+        public String toString() {
+            return phase + " [millis=" + millis + ", linesRead=" + linesRead
+                + ", linesWritten=" + linesWritten + "]";
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.google.code.externalsorting;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The sorted runs of a sort, as returned by
+ * {@link ExternalSort#sortIntoRuns}, along with what was learned about the
+ * lines while writing them: the sparse index and the metadata of each run, a
+ * uniform sample of the input and a sketch of the distribution of the lines.
+ * The indexes provide the splitters of a partitioned merge and let each
+ * partition skip the beginning of the runs.
+ *
+ * Runs given by the caller, or resumed from a {@link SortCheckpoint}, have
+ * no index nor metadata: they are read from the beginning by every
+ * partition, and they are not covered by the sample nor by the sketch.
+ */
+public final class SortedRuns {
+
+    private final List<File> files = new ArrayList<>();
+
+    private final Map<File, RunIndex> indexes = new HashMap<>();
+
+    private final List<RunInfo> infos = new ArrayList<>();
+
+    private final QuantileSketch sketch;
+
+    private List<String> sample = Collections.emptyList();
+
+    /**
+     * Constructs runs without index.
+     *
+     * @param files the sorted runs
+     */
+    public SortedRuns(List<File> files) {
+        this.files.addAll(files);
+        this.sketch = null;
+    }
+
+    /**
+     * Constructs empty runs, to be filled by a sort.
+     *
+     * @param cmp the comparator of the sort
+     */
+    SortedRuns(Comparator<String> cmp) {
+        this.sketch = new QuantileSketch(cmp, QuantileSketch.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Adds a run.
+     *
+     * @param run the sorted run
+     * @param index its index, or null
+     */
+    void add(File run, RunIndex index) {
+        files.add(run);
+        if (index != null) {
+            indexes.put(run, index);
+            infos.add(new RunInfo(run, index));
+            if (sketch != null) {
+                sketch.add(index);
+            }
+        }
+    }
+
+    /**
+     * Sets the uniform sample of the input.
+     *
+     * @param sample the sample
+     */
+    void setSample(List<String> sample) {
+        this.sample = sample;
+    }
+
+    /**
+     * Gets the index of a run.
+     *
+     * @param run the run
+     * @return the index, or null
+     */
+    RunIndex getIndex(File run) {
+        return indexes.get(run);
+    }
+
+    /**
+     * Gets the runs.
+     *
+     * @return the temporary files, in the order they were written
+     */
+    public List<File> getFiles() {
+        return Collections.unmodifiableList(files);
+    }
+
+    /**
+     * Gets the metadata of the runs written by the sort: number of lines,
+     * smallest and largest lines.
+     *
+     * @return the metadata, in the order the runs were written
+     */
+    public List<RunInfo> getRunInfos() {
+        return Collections.unmodifiableList(infos);
+    }
+
+    /**
+     * Gets a uniform sample of the lines read by the sort, of at most
+     * {@link ExternalSortOptions#getSampleSize()} lines, taken before the
+     * removal of the duplicates.
+     *
+     * @return the sample, in no particular order
+     */
+    public List<String> getSample() {
+        return sample;
+    }
+
+    /**
+     * Gets the approximate distribution of the lines of the runs written by
+     * the sort.
+     *
+     * @return the sketch, or null for runs given by the caller
+     */
+    public QuantileSketch getSketch() {
+        return sketch;
+    }
+
+    /**
+     * Estimates the splitters cutting the lines of the runs into partitions of
+     * about the same size, from the sketch.
+     *
+     * @param partitions the number of partitions
+     * @return the <code>partitions - 1</code> splitters, in ascending order;
+     *         partition <code>i</code> gets the lines not less than splitter
+     *         <code>i - 1</code> and less than splitter <code>i</code>; no
+     *         splitter when no run has an index
+     */
+    public List<String> estimateSplitters(int partitions) {
+        if (sketch == null) {
+            if (partitions < 1) {
+                throw new IllegalArgumentException("no partition");
+            }
+            return new ArrayList<>();
+        }
+        return sketch.splitters(partitions);
+    }
+
+    @Override
+    public String toString() {
+        return "SortedRuns [runs=" + files.size() + ", indexed=" + indexes.size() + "]";
+    }
+}
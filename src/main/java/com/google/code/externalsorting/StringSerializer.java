@@ -0,0 +1,44 @@
+package com.google.code.externalsorting;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serializes strings as a length followed by the encoded bytes.
+ * Unlike {@link DataOutput#writeUTF(String)}, there is no 64 KB limit.
+ */
+public final class StringSerializer implements Serializer<String> {
+    private final Charset cs;
+
+    /**
+     * Serializer using UTF-8.
+     */
+    public StringSerializer() {
+        this(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Serializer using the given character set.
+     * @param cs the character set used to encode strings
+     */
+    public StringSerializer(Charset cs) {
+        this.cs = cs;
+    }
+
+    @Override
+    public void write(DataOutput out, String value) throws IOException {
+        byte[] b = value.getBytes(cs);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    @Override
+    public String read(DataInput in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return new String(b, cs);
+    }
+}
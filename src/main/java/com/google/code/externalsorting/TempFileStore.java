@@ -0,0 +1,150 @@
+package com.google.code.externalsorting;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Directories where the temporary files of the sorts are written, typically
+ * one per drive so that the scratch bandwidth adds up.
+ *
+ * Each new run goes to the next directory in round-robin order, skipping the
+ * directories with more runs being written than the others and the ones
+ * without room for a run as large as the last one. When no directory has
+ * enough room, the one with the most usable space is chosen. Since the runs
+ * are spread over the directories, the merge reads from all of them.
+ *
+ * A store is thread-safe: runs spilled in parallel are placed on distinct
+ * directories when possible.
+ */
+public final class TempFileStore {
+
+    private final File[] directories;
+
+    // number of runs being written in each directory
+    private final int[] writes;
+
+    private int next = 0;
+
+    private long lastRunLength = 0;
+
+    /**
+     * Constructs a store.
+     *
+     * @param directories the directories, or null or an empty list for the
+     *            default location of temporary files
+     */
+    public TempFileStore(List<File> directories) {
+        if (directories == null || directories.isEmpty()) {
+            this.directories = new File[] {new File(System.getProperty("java.io.tmpdir"))};
+        } else {
+            this.directories = directories.toArray(new File[0]);
+        }
+        this.writes = new int[this.directories.length];
+    }
+
+    /**
+     * Parses a list of directories separated by {@link File#pathSeparator},
+     * as given to the command line.
+     *
+     * @param paths the directories
+     * @return the store
+     */
+    public static TempFileStore parse(String paths) {
+        List<File> directories = new ArrayList<>();
+        for (String path : paths.split(File.pathSeparator)) {
+            if (!path.isEmpty()) {
+                directories.add(new File(path));
+            }
+        }
+        return new TempFileStore(directories);
+    }
+
+    /**
+     * Gets the directories.
+     *
+     * @return the directories
+     */
+    public List<File> getDirectories() {
+        return Collections.unmodifiableList(Arrays.asList(directories));
+    }
+
+    /**
+     * Creates a temporary file in the directory chosen for a new run. The run
+     * counts as being written until {@link #release} is called.
+     *
+     * @param prefix the prefix of the file name
+     * @param suffix the suffix of the file name
+     * @param handle the handle owning the file, or null
+     * @return the new empty file
+     * @throws IOException generic IO exception
+     */
+    public File createTempFile(String prefix, String suffix, SortHandle handle)
+        throws IOException {
+        int i = acquire();
+        try {
+            return handle != null
+                ? handle.createTempFile(prefix, suffix, directories[i])
+                : File.createTempFile(prefix, suffix, directories[i]);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                writes[i]--;
+            }
+            throw e;
+        }
+    }
+
+    private synchronized int acquire() {
+        int chosen = -1;
+        int roomiest = 0;
+        long roomiestSpace = -1;
+        for (int k = 0; k < directories.length; k++) {
+            int i = (next + k) % directories.length;
+            long space = directories.length == 1 ? Long.MAX_VALUE
+                : directories[i].getUsableSpace();
+            if (space > roomiestSpace) {
+                roomiest = i;
+                roomiestSpace = space;
+            }
+            if (space >= 2 * lastRunLength
+                && (chosen < 0 || writes[i] < writes[chosen])) {
+                chosen = i;
+            }
+        }
+        if (chosen < 0) {
+            chosen = roomiest;
+        }
+        writes[chosen]++;
+        next = (chosen + 1) % directories.length;
+        return chosen;
+    }
+
+    /**
+     * Records that a run created with {@link #createTempFile} is written.
+     *
+     * @param run the run, in a directory of the store
+     */
+    public synchronized void release(File run) {
+        File directory = run.getParentFile();
+        for (int i = 0; i < directories.length; i++) {
+            if (directories[i].equals(directory)) {
+                if (writes[i] > 0) {
+                    writes[i]--;
+                }
+                long length = run.length();
+                if (length > 0) {
+                    lastRunLength = length;
+                }
+                return;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TempFileStore " + Arrays.toString(directories);
+    }
+}
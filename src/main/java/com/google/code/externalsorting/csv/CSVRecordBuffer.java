@@ -16,8 +16,14 @@ public class CSVRecordBuffer {
 
 	private CSVParser parser;
 
+	private CsvRunFormat.Reader reader;
+
 	private CSVRecord cache;
 
+	private final CsvSortKey sortKey;
+
+	private CsvSortKey.KeyedRecord keyed;
+
 	/**
 	 * Constructs a CSVRecordBuffer wrapping the given CSVParser.
 	 * @param parser the CSVParser to wrap
@@ -25,8 +31,34 @@ public class CSVRecordBuffer {
 	 * @throws ClassNotFoundException if a class cannot be found
 	 */
 	public CSVRecordBuffer(CSVParser parser) throws IOException, ClassNotFoundException {
+		this(parser, null);
+	}
+
+	/**
+	 * Constructs a CSVRecordBuffer wrapping the given CSVParser, which parses
+	 * the key of each record once, as it is read.
+	 * @param parser the CSVParser to wrap
+	 * @param sortKey the sort key, or null
+	 * @throws IOException if an I/O error occurs
+	 * @throws ClassNotFoundException if a class cannot be found
+	 */
+	public CSVRecordBuffer(CSVParser parser, CsvSortKey sortKey) throws IOException, ClassNotFoundException {
 		this.iterator = parser.iterator();
 		this.parser = parser;
+		this.sortKey = sortKey;
+		reload();
+	}
+
+	/**
+	 * Constructs a CSVRecordBuffer reading a temporary file in the binary
+	 * format of {@link CsvRunFormat}.
+	 * @param reader the temporary file
+	 * @throws IOException if an I/O error occurs
+	 * @throws ClassNotFoundException if a class cannot be found
+	 */
+	CSVRecordBuffer(CsvRunFormat.Reader reader) throws IOException, ClassNotFoundException {
+		this.reader = reader;
+		this.sortKey = null;
 		reload();
 	}
 
@@ -35,7 +67,11 @@ public class CSVRecordBuffer {
 	 * @throws IOException if an I/O error occurs
 	 */
 	public void close() throws IOException {
-		this.parser.close();
+		if (this.reader != null) {
+			this.reader.close();
+		} else {
+			this.parser.close();
+		}
 	}
 
 	/**
@@ -66,8 +102,23 @@ public class CSVRecordBuffer {
 		return answer;
 	}
 
+	/**
+	 * Returns the next record with its key, without removing it.
+	 * @return the next record with its key, or null if empty or without a sort key
+	 */
+	CsvSortKey.KeyedRecord peekKeyed() {
+		return this.keyed;
+	}
+
 	// Get the next in line
 	private void reload() throws IOException, ClassNotFoundException {
+		if (this.reader != null) {
+			// the key, if any, was stored along with the record
+			this.keyed = this.reader.read();
+			this.cache = this.keyed == null ? null : this.keyed.record;
+			return;
+		}
 		this.cache = this.iterator.hasNext() ? this.iterator.next() : null;
+		this.keyed = this.cache != null && this.sortKey != null ? this.sortKey.extract(this.cache) : null;
 	}
 }
@@ -1,24 +1,49 @@
 package com.google.code.externalsorting.csv;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.List;
 import java.util.PriorityQueue;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
+import com.google.code.externalsorting.Compression;
+import com.google.code.externalsorting.DirectIO;
+import com.google.code.externalsorting.IOBufferPlanner;
+import com.google.code.externalsorting.ExternalSort;
+import com.google.code.externalsorting.MemoryAccountant;
+import com.google.code.externalsorting.MemoryBudget;
+import com.google.code.externalsorting.SortCancelledException;
+import com.google.code.externalsorting.SortExecutor;
+import com.google.code.externalsorting.SortHandle;
+import com.google.code.externalsorting.SortListener;
+import com.google.code.externalsorting.SortMetrics;
+import com.google.code.externalsorting.SortPhase;
+import com.google.code.externalsorting.TempFileStore;
+import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVPrinter;
 import org.apache.commons.csv.CSVRecord;
@@ -36,15 +61,14 @@ public class CsvExternalSort {
 	}
 
 	/**
-	 * This method calls the garbage collector and then returns the free memory.
-	 * This avoids problems with applications where the GC hasn't reclaimed memory
-	 * and reports no available memory.
+	 * This method returns the memory available in the shared {@link MemoryBudget}.
+	 * It never calls the garbage collector: the budget relies on the heap usage
+	 * measured after the last collection.
 	 * 
 	 * @return available memory
 	 */
 	public static long estimateAvailableMemory() {
-		System.gc();
-		return Runtime.getRuntime().freeMemory();
+		return MemoryBudget.getDefault().available();
 	}
 
 	/**
@@ -82,36 +106,75 @@ public class CsvExternalSort {
      * @return the number of records written
      * @throws IOException if an I/O error occurs
      * @throws ClassNotFoundException if a class cannot be found
+     * @throws ArithmeticException if more than {@link Integer#MAX_VALUE}
+     *         records were written: use
+     *         {@link #merge(BufferedWriter, CsvSortOptions, List, List)}
      */
     public static int mergeSortedFiles(BufferedWriter fbw, final CsvSortOptions sortOptions, List<CSVRecordBuffer> bfbs, List<CSVRecord> header)
 	    throws IOException, ClassNotFoundException {
+		return Math.toIntExact(merge(fbw, sortOptions, bfbs, header));
+	}
+
+    /**
+     * Merges multiple sorted CSVRecordBuffer objects into a single output
+     * file, counting the records written with a long.
+     * @param fbw the BufferedWriter for output
+     * @param sortOptions sorting options
+     * @param bfbs list of CSVRecordBuffer objects
+     * @param header list of header records
+     * @return the number of records written
+     * @throws IOException if an I/O error occurs
+     * @throws ClassNotFoundException if a class cannot be found
+     */
+    public static long merge(BufferedWriter fbw, final CsvSortOptions sortOptions, List<CSVRecordBuffer> bfbs, List<CSVRecord> header)
+	    throws IOException, ClassNotFoundException {
+		final CsvSortKey sortKey = sortOptions.getSortKey();
+		final SortMetrics metrics = sortOptions.getMetrics();
+		final SortListener listener = sortOptions.getListener();
+		final Comparator<CSVRecord> cmp = comparator(sortOptions);
+		if (metrics != null) {
+			metrics.phaseStarted(SortPhase.MERGE);
+			listener.phaseStarted(SortPhase.MERGE, metrics);
+		}
 		PriorityQueue<CSVRecordBuffer> pq = new PriorityQueue<CSVRecordBuffer>(11, new Comparator<CSVRecordBuffer>() {
 			@Override
 			public int compare(CSVRecordBuffer i, CSVRecordBuffer j) {
-				return sortOptions.getComparator().compare(i.peek(), j.peek());
+				if (sortKey != null && i.peekKeyed() != null && j.peekKeyed() != null) {
+					return sortKey.compare(i.peekKeyed(), j.peekKeyed());
+				}
+				return cmp.compare(i.peek(), j.peek());
 			}
 		});
 		for (CSVRecordBuffer bfb : bfbs)
 			if (!bfb.empty())
 				pq.add(bfb);
-		int numWrittenLines = 0;
+		long numWrittenLines = 0;
 		CSVPrinter printer = new CSVPrinter(fbw, sortOptions.getFormat());
 		if(! sortOptions.isSkipHeader()) {
 			for(CSVRecord r: header) {
 				printer.printRecord(r);
 			}
 		}
-		CSVRecord lastLine = null;
+		final SortHandle handle = sortOptions.getHandle();
+		DuplicateFilter duplicates = sortOptions.isDistinct() ? new DuplicateFilter(sortOptions, cmp) : null;
+		long numReadLines = 0;
 		try {
 			while (pq.size() > 0) {
+				if (handle != null && (++numReadLines & (SortHandle.CHECK_INTERVAL - 1)) == 0) {
+					handle.checkCancelled();
+				}
 				CSVRecordBuffer bfb = pq.poll();
+				CsvSortKey.KeyedRecord keyed = bfb.peekKeyed();
 				CSVRecord r = bfb.pop();
 				// Skip duplicate lines
-				if (sortOptions.isDistinct() && checkDuplicateLine(r, lastLine)) {
+				if (duplicates != null && duplicates.isDuplicate(r, keyed)) {
 				} else {
 					printer.printRecord(r);
-					lastLine = r;
 					++numWrittenLines;
+					if (metrics != null && numWrittenLines % PROGRESS_INTERVAL == 0) {
+						metrics.addLinesWritten(PROGRESS_INTERVAL);
+						listener.progress(metrics);
+					}
 				}
 				if (bfb.empty()) {
 					bfb.close();
@@ -125,6 +188,12 @@ public class CsvExternalSort {
 			for (CSVRecordBuffer bfb : pq)
 				bfb.close();
 		}
+		if (metrics != null) {
+			metrics.addLinesWritten(numWrittenLines % PROGRESS_INTERVAL);
+			metrics.mergePass();
+			metrics.phaseFinished(SortPhase.MERGE);
+			listener.phaseFinished(SortPhase.MERGE, metrics);
+		}
 
 		return numWrittenLines;
 	}
@@ -139,25 +208,83 @@ public class CsvExternalSort {
      * @return the number of records written
      * @throws IOException if an I/O error occurs
      * @throws ClassNotFoundException if a class cannot be found
+     * @throws ArithmeticException if more than {@link Integer#MAX_VALUE}
+     *         records were written, in which case the output is complete: use
+     *         {@link #merge(List, File, CsvSortOptions, boolean, List)}
      */
     public static int mergeSortedFiles(List<File> files, File outputfile, final CsvSortOptions sortOptions,
+	    boolean append, List<CSVRecord> header) throws IOException, ClassNotFoundException {
+		return Math.toIntExact(merge(files, outputfile, sortOptions, append, header));
+	}
+
+    /**
+     * Merges multiple sorted CSV files into a single output file, counting
+     * the records written with a long. The files are deleted afterwards and,
+     * without a handle in the options, when the merge fails. With
+     * {@link CsvSortOptions.Builder#binaryRuns binary runs}, the files must
+     * be temporary files written by {@link #sortInBatch} with the same
+     * options.
+     * @param files list of sorted files
+     * @param outputfile the output file
+     * @param sortOptions sorting options
+     * @param append whether to append to the output file
+     * @param header list of header records
+     * @return the number of records written
+     * @throws IOException if an I/O error occurs
+     * @throws ClassNotFoundException if a class cannot be found
+     */
+    public static long merge(List<File> files, File outputfile, final CsvSortOptions sortOptions,
 	    boolean append, List<CSVRecord> header) throws IOException, ClassNotFoundException {
 
+		// without a handle, the runs are closed and deleted on failure, as
+		// they are on success
+		SortHandle handle = sortOptions.getHandle() != null ? sortOptions.getHandle() : new SortHandle();
 		List<CSVRecordBuffer> bfbs = new ArrayList<CSVRecordBuffer>();
-		for (File f : files) {
-			InputStream in = new FileInputStream(f);
-			BufferedReader fbr = new BufferedReader(new InputStreamReader(in, sortOptions.getCharset()));
-			CSVParser parser = new CSVParser(fbr, sortOptions.getFormat());
-			CSVRecordBuffer bfb = new CSVRecordBuffer(parser);
-			bfbs.add(bfb);
-		}
+		List<InputStream> streams = new ArrayList<InputStream>();
+		long numWrittenLines;
+		IOBufferPlanner plan = plan(sortOptions, files.size());
+		try {
+			CSVParser headerParser = binaryRuns(sortOptions) ? CsvRunFormat.headerParser(sortOptions.getFormat()) : null;
+			for (File f : files) {
+				InputStream in = handle.register(sortOptions.getCompression().wrap(
+						DirectIO.newInputStream(f, plan.getReadBufferSize(), sortOptions.isDirectIO()),
+						plan.getStreamBufferSize()));
+				streams.add(in);
+				CSVRecordBuffer bfb;
+				if (headerParser != null) {
+					DataInputStream dis = new DataInputStream(new BufferedInputStream(in, plan.getStreamBufferSize()));
+					bfb = new CSVRecordBuffer(new CsvRunFormat.Reader(dis, sortOptions.getSortKey(), headerParser));
+				} else {
+					BufferedReader fbr = new BufferedReader(new InputStreamReader(in, sortOptions.getCharset()),
+							plan.getCharBufferSize());
+					CSVParser parser = new CSVParser(fbr, runFormat(sortOptions.getFormat(), false));
+					bfb = new CSVRecordBuffer(parser, sortOptions.getSortKey());
+				}
+				bfbs.add(bfb);
+			}
 
-		BufferedWriter fbw = new BufferedWriter(
-				new OutputStreamWriter(new FileOutputStream(outputfile, append), sortOptions.getCharset()));
+			OutputStream out = DirectIO.newOutputStream(outputfile, append, plan.getWriteBufferSize(), false);
+			if (sortOptions.getMetrics() != null) {
+				out = sortOptions.getMetrics().countBytesWritten(out);
+			}
+			BufferedWriter fbw = new BufferedWriter(new OutputStreamWriter(out, sortOptions.getCharset()),
+					plan.getCharBufferSize());
 
-		int numWrittenLines = mergeSortedFiles(fbw, sortOptions, bfbs, header);
+			numWrittenLines = merge(fbw, sortOptions, bfbs, header);
+		} catch (IOException | ClassNotFoundException | RuntimeException | Error e) {
+			handle.close();
+			if (sortOptions.getHandle() == null) {
+				for (File f : files) {
+					f.delete();
+				}
+			}
+			throw e;
+		}
+		for (InputStream in : streams) {
+			handle.unregister(in);
+		}
 		for (File f : files) {
-			if (!f.delete()) {
+			if (!handle.deleteTempFile(f)) {
 				LOG.log(Level.WARNING, String.format("The file %s was not deleted", f.getName()));
 			}
 		}
@@ -169,7 +296,8 @@ public class CsvExternalSort {
      * Sorts records in batches and saves them to temporary files.
      * @param size_in_byte the size of the batch in bytes
      * @param fbr the BufferedReader for input
-     * @param tmpdirectory the directory for temporary files
+     * @param tmpdirectory the directory for temporary files, or null for
+     *        the directories of the options
      * @param sortOptions sorting options
      * @param header list of header records
      * @return list of temporary files containing sorted batches
@@ -178,85 +306,367 @@ public class CsvExternalSort {
     public static List<File> sortInBatch(long size_in_byte, final BufferedReader fbr, final File tmpdirectory,
 	    final CsvSortOptions sortOptions, List<CSVRecord> header) throws IOException {
 
+		final SortMetrics metrics = sortOptions.getMetrics();
+		final SortListener listener = sortOptions.getListener();
+		if (metrics != null) {
+			metrics.setInputBytes(size_in_byte);
+			metrics.phaseStarted(SortPhase.RUN_GENERATION);
+			listener.phaseStarted(SortPhase.RUN_GENERATION, metrics);
+		}
+		// without a handle, the runs created so far are deleted on failure
+		final SortHandle handle = sortOptions.getHandle() != null ? sortOptions.getHandle() : new SortHandle();
+		final TempFileStore store = tmpFileStore(tmpdirectory, sortOptions);
+		long records = 0;
 		List<File> files = new ArrayList<File>();
-		long blocksize = estimateBestSizeOfBlocks(size_in_byte, sortOptions.getMaxTmpFiles(),
-				sortOptions.getMaxMemory());// in
-		// bytes
-		AtomicLong currentBlock = new AtomicLong(0);
+		// lower bound on the block size (in bytes), to respect maxTmpFiles
+		long minblocksize = estimateBestSizeOfBlocks(size_in_byte, sortOptions.getMaxTmpFiles(), 0);
+		MemoryBudget budget = MemoryBudget.getDefault();
+		long granted = budget.reserve(sortOptions.getMaxMemory(), ExternalSort.MIN_RESERVED_MEMORY);
+		// while blocks are being spilled, the next one is already filling up
+		int spillThreads = sortOptions.getSpillThreads();
+		MemoryAccountant accountant = new MemoryAccountant(granted, 1.0 / 6 / (spillThreads + 1));
+		SortExecutor spiller = spillThreads > 0 ? new SortExecutor(sortOptions.getExecutor(),
+				sortOptions.isVirtualThreads(), spillThreads, "csv-external-sort-spill") : null;
+		Deque<Future<File>> pending = new ArrayDeque<Future<File>>();
 		List<CSVRecord> tmplist = new ArrayList<CSVRecord>();
+		// with a sort key, records are copied in a compact block whose size is
+		// known exactly; its arrays may be twice as large as their content
+		final CsvSortKey sortKey = sortOptions.getSortKey();
+		final Queue<CsvRecordBlock> freeBlocks = new ConcurrentLinkedQueue<CsvRecordBlock>();
+		CsvRecordBlock block = sortKey == null ? null : new CsvRecordBlock(sortKey);
+		long compactblocksize = Math.max(minblocksize, granted / 2 / (spillThreads + 1));
 
 		try (CSVParser parser = new CSVParser(fbr, sortOptions.getFormat())) {
-			parser.spliterator().forEachRemaining(e -> {
+			long blocksize = block != null ? compactblocksize : Math.max(minblocksize, accountant.blockSize());
+			long currentBlock = 0;
+			accountant.beginBlock();
+			for (CSVRecord e : parser) {
 				if (e.getRecordNumber() <= sortOptions.getNumHeader()) {
 					header.add(e);
+					continue;
+				}
+				if ((++records & (SortHandle.CHECK_INTERVAL - 1)) == 0) {
+					handle.checkCancelled();
+				}
+				if (metrics != null && records % PROGRESS_INTERVAL == 0) {
+					metrics.addLinesRead(PROGRESS_INTERVAL);
+					listener.progress(metrics);
+				}
+				if (block != null) {
+					block.add(e);
+					currentBlock = block.sizeInBytes();
 				} else {
 					tmplist.add(e);
-					currentBlock.addAndGet(SizeEstimator.estimatedSizeOf(e));
+					currentBlock += SizeEstimator.estimatedSizeOf(e);
 				}
-				if (currentBlock.get() >= blocksize) {
-					try {
-						files.add(sortAndSave(tmplist, tmpdirectory, sortOptions));
-					} catch (IOException e1) {
-						LOG.log(Level.WARNING, String.format("Error during the sort in batch"), e1);
+				if (currentBlock >= blocksize) {
+					if (spiller != null && pending.size() >= spillThreads) {
+						files.add(await(pending.removeFirst()));
 					}
-					tmplist.clear();
-					currentBlock.getAndSet(0);
+					if (block != null) {
+						if (spiller == null) {
+							files.add(sortAndSave(block, store, sortOptions, handle));
+							block.clear();
+						} else {
+							final CsvRecordBlock full = block;
+							pending.addLast(spiller.submit(() -> {
+								try {
+									return sortAndSave(full, store, sortOptions, handle);
+								} finally {
+									full.clear();
+									freeBlocks.add(full);
+								}
+							}));
+							block = freeBlocks.poll();
+							if (block == null) {
+								block = new CsvRecordBlock(sortKey);
+							}
+						}
+					} else {
+						accountant.endBlock(currentBlock);
+						if (spiller == null) {
+							files.add(sortAndSave(tmplist, store, sortOptions, handle));
+							tmplist.clear();
+						} else {
+							final List<CSVRecord> full = tmplist;
+							pending.addLast(spiller.submit(() -> sortAndSave(full, store, sortOptions, handle)));
+							tmplist = new ArrayList<CSVRecord>();
+						}
+						blocksize = Math.max(minblocksize, accountant.blockSize());
+						accountant.beginBlock();
+					}
+					currentBlock = 0;
 				}
-			});
-		}
-		if (!tmplist.isEmpty()) {
-			files.add(sortAndSave(tmplist, tmpdirectory, sortOptions));
+			}
+			while (!pending.isEmpty()) {
+				files.add(await(pending.removeFirst()));
+			}
+			if (block != null && block.size() > 0) {
+				files.add(sortAndSave(block, store, sortOptions, handle));
+			}
+			if (!tmplist.isEmpty()) {
+				files.add(sortAndSave(tmplist, store, sortOptions, handle));
+			}
+			if (metrics != null) {
+				metrics.addLinesRead(records % PROGRESS_INTERVAL);
+				metrics.phaseFinished(SortPhase.RUN_GENERATION);
+				listener.phaseFinished(SortPhase.RUN_GENERATION, metrics);
+			}
+		} catch (IOException | RuntimeException | Error e) {
+			handle.close();
+			throw e;
+		} finally {
+			if (spiller != null) {
+				// a spill in progress finishes, or deletes its file if the
+				// handle was closed, before the memory is released
+				spiller.close();
+			}
+			budget.release(granted);
 		}
 
 		return files;
 	}
 
+	private static File await(Future<File> spill) throws IOException {
+		try {
+			return spill.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SortCancelledException("sort interrupted");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
 	/**
 	 * Sorts a list of CSVRecord objects and saves them to a temporary file.
 	 * @param tmplist the list of CSVRecord objects to sort
-	 * @param tmpdirectory the directory for temporary files
+	 * @param tmpdirectory the directory for temporary files, or null for
+	 *        the directories of the options
 	 * @param sortOptions sorting options
 	 * @return the temporary file containing sorted records
 	 * @throws IOException if an I/O error occurs
 	 */
 	public static File sortAndSave(List<CSVRecord> tmplist, File tmpdirectory, final CsvSortOptions sortOptions) throws IOException {
-		Collections.sort(tmplist, sortOptions.getComparator());
-		File newtmpfile = File.createTempFile("sortInBatch", "flatfile", tmpdirectory);
-		newtmpfile.deleteOnExit();
-
-		CSVRecord lastLine = null;
-		try (Writer writer = new OutputStreamWriter(new FileOutputStream(newtmpfile), sortOptions.getCharset());
-				CSVPrinter printer = new CSVPrinter(new BufferedWriter(writer), sortOptions.getFormat());) {
-			for (CSVRecord r : tmplist) {
-				// Skip duplicate lines
-				if (sortOptions.isDistinct() && checkDuplicateLine(r, lastLine)) {
-				} else {
-					printer.printRecord(r);
-					lastLine = r;
+		return sortAndSave(tmplist, tmpFileStore(tmpdirectory, sortOptions), sortOptions, sortOptions.getHandle());
+	}
+
+	private static File sortAndSave(List<CSVRecord> tmplist, TempFileStore store, final CsvSortOptions sortOptions,
+			SortHandle handle) throws IOException {
+		if (handle != null) {
+			handle.checkCancelled();
+		}
+		final CsvSortKey sortKey = sortOptions.getSortKey();
+		CsvSortKey.KeyedRecord[] keyed = null;
+		if (sortKey != null) {
+			// decorate-sort-undecorate: each key is parsed once
+			keyed = new CsvSortKey.KeyedRecord[tmplist.size()];
+			for (int i = 0; i < keyed.length; i++) {
+				keyed[i] = sortKey.extract(tmplist.get(i));
+			}
+			Comparator<CsvSortKey.KeyedRecord> cmp = sortKey::compare;
+			if (sortOptions.isParallel()) {
+				final CsvSortKey.KeyedRecord[] records = keyed;
+				SortExecutor.invoke(sortOptions.getForkJoinPool(), () -> {
+					Arrays.parallelSort(records, cmp);
+					return records;
+				});
+			} else {
+				Arrays.sort(keyed, cmp);
+			}
+			for (int i = 0; i < keyed.length; i++) {
+				tmplist.set(i, keyed[i].record);
+			}
+		} else if (sortOptions.isParallel()) {
+			final List<CSVRecord> records = tmplist;
+			tmplist = SortExecutor.invoke(sortOptions.getForkJoinPool(), () -> records.parallelStream()
+					.sorted(comparator(sortOptions)).collect(Collectors.toCollection(ArrayList<CSVRecord>::new)));
+		} else {
+			Collections.sort(tmplist, comparator(sortOptions));
+		}
+		File newtmpfile = store.createTempFile("sortInBatch", "flatfile", handle);
+		try {
+			DuplicateFilter duplicates = sortOptions.isDistinct()
+					? new DuplicateFilter(sortOptions, comparator(sortOptions)) : null;
+			long written = 0;
+			IOBufferPlanner plan = plan(sortOptions, 0);
+			OutputStream out = sortOptions.getCompression().wrap(DirectIO.newOutputStream(newtmpfile,
+					plan.getWriteBufferSize(), sortOptions.isDirectIO()), plan.getStreamBufferSize());
+			if (sortOptions.getMetrics() != null) {
+				out = sortOptions.getMetrics().countRunBytes(out);
+			}
+			if (binaryRuns(sortOptions)) {
+				try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out, plan.getStreamBufferSize()))) {
+					for (int i = 0; i < tmplist.size(); i++) {
+						CSVRecord r = tmplist.get(i);
+						// Skip duplicate lines
+						if (duplicates != null && duplicates.isDuplicate(r, keyed == null ? null : keyed[i])) {
+						} else {
+							CsvRunFormat.write(dos, r, keyed == null ? null : keyed[i]);
+							written++;
+						}
+					}
+				}
+			} else {
+				try (Writer writer = new OutputStreamWriter(out, sortOptions.getCharset());
+						CSVPrinter printer = new CSVPrinter(new BufferedWriter(writer, plan.getCharBufferSize()),
+								runFormat(sortOptions.getFormat(), true));) {
+					for (int i = 0; i < tmplist.size(); i++) {
+						CSVRecord r = tmplist.get(i);
+						// Skip duplicate lines
+						if (duplicates != null && duplicates.isDuplicate(r, keyed == null ? null : keyed[i])) {
+						} else {
+							printer.printRecord(r);
+							written++;
+						}
+					}
 				}
 			}
+			return reportRun(newtmpfile, written, sortOptions, handle);
+		} catch (IOException | RuntimeException | Error e) {
+			newtmpfile.delete();
+			throw e;
+		} finally {
+			store.release(newtmpfile);
 		}
+	}
 
-		return newtmpfile;
+	/**
+	 * Sorts a block of records with its sort key and saves it to a temporary
+	 * file. The records are written straight from the block.
+	 * @param block the records
+	 * @param store the directories for temporary files
+	 * @param sortOptions sorting options
+	 * @param handle the handle owning the file, or null
+	 * @return the temporary file containing sorted records
+	 * @throws IOException if an I/O error occurs
+	 */
+	static File sortAndSave(CsvRecordBlock block, TempFileStore store, final CsvSortOptions sortOptions,
+			SortHandle handle) throws IOException {
+		if (handle != null) {
+			handle.checkCancelled();
+		}
+		SortExecutor.invoke(sortOptions.isParallel() ? sortOptions.getForkJoinPool() : null, () -> {
+			block.sort(sortOptions.isParallel());
+			return block;
+		});
+		File newtmpfile = store.createTempFile("sortInBatch", "flatfile", handle);
+		try {
+			int keysPerRecord = sortOptions.getSortKey().numberCount();
+			DuplicateFilter duplicates = sortOptions.isDistinct() ? new DuplicateFilter(sortOptions, null) : null;
+			int last = -1;
+			long written = 0;
+			IOBufferPlanner plan = plan(sortOptions, 0);
+			OutputStream out = sortOptions.getCompression().wrap(DirectIO.newOutputStream(newtmpfile,
+					plan.getWriteBufferSize(), sortOptions.isDirectIO()), plan.getStreamBufferSize());
+			if (sortOptions.getMetrics() != null) {
+				out = sortOptions.getMetrics().countRunBytes(out);
+			}
+			if (binaryRuns(sortOptions)) {
+				try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out, plan.getStreamBufferSize()))) {
+					for (int k = 0; k < block.size(); k++) {
+						int r = block.recordAt(k);
+						// Skip duplicate lines
+						if (duplicates != null && last >= 0 && duplicates.isDuplicate(block, r, last)) {
+						} else {
+							CsvRunFormat.write(dos, block, r, keysPerRecord);
+							last = r;
+							written++;
+						}
+					}
+				}
+			} else {
+				try (Writer writer = new OutputStreamWriter(out, sortOptions.getCharset());
+						CSVPrinter printer = new CSVPrinter(new BufferedWriter(writer, plan.getCharBufferSize()),
+								runFormat(sortOptions.getFormat(), true));) {
+					for (int k = 0; k < block.size(); k++) {
+						int r = block.recordAt(k);
+						// Skip duplicate lines
+						if (duplicates != null && last >= 0 && duplicates.isDuplicate(block, r, last)) {
+						} else {
+							for (int f = 0; f < block.fieldCount(r); f++) {
+								printer.print(block.field(r, f));
+							}
+							printer.println();
+							last = r;
+							written++;
+						}
+					}
+				}
+			}
+			return reportRun(newtmpfile, written, sortOptions, handle);
+		} catch (IOException | RuntimeException | Error e) {
+			newtmpfile.delete();
+			throw e;
+		} finally {
+			store.release(newtmpfile);
+		}
+	}
+
+	/**
+	 * Whether the temporary files use the binary format.
+	 */
+	private static boolean binaryRuns(CsvSortOptions sortOptions) {
+		return sortOptions.isBinaryRuns() && CsvRunFormat.isSupported();
 	}
 
-	private static boolean checkDuplicateLine(CSVRecord currentLine, CSVRecord lastLine) {
-		if (lastLine == null || currentLine == null) {
-			return false;
+	/**
+	 * The format of the temporary files in CSV. When the format declares the
+	 * names of its columns, the temporary files have no header line and the
+	 * records read back get their header mapping from the names.
+	 * @param format the format of the sort
+	 * @param writing true for the format of the writer, false for the parser
+	 * @return the format of the temporary files
+	 */
+	static CSVFormat runFormat(CSVFormat format, boolean writing) {
+		String[] names = format.getHeader();
+		if (names == null || names.length == 0) {
+			return format;
 		}
+		return format.builder().setSkipHeaderRecord(writing).build();
+	}
 
-		for (int i = 0; i < currentLine.size(); i++) {
-			if (!currentLine.get(i).equals(lastLine.get(i))) {
-				return false;
-			}
+	/**
+	 * The directory given to a method, or else the directories of the options.
+	 */
+	private static TempFileStore tmpFileStore(File tmpdirectory, CsvSortOptions sortOptions) {
+		return tmpdirectory != null ? new TempFileStore(Collections.singletonList(tmpdirectory))
+				: sortOptions.getTmpFileStore();
+	}
+
+	private static File reportRun(File run, long records, CsvSortOptions sortOptions, SortHandle handle)
+			throws SortCancelledException {
+		// a spill thread may still be writing when the handle is closed, in
+		// which case its file is recreated after having been deleted
+		if (handle != null && handle.isClosed()) {
+			throw new SortCancelledException("sort handle closed");
 		}
-		return true;
+		SortMetrics metrics = sortOptions.getMetrics();
+		if (metrics != null) {
+			metrics.runCreated(run);
+			sortOptions.getListener().runCreated(run, records, metrics);
+		}
+		return run;
+	}
+
+	/**
+	 * The comparator of the options, counting its calls if the sort is
+	 * instrumented.
+	 */
+	private static Comparator<CSVRecord> comparator(CsvSortOptions sortOptions) {
+		SortMetrics metrics = sortOptions.getMetrics();
+		Comparator<CSVRecord> cmp = sortOptions.getComparator();
+		return metrics == null || cmp == null ? cmp : metrics.countComparisons(cmp);
 	}
 
     /**
      * Sorts records from a file in batches and saves them to temporary files.
      * @param file the input file
-     * @param tmpdirectory the directory for temporary files
+     * @param tmpdirectory the directory for temporary files, or null for
+     *        the directories of the options
      * @param sortOptions sorting options
      * @param header list of header records
      * @return list of temporary files containing sorted batches
@@ -264,9 +674,17 @@ public class CsvExternalSort {
      */
     public static List<File> sortInBatch(File file, File tmpdirectory, final CsvSortOptions sortOptions, List<CSVRecord> header)
 	    throws IOException {
+		// gzip-compressed input is decompressed on the fly
+		IOBufferPlanner plan = plan(sortOptions, 1);
+		InputStream in = Compression.detect(new BufferedInputStream(new FileInputStream(file),
+				plan.getReadBufferSize()), plan.getStreamBufferSize());
+		if (sortOptions.getMetrics() != null) {
+			// counted after decompression, like the expected input size
+			in = sortOptions.getMetrics().countBytesRead(in);
+		}
 		try (BufferedReader fbr = new BufferedReader(
-				new InputStreamReader(new FileInputStream(file), sortOptions.getCharset()))) {
-			return sortInBatch(file.length(), fbr, tmpdirectory, sortOptions, header);
+				new InputStreamReader(in, sortOptions.getCharset()), plan.getCharBufferSize())) {
+			return sortInBatch(Compression.uncompressedLength(file), fbr, tmpdirectory, sortOptions, header);
 		}
 	}
 
@@ -275,4 +693,19 @@ public class CsvExternalSort {
 	 */
 	public static final int DEFAULTMAXTEMPFILES = 1024;
 
+	/**
+	 * Plans the buffers of the streams of a sort.
+	 * @param sortOptions sorting options
+	 * @param fanIn the number of runs read at once, or 0 when only writing
+	 * @return the plan
+	 */
+	private static IOBufferPlanner plan(CsvSortOptions sortOptions, int fanIn) {
+		return IOBufferPlanner.plan(sortOptions.getIoMemory(), fanIn, sortOptions.getIoBufferSize());
+	}
+
+	/**
+	 * Number of records between two calls to {@link SortListener#progress}.
+	 */
+	private static final int PROGRESS_INTERVAL = 1 << 16;
+
 }
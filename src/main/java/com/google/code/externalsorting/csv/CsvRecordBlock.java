@@ -0,0 +1,395 @@
+package com.google.code.externalsorting.csv;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.RecursiveAction;
+
+import com.google.code.externalsorting.MemoryLayout;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Compact store for a block of CSV records sorted with a {@link CsvSortKey}.
+ *
+ * Instead of keeping a {@link CSVRecord} per row, with its array of
+ * strings, its comment and its reference to the parser, the characters of
+ * all the fields go into a single slab, and the fields and records are
+ * located through arrays of offsets. The numeric columns of the sort key
+ * are parsed once, into a flat array of longs. A block holds a handful of
+ * arrays whatever the number of records, and its memory usage is computed
+ * from their lengths, without allocating or walking the records.
+ *
+ * A block is reused from one run to the next: {@link #clear()} keeps the
+ * arrays, so that once they have grown, filling a block allocates nothing.
+ */
+final class CsvRecordBlock {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/**
+	 * Sub-arrays shorter than this are sorted in the calling thread.
+	 */
+	private static final int PARALLEL_THRESHOLD = 1 << 13;
+
+	private final CsvSortKey sortKey;
+
+	private final int keysPerRecord;
+
+	// characters of all the fields, one after the other
+	private char[] chars = new char[INITIAL_CAPACITY * 16];
+
+	private int charCount = 0;
+
+	// end of each field in chars, the field starts where the previous one ends
+	private int[] fieldEnds = new int[INITIAL_CAPACITY * 4];
+
+	private int fieldCount = 0;
+
+	// index in fieldEnds of the first field of each record, plus one entry
+	// marking the end of the last record
+	private int[] firstFields = new int[INITIAL_CAPACITY + 1];
+
+	private int size = 0;
+
+	// numeric part of the sort key of each record
+	private long[] keys;
+
+	// fields holding null rather than an empty string
+	private BitSet nulls;
+
+	private int[] order;
+
+	private int[] scratch;
+
+	// reused to encode the fields when writing them
+	private byte[] encoding = new byte[256];
+
+	/**
+	 * Constructs an empty block.
+	 * @param sortKey the sort key
+	 */
+	CsvRecordBlock(CsvSortKey sortKey) {
+		this.sortKey = sortKey;
+		this.keysPerRecord = sortKey.numberCount();
+		this.keys = new long[keysPerRecord == 0 ? 0 : INITIAL_CAPACITY * keysPerRecord];
+	}
+
+	/**
+	 * Copies a record in the block.
+	 * @param record the record
+	 */
+	void add(CSVRecord record) {
+		int n = record.size();
+		if (size + 1 == firstFields.length) {
+			firstFields = Arrays.copyOf(firstFields, firstFields.length * 2);
+		}
+		if (fieldCount + n > fieldEnds.length) {
+			fieldEnds = Arrays.copyOf(fieldEnds, Math.max(fieldEnds.length * 2, fieldCount + n));
+		}
+		for (int i = 0; i < n; i++) {
+			String value = record.get(i);
+			if (value == null) {
+				if (nulls == null) {
+					nulls = new BitSet();
+				}
+				nulls.set(fieldCount);
+			} else {
+				int length = value.length();
+				if (charCount + length > chars.length) {
+					chars = Arrays.copyOf(chars, Math.max(chars.length * 2, charCount + length));
+				}
+				value.getChars(0, length, chars, charCount);
+				charCount += length;
+			}
+			fieldEnds[fieldCount++] = charCount;
+		}
+		if (keysPerRecord > 0) {
+			if ((size + 1) * keysPerRecord > keys.length) {
+				keys = Arrays.copyOf(keys, keys.length * 2);
+			}
+			sortKey.parseNumbers(record, keys, size * keysPerRecord);
+		}
+		size++;
+		firstFields[size] = fieldCount;
+	}
+
+	/**
+	 * Gets the number of records.
+	 * @return the number of records
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Memory used by the records (in bytes): the filled part of the arrays,
+	 * plus the index needed to sort them. The arrays may be up to twice as
+	 * large, as they grow by doubling.
+	 * @return the memory used
+	 */
+	long sizeInBytes() {
+		return MemoryLayout.arraySize(charCount, 2)
+				+ MemoryLayout.arraySize(fieldCount, 4)
+				+ MemoryLayout.arraySize(size + 1, 4)
+				+ MemoryLayout.arraySize(size * keysPerRecord, 8)
+				// order and scratch, allocated when sorting
+				+ 2 * MemoryLayout.arraySize(size, 4);
+	}
+
+	/**
+	 * Sorts the records with the sort key. The sort is stable.
+	 * @param parallel true to sort large blocks with several threads, those
+	 *        of the current pool (or of the common pool)
+	 */
+	void sort(boolean parallel) {
+		if (order == null || order.length < size) {
+			order = new int[firstFields.length];
+			scratch = new int[firstFields.length];
+		}
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+		if (parallel && size > PARALLEL_THRESHOLD) {
+			new SortTask(0, size).invoke();
+		} else {
+			mergeSort(0, size);
+		}
+	}
+
+	/**
+	 * Gets the index of a record in sorted order.
+	 * @param k rank of the record, after {@link #sort}
+	 * @return the index of the record
+	 */
+	int recordAt(int k) {
+		return order[k];
+	}
+
+	/**
+	 * Gets the number of fields of a record.
+	 * @param record index of the record
+	 * @return the number of fields
+	 */
+	int fieldCount(int record) {
+		return firstFields[record + 1] - firstFields[record];
+	}
+
+	/**
+	 * Checks whether a field is null.
+	 * @param record index of the record
+	 * @param field index of the field in the record
+	 * @return true if the field is null
+	 */
+	boolean isNull(int record, int field) {
+		return nulls != null && nulls.get(firstFields[record] + field);
+	}
+
+	/**
+	 * Gets the characters of all the fields.
+	 * @return the slab, fields are located with {@link #fieldStart} and
+	 *         {@link #fieldEnd}
+	 */
+	char[] chars() {
+		return chars;
+	}
+
+	/**
+	 * Gets where a field starts in {@link #chars()}.
+	 * @param record index of the record
+	 * @param field index of the field in the record
+	 * @return the offset of the first character of the field
+	 */
+	int fieldStart(int record, int field) {
+		int f = firstFields[record] + field;
+		return f == 0 ? 0 : fieldEnds[f - 1];
+	}
+
+	/**
+	 * Gets where a field ends in {@link #chars()}.
+	 * @param record index of the record
+	 * @param field index of the field in the record
+	 * @return the offset after the last character of the field
+	 */
+	int fieldEnd(int record, int field) {
+		return fieldEnds[firstFields[record] + field];
+	}
+
+	/**
+	 * Gets a field as a character sequence backed by the block.
+	 * @param record index of the record
+	 * @param field index of the field in the record
+	 * @return the field, or null
+	 */
+	CharSequence field(int record, int field) {
+		if (isNull(record, field)) {
+			return null;
+		}
+		int start = fieldStart(record, field);
+		return CharBuffer.wrap(chars, start, fieldEnd(record, field) - start);
+	}
+
+	/**
+	 * Gets a numeric column of the sort key.
+	 * @param record index of the record
+	 * @param slot index of the column among the numeric columns of the key
+	 * @return the parsed value
+	 */
+	long key(int record, int slot) {
+		return keys[record * keysPerRecord + slot];
+	}
+
+	/**
+	 * Compares the same field of two records, like {@link String#compareTo}.
+	 * Missing and null fields are treated as empty.
+	 * @param a index of a record
+	 * @param b index of another record
+	 * @param field index of the field
+	 * @return a negative integer, zero, or a positive integer as the field
+	 *         of a sorts before, with or after the field of b
+	 */
+	int compareField(int a, int b, int field) {
+		int i = 0, iend = 0, j = 0, jend = 0;
+		if (field < fieldCount(a)) {
+			i = fieldStart(a, field);
+			iend = fieldEnd(a, field);
+		}
+		if (field < fieldCount(b)) {
+			j = fieldStart(b, field);
+			jend = fieldEnd(b, field);
+		}
+		int n = Math.min(iend - i, jend - j);
+		for (int k = 0; k < n; k++) {
+			char x = chars[i + k];
+			char y = chars[j + k];
+			if (x != y) {
+				return x - y;
+			}
+		}
+		return (iend - i) - (jend - j);
+	}
+
+	/**
+	 * Checks whether two records have the same fields.
+	 * @param a index of a record
+	 * @param b index of another record
+	 * @return true if the records are equal
+	 */
+	boolean sameFields(int a, int b) {
+		int n = fieldCount(a);
+		if (n != fieldCount(b)) {
+			return false;
+		}
+		for (int f = 0; f < n; f++) {
+			if (isNull(a, f) != isNull(b, f) || compareField(a, b, f) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether two records have the same values in some columns;
+	 * missing fields are null.
+	 * @param a index of a record
+	 * @param b index of another record
+	 * @param columns the indexes of the columns
+	 * @return true if the columns are equal
+	 */
+	boolean sameFields(int a, int b, int[] columns) {
+		for (int f : columns) {
+			boolean na = f >= fieldCount(a) || isNull(a, f);
+			boolean nb = f >= fieldCount(b) || isNull(b, f);
+			if (na != nb || (!na && compareField(a, b, f) != 0)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Gets a buffer to encode a field, reused from one field to the next.
+	 * @param length the number of bytes needed
+	 * @return a buffer of at least that length
+	 */
+	byte[] encodingBuffer(int length) {
+		if (encoding.length < length) {
+			encoding = new byte[Math.max(length, encoding.length * 2)];
+		}
+		return encoding;
+	}
+
+	/**
+	 * Empties the block, keeping its arrays for the next run.
+	 */
+	void clear() {
+		charCount = 0;
+		fieldCount = 0;
+		size = 0;
+		if (nulls != null) {
+			nulls.clear();
+		}
+	}
+
+	private void mergeSort(int from, int to) {
+		if (to - from < 16) {
+			for (int i = from + 1; i < to; i++) {
+				int v = order[i];
+				int j = i - 1;
+				while (j >= from && sortKey.compare(this, order[j], v) > 0) {
+					order[j + 1] = order[j];
+					j--;
+				}
+				order[j + 1] = v;
+			}
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		mergeSort(from, mid);
+		mergeSort(mid, to);
+		merge(from, mid, to);
+	}
+
+	private void merge(int from, int mid, int to) {
+		if (sortKey.compare(this, order[mid - 1], order[mid]) <= 0) {
+			return;
+		}
+		System.arraycopy(order, from, scratch, from, to - from);
+		int i = from, j = mid, k = from;
+		while (i < mid && j < to) {
+			order[k++] = sortKey.compare(this, scratch[j], scratch[i]) < 0 ? scratch[j++] : scratch[i++];
+		}
+		while (i < mid) {
+			order[k++] = scratch[i++];
+		}
+		while (j < to) {
+			order[k++] = scratch[j++];
+		}
+	}
+
+	/**
+	 * Sorts the two halves of a range in parallel, then merges them.
+	 */
+	private final class SortTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int from;
+
+		private final int to;
+
+		SortTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= PARALLEL_THRESHOLD) {
+				mergeSort(from, to);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new SortTask(from, mid), new SortTask(mid, to));
+			merge(from, mid, to);
+		}
+	}
+}
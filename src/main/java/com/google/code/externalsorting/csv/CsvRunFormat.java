@@ -0,0 +1,281 @@
+package com.google.code.externalsorting.csv;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.reflect.Constructor;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Binary format of the temporary files written by {@link CsvExternalSort}.
+ *
+ * Each record is stored as its number of fields followed by each field as
+ * a length and its UTF-8 bytes, and then the numeric part of its sort key,
+ * if there is one. Reading a record back does not involve any quoting or
+ * escaping, unlike going through a {@link CSVPrinter} and a
+ * {@link CSVParser}. Only the final output is printed in the user's
+ * {@link CSVFormat}.
+ *
+ * The records read back are built without a parser, through the private
+ * constructor of {@link CSVRecord}: when it is not accessible, as may happen
+ * with another version of Commons CSV, the runs are written in the CSV
+ * format instead.
+ */
+final class CsvRunFormat {
+
+	private static final Constructor<CSVRecord> RECORD_CONSTRUCTOR = recordConstructor();
+
+	private CsvRunFormat() {
+	}
+
+	/**
+	 * Checks whether records can be read back from the binary format.
+	 * @return true if the binary format is supported
+	 */
+	static boolean isSupported() {
+		return RECORD_CONSTRUCTOR != null;
+	}
+
+	/**
+	 * Creates a parser without any record, which gives the records read back
+	 * the header mapping of a format, when the format declares the names of
+	 * its columns.
+	 * @param format the format of the sort
+	 * @return the parser
+	 * @throws IOException if an I/O error occurs
+	 */
+	static CSVParser headerParser(CSVFormat format) throws IOException {
+		return new CSVParser(new StringReader(""), CsvExternalSort.runFormat(format, false));
+	}
+
+	/**
+	 * Writes a record.
+	 * @param out where the record is written
+	 * @param record the record
+	 * @param keyed the record with its key, or null if there is no sort key
+	 * @throws IOException if an I/O error occurs
+	 */
+	static void write(DataOutputStream out, CSVRecord record, CsvSortKey.KeyedRecord keyed) throws IOException {
+		int size = record.size();
+		writeVarInt(out, size);
+		for (int i = 0; i < size; i++) {
+			String value = record.get(i);
+			if (value == null) {
+				writeVarInt(out, 0);
+			} else {
+				byte[] b = value.getBytes(StandardCharsets.UTF_8);
+				// zero is reserved for null values
+				writeVarInt(out, b.length + 1);
+				out.write(b);
+			}
+		}
+		if (keyed != null && keyed.numbers != null) {
+			for (long n : keyed.numbers) {
+				out.writeLong(n);
+			}
+		}
+	}
+
+	/**
+	 * Writes a record of a block, in the same format as
+	 * {@link #write(DataOutputStream, CSVRecord, CsvSortKey.KeyedRecord)},
+	 * encoding the characters directly from the block.
+	 * @param out where the record is written
+	 * @param block the block
+	 * @param record index of the record in the block
+	 * @param keysPerRecord number of numeric columns in the sort key
+	 * @throws IOException if an I/O error occurs
+	 */
+	static void write(DataOutputStream out, CsvRecordBlock block, int record, int keysPerRecord) throws IOException {
+		int size = block.fieldCount(record);
+		char[] chars = block.chars();
+		writeVarInt(out, size);
+		for (int i = 0; i < size; i++) {
+			if (block.isNull(record, i)) {
+				writeVarInt(out, 0);
+				continue;
+			}
+			int start = block.fieldStart(record, i);
+			int end = block.fieldEnd(record, i);
+			int length = utf8Length(chars, start, end);
+			byte[] b = block.encodingBuffer(length);
+			encodeUtf8(chars, start, end, b);
+			writeVarInt(out, length + 1);
+			out.write(b, 0, length);
+		}
+		for (int slot = 0; slot < keysPerRecord; slot++) {
+			out.writeLong(block.key(record, slot));
+		}
+	}
+
+	/**
+	 * Number of bytes of a range of characters in UTF-8, malformed
+	 * surrogates being replaced by '?' like {@link String#getBytes}.
+	 */
+	private static int utf8Length(char[] chars, int start, int end) {
+		int length = 0;
+		for (int i = start; i < end; i++) {
+			char c = chars[i];
+			if (c < 0x80) {
+				length += 1;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars[i + 1])) {
+				length += 4;
+				i++;
+			} else if (Character.isSurrogate(c)) {
+				length += 1;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	private static void encodeUtf8(char[] chars, int start, int end, byte[] b) {
+		int k = 0;
+		for (int i = start; i < end; i++) {
+			char c = chars[i];
+			if (c < 0x80) {
+				b[k++] = (byte) c;
+			} else if (c < 0x800) {
+				b[k++] = (byte) (0xC0 | (c >> 6));
+				b[k++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars[i + 1])) {
+				int cp = Character.toCodePoint(c, chars[++i]);
+				b[k++] = (byte) (0xF0 | (cp >> 18));
+				b[k++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				b[k++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				b[k++] = (byte) (0x80 | (cp & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				b[k++] = '?';
+			} else {
+				b[k++] = (byte) (0xE0 | (c >> 12));
+				b[k++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				b[k++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVarInt(DataInputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("malformed temporary file");
+	}
+
+	/**
+	 * Creates a record from its values, without parsing.
+	 * @param parser the parser providing the header mapping, or null
+	 * @param values the values
+	 * @param recordNumber the number of the record
+	 * @return the record
+	 * @throws IOException if the binary format is not supported
+	 */
+	static CSVRecord newRecord(CSVParser parser, String[] values, long recordNumber) throws IOException {
+		if (RECORD_CONSTRUCTOR == null) {
+			throw new IOException("binary runs are not supported by this version of Commons CSV");
+		}
+		try {
+			return RECORD_CONSTRUCTOR.newInstance(parser, values, null, recordNumber, -1L);
+		} catch (ReflectiveOperationException e) {
+			throw new IOException("cannot create a record", e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Constructor<CSVRecord> recordConstructor() {
+		try {
+			Constructor<CSVRecord> c = CSVRecord.class.getDeclaredConstructor(CSVParser.class, String[].class,
+					String.class, long.class, long.class);
+			c.setAccessible(true);
+			return c;
+		} catch (Exception | LinkageError e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the records of a temporary file one at a time.
+	 */
+	static final class Reader implements Closeable {
+		private final DataInputStream in;
+		private final CsvSortKey sortKey;
+		private final CSVParser headerParser;
+		private long recordNumber = 0;
+
+		/**
+		 * Constructs a reader.
+		 * @param in the temporary file
+		 * @param sortKey the sort key used when writing the file, or null
+		 * @param headerParser the parser providing the header mapping of the
+		 *        records, see {@link CsvRunFormat#headerParser}
+		 */
+		Reader(DataInputStream in, CsvSortKey sortKey, CSVParser headerParser) {
+			this.in = in;
+			this.sortKey = sortKey;
+			this.headerParser = headerParser;
+		}
+
+		/**
+		 * Reads the next record.
+		 * @return the record with its key (the key is null if there is no sort
+		 *         key), or null at the end of the file
+		 * @throws IOException if an I/O error occurs
+		 */
+		CsvSortKey.KeyedRecord read() throws IOException {
+			int size;
+			try {
+				size = readVarInt(in);
+			} catch (EOFException eof) {
+				return null;
+			}
+			String[] values = new String[size];
+			for (int i = 0; i < size; i++) {
+				int length = readVarInt(in);
+				if (length > 0) {
+					byte[] b = new byte[length - 1];
+					in.readFully(b);
+					values[i] = new String(b, StandardCharsets.UTF_8);
+				}
+			}
+			CSVRecord record = newRecord(headerParser, values, ++recordNumber);
+			if (sortKey == null) {
+				return new CsvSortKey.KeyedRecord(record, null, null);
+			}
+			long[] numbers = sortKey.newNumbers();
+			if (numbers != null) {
+				for (int i = 0; i < numbers.length; i++) {
+					numbers[i] = in.readLong();
+				}
+			}
+			return sortKey.withNumbers(record, numbers);
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
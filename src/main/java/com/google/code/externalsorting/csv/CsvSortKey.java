@@ -0,0 +1,299 @@
+package com.google.code.externalsorting.csv;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Sort key made of a list of columns, each with a type and a direction.
+ *
+ * Comparing records with a regular comparator parses the key columns at
+ * every comparison. Instead, when the sort options hold a CsvSortKey, the
+ * key of each record is parsed once, into primitive longs for the numeric
+ * columns, and carried alongside the record while sorting and merging.
+ *
+ * Numeric values that cannot be parsed (including empty and missing
+ * fields) sort before all other values.
+ *
+ * A CsvSortKey is also a plain {@link Comparator}, for code that needs
+ * one.
+ */
+public final class CsvSortKey implements Comparator<CSVRecord> {
+
+	/**
+	 * How the values of a column are compared.
+	 */
+	public enum Type {
+		/**
+		 * Compared as strings, with {@link String#compareTo}.
+		 */
+		STRING,
+		/**
+		 * Parsed with {@link Long#parseLong}.
+		 */
+		LONG,
+		/**
+		 * Parsed with {@link Double#parseDouble}.
+		 */
+		DOUBLE
+	}
+
+	private final int[] columns;
+	private final Type[] types;
+	private final boolean[] descending;
+	// index of each column in the numbers or strings of a KeyedRecord
+	private final int[] slots;
+	private final int numberCount;
+	private final int stringCount;
+
+	private CsvSortKey(Builder builder) {
+		int n = builder.columns.size();
+		columns = new int[n];
+		types = new Type[n];
+		descending = new boolean[n];
+		slots = new int[n];
+		int numbers = 0, strings = 0;
+		for (int i = 0; i < n; i++) {
+			columns[i] = builder.columns.get(i);
+			types[i] = builder.types.get(i);
+			descending[i] = builder.descending.get(i);
+			slots[i] = types[i] == Type.STRING ? strings++ : numbers++;
+		}
+		numberCount = numbers;
+		stringCount = strings;
+	}
+
+	/**
+	 * Creates a builder.
+	 * @return a new builder
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Parses the key of a record.
+	 * @param record the record
+	 * @return the record with its key
+	 */
+	KeyedRecord extract(CSVRecord record) {
+		long[] numbers = numberCount == 0 ? null : new long[numberCount];
+		String[] strings = stringCount == 0 ? null : new String[stringCount];
+		for (int i = 0; i < columns.length; i++) {
+			String value = value(record, columns[i]);
+			switch (types[i]) {
+			case LONG:
+				numbers[slots[i]] = parseLong(value);
+				break;
+			case DOUBLE:
+				numbers[slots[i]] = parseDouble(value);
+				break;
+			default:
+				strings[slots[i]] = value;
+			}
+		}
+		return new KeyedRecord(record, numbers, strings);
+	}
+
+	/**
+	 * Allocates the numeric part of a key.
+	 * @return an array for the numeric columns, or null if there is none
+	 */
+	long[] newNumbers() {
+		return numberCount == 0 ? null : new long[numberCount];
+	}
+
+	/**
+	 * Completes a key whose numeric part was already parsed: the string
+	 * columns are taken from the record as they are.
+	 * @param record the record
+	 * @param numbers the numeric part of the key
+	 * @return the record with its key
+	 */
+	KeyedRecord withNumbers(CSVRecord record, long[] numbers) {
+		String[] strings = stringCount == 0 ? null : new String[stringCount];
+		for (int i = 0; i < columns.length; i++) {
+			if (types[i] == Type.STRING) {
+				strings[slots[i]] = value(record, columns[i]);
+			}
+		}
+		return new KeyedRecord(record, numbers, strings);
+	}
+
+	/**
+	 * Gets the number of numeric columns in the key.
+	 * @return the number of numeric columns
+	 */
+	int numberCount() {
+		return numberCount;
+	}
+
+	/**
+	 * Parses the numeric part of the key of a record into an array.
+	 * @param record the record
+	 * @param into where the numeric part of the key is stored
+	 * @param offset position in into of the first numeric column
+	 */
+	void parseNumbers(CSVRecord record, long[] into, int offset) {
+		for (int i = 0; i < columns.length; i++) {
+			if (types[i] == Type.LONG) {
+				into[offset + slots[i]] = parseLong(value(record, columns[i]));
+			} else if (types[i] == Type.DOUBLE) {
+				into[offset + slots[i]] = parseDouble(value(record, columns[i]));
+			}
+		}
+	}
+
+	/**
+	 * Compares the keys of two records of a block.
+	 * @param block the block holding the records
+	 * @param a index of a record in the block
+	 * @param b index of another record in the block
+	 * @return a negative integer, zero, or a positive integer as a sorts
+	 *         before, with or after b
+	 */
+	int compare(CsvRecordBlock block, int a, int b) {
+		for (int i = 0; i < columns.length; i++) {
+			int c;
+			if (types[i] == Type.STRING) {
+				c = block.compareField(a, b, columns[i]);
+			} else {
+				c = Long.compare(block.key(a, slots[i]), block.key(b, slots[i]));
+			}
+			if (c != 0) {
+				return descending[i] ? -c : c;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Compares the keys of two records.
+	 * @param a a record with its key
+	 * @param b another record with its key
+	 * @return a negative integer, zero, or a positive integer as a sorts
+	 *         before, with or after b
+	 */
+	int compare(KeyedRecord a, KeyedRecord b) {
+		for (int i = 0; i < columns.length; i++) {
+			int c;
+			if (types[i] == Type.STRING) {
+				c = a.strings[slots[i]].compareTo(b.strings[slots[i]]);
+			} else {
+				c = Long.compare(a.numbers[slots[i]], b.numbers[slots[i]]);
+			}
+			if (c != 0) {
+				return descending[i] ? -c : c;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Compares two records by parsing their keys. Prefer sorting with
+	 * {@link CsvSortOptions.Builder#sortKey}, which parses each key once.
+	 */
+	@Override
+	public int compare(CSVRecord a, CSVRecord b) {
+		return compare(extract(a), extract(b));
+	}
+
+	/**
+	 * Missing and null fields are treated as empty.
+	 */
+	private static String value(CSVRecord record, int column) {
+		String value = column < record.size() ? record.get(column) : null;
+		return value == null ? "" : value;
+	}
+
+	private static long parseLong(String value) {
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return Long.MIN_VALUE;
+		}
+	}
+
+	/**
+	 * Maps a double to a long with the same order.
+	 */
+	private static long parseDouble(String value) {
+		double d;
+		try {
+			d = Double.parseDouble(value.trim());
+		} catch (NumberFormatException e) {
+			return Long.MIN_VALUE;
+		}
+		long bits = Double.doubleToLongBits(d);
+		// negative values: flip all bits but the sign so that they sort in reverse
+		return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+	}
+
+	/**
+	 * Builder for a CsvSortKey: columns are compared in the order they are
+	 * added.
+	 */
+	public static final class Builder {
+		private final List<Integer> columns = new ArrayList<Integer>();
+		private final List<Type> types = new ArrayList<Type>();
+		private final List<Boolean> descending = new ArrayList<Boolean>();
+
+		private Builder() {
+		}
+
+		/**
+		 * Adds a column sorted in ascending order.
+		 * @param column the index of the column (starting at 0)
+		 * @param type how the values are compared
+		 * @return this builder
+		 */
+		public Builder column(int column, Type type) {
+			return column(column, type, false);
+		}
+
+		/**
+		 * Adds a column.
+		 * @param column the index of the column (starting at 0)
+		 * @param type how the values are compared
+		 * @param descending true to sort in descending order
+		 * @return this builder
+		 */
+		public Builder column(int column, Type type, boolean descending) {
+			if (column < 0) {
+				throw new IllegalArgumentException("column should be positive");
+			}
+			this.columns.add(column);
+			this.types.add(type);
+			this.descending.add(descending);
+			return this;
+		}
+
+		/**
+		 * Builds the CsvSortKey instance.
+		 * @return a new CsvSortKey
+		 */
+		public CsvSortKey build() {
+			if (columns.isEmpty()) {
+				throw new IllegalStateException("a sort key needs at least one column");
+			}
+			return new CsvSortKey(this);
+		}
+	}
+
+	/**
+	 * A record with its parsed key.
+	 */
+	static final class KeyedRecord {
+		final CSVRecord record;
+		final long[] numbers;
+		final String[] strings;
+
+		KeyedRecord(CSVRecord record, long[] numbers, String[] strings) {
+			this.record = record;
+			this.numbers = numbers;
+			this.strings = strings;
+		}
+	}
+}
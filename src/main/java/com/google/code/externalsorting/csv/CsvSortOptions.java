@@ -1,24 +1,75 @@
 package com.google.code.externalsorting.csv;
 
+import com.google.code.externalsorting.Compression;
+import com.google.code.externalsorting.DirectIO;
+import com.google.code.externalsorting.IOBufferPlanner;
+import com.google.code.externalsorting.SortHandle;
+import com.google.code.externalsorting.SortListener;
+import com.google.code.externalsorting.SortMetrics;
+import com.google.code.externalsorting.TempFileStore;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVRecord;
 
+import java.io.File;
 import java.nio.charset.Charset;
 import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Parameters for csv sorting
  */
 public class CsvSortOptions {
+
+    /**
+     * What two records must have in common to be duplicates, in a distinct
+     * sort. Duplicates are removed as they come out sorted, so only records
+     * adjacent in the sort order are compared.
+     */
+    public enum Distinct {
+        /**
+         * All their fields.
+         */
+        RECORD,
+        /**
+         * Their sort key: the comparator (or {@link CsvSortKey}) finds them
+         * equal. The first one written is kept.
+         */
+        SORT_KEY,
+        /**
+         * Some of their columns, which should be leading columns of the sort
+         * key for the duplicates to be adjacent.
+         */
+        COLUMNS
+    }
+
     private final Comparator<CSVRecord> comparator;
     private final int maxTmpFiles;
     private final long maxMemory;
     private final Charset charset;
 
     private final boolean distinct;
+    private final Distinct distinctBy;
+    private final int[] distinctColumns;
     private final int numHeader; //number of header row in input file
     private final boolean skipHeader; //print header or not to output file
     private final CSVFormat format;
+    private final boolean parallel;
+    private final int spillThreads;
+    private final Executor executor;
+    private final ForkJoinPool forkJoinPool;
+    private final boolean virtualThreads;
+    private final Compression compression;
+    private final CsvSortKey sortKey;
+    private final boolean binaryRuns;
+    private final SortListener listener;
+    private final SortMetrics metrics;
+    private final SortHandle handle;
+    private final boolean directIO;
+    private final int ioBufferSize;
+    private final long ioMemory;
+    private final TempFileStore tmpFileStore;
 
     /**
      * Gets the comparator used for sorting CSV records.
@@ -55,6 +106,21 @@ public class CsvSortOptions {
     public boolean isDistinct() {
         return distinct;
     }
+    /**
+     * Gets what duplicate records have in common, in a distinct sort.
+     * @return the kind of duplicates
+     */
+    public Distinct getDistinctBy() {
+        return distinctBy;
+    }
+    /**
+     * Gets the columns compared to find duplicates, with
+     * {@link Distinct#COLUMNS}.
+     * @return the indexes of the columns (starting at 0)
+     */
+    public int[] getDistinctColumns() {
+        return distinctColumns.clone();
+    }
     /**
      * Gets the number of header rows in the input file.
      * @return the number of header rows
@@ -76,28 +142,161 @@ public class CsvSortOptions {
     public CSVFormat getFormat() {
         return format;
     }
+    /**
+     * Indicates whether each block is sorted in parallel.
+     * @return true if blocks are sorted in parallel
+     */
+    public boolean isParallel() {
+        return parallel;
+    }
+    /**
+     * Gets the number of threads sorting and writing full blocks while the
+     * input is still being parsed. Zero means that blocks are sorted and
+     * written by the parsing thread.
+     * @return the number of spill threads
+     */
+    public int getSpillThreads() {
+        return spillThreads;
+    }
+    /**
+     * Gets the executor running the spills, at most
+     * {@link #getSpillThreads()} at once.
+     * @return the executor, or null if the sort uses threads of its own
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+    /**
+     * Gets the pool running the parallel sorts of the blocks.
+     * @return the pool, or null for the common pool
+     */
+    public ForkJoinPool getForkJoinPool() {
+        return forkJoinPool;
+    }
+    /**
+     * Checks whether the spill threads, when the sort has no executor, are
+     * virtual threads.
+     * @return true if virtual threads are requested
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+    /**
+     * Gets the compression of the temporary files.
+     * @return the compression
+     */
+    public Compression getCompression() {
+        return compression;
+    }
+    /**
+     * Gets the sort key, whose columns are parsed once per record.
+     * @return the sort key, or null if records are sorted with a plain comparator
+     */
+    public CsvSortKey getSortKey() {
+        return sortKey;
+    }
+    /**
+     * Indicates whether temporary files use the compact binary format rather
+     * than the CSV format.
+     * @return true if temporary files are binary
+     */
+    public boolean isBinaryRuns() {
+        return binaryRuns;
+    }
+
+    /**
+     * Gets the listener notified of the progress of the sort.
+     * @return the listener, {@link SortListener#NONE} by default
+     */
+    public SortListener getListener() {
+        return listener;
+    }
+    /**
+     * Gets the metrics updated by the sort.
+     * @return the metrics, or null if the sort is not instrumented
+     */
+    public SortMetrics getMetrics() {
+        return metrics;
+    }
+    /**
+     * Gets the handle controlling the sort.
+     * @return the handle, or null if the sort cannot be cancelled
+     */
+    public SortHandle getHandle() {
+        return handle;
+    }
+    /**
+     * Indicates whether the temporary files bypass the page cache.
+     * @return true for direct I/O
+     * @see DirectIO
+     */
+    public boolean isDirectIO() {
+        return directIO;
+    }
+    /**
+     * Gets the largest buffer of a stream reading or writing a temporary file.
+     * @return the size (in bytes)
+     */
+    public int getIoBufferSize() {
+        return ioBufferSize;
+    }
+    /**
+     * Gets the memory for the buffers of the streams of the temporary files.
+     * @return the memory (in bytes), or 0 for the default
+     * @see IOBufferPlanner
+     */
+    public long getIoMemory() {
+        return ioMemory;
+    }
+    /**
+     * Gets the store placing the temporary files, when the sorting methods
+     * are not given a directory.
+     * @return the store
+     */
+    public TempFileStore getTmpFileStore() {
+        return tmpFileStore;
+    }
 
     /**
      * Builder class for constructing CsvSortOptions with custom parameters.
      */
     public static class Builder {
         //mandatory params
-        private final Comparator<CSVRecord> cmp;
+        private Comparator<CSVRecord> cmp;
         private final int maxTmpFiles;
         private final long maxMemory;
 
         //optional params with default values
         private Charset cs = Charset.defaultCharset();
         private boolean distinct = false;
+        private Distinct distinctBy = Distinct.RECORD;
+        private int[] distinctColumns = new int[0];
         private int numHeader = 0;
         private boolean skipHeader = true;
         private CSVFormat format = CSVFormat.DEFAULT;
+        private boolean parallel = false;
+        private int spillThreads = 0;
+        private Executor executor = null;
+        private ForkJoinPool forkJoinPool = null;
+        private boolean virtualThreads = false;
+        private Compression compression = Compression.NONE;
+        private CsvSortKey sortKey = null;
+        private boolean binaryRuns = false;
+        private SortListener listener = SortListener.NONE;
+        private SortMetrics metrics = null;
+        private SortHandle handle = null;
+        private boolean directIO = false;
+        private int ioBufferSize = DirectIO.DEFAULT_BUFFER_SIZE;
+        private long ioMemory = 0;
+        private List<File> tmpDirectories = null;
 
         /**
          * Constructs a Builder for CsvSortOptions.
          * @param cmp the comparator for sorting
          * @param maxTmpFiles the max number of temp files
-         * @param maxMemory the max memory to use
+         * @param maxMemory the max memory to use, capped by what the
+         *        {@link com.google.code.externalsorting.MemoryBudget} shared
+         *        by the JVM has left
          */
         public Builder(Comparator<CSVRecord> cmp, int maxTmpFiles, long maxMemory) {
             this.cmp = cmp;
@@ -122,6 +321,31 @@ public class CsvSortOptions {
             distinct = value;
             return this;
         }
+        /**
+         * Sets what duplicate records have in common, and removes them.
+         * @param value the kind of duplicates
+         * @return this builder
+         */
+        public Builder distinctBy(Distinct value){
+            distinctBy = value;
+            distinct = true;
+            return this;
+        }
+        /**
+         * Removes the records which have the same values in some columns as
+         * the previous record kept.
+         * @param columns the indexes of the columns (starting at 0)
+         * @return this builder
+         */
+        public Builder distinctColumns(int... columns){
+            for (int column : columns) {
+                if (column < 0) {
+                    throw new IllegalArgumentException("column should be positive");
+                }
+            }
+            distinctColumns = columns.clone();
+            return distinctBy(Distinct.COLUMNS);
+        }
         /**
          * Sets the number of header rows.
          * @param value the number of header rows
@@ -149,6 +373,176 @@ public class CsvSortOptions {
             format = value;
             return this;
         }
+        /**
+         * Sets whether each block is sorted in parallel.
+         * @param value true to sort in parallel
+         * @return this builder
+         */
+        public Builder parallel(boolean value){
+            parallel = value;
+            return this;
+        }
+        /**
+         * Sets the number of threads sorting and writing full blocks while
+         * the input is still being parsed. The memory is shared between the
+         * block being filled and the blocks being spilled, so the blocks get
+         * smaller as this number grows.
+         * @param value the number of spill threads, zero to spill synchronously
+         * @return this builder
+         */
+        public Builder spillThreads(int value){
+            if (value < 0) {
+                throw new IllegalArgumentException("spillThreads should be positive");
+            }
+            spillThreads = value;
+            return this;
+        }
+        /**
+         * Sets the executor running the spills, which may be shared with
+         * other sorts: the number of spill threads still bounds the spills of
+         * the sort run at once. The sort never shuts it down.
+         * @param value the executor, or null for threads of the sort
+         * @return this builder
+         */
+        public Builder executor(Executor value){
+            executor = value;
+            return this;
+        }
+        /**
+         * Sets the pool running the parallel sorts of the blocks, rather than
+         * the common pool.
+         * @param value the pool, or null for the common pool
+         * @return this builder
+         */
+        public Builder forkJoinPool(ForkJoinPool value){
+            forkJoinPool = value;
+            return this;
+        }
+        /**
+         * Sets whether the spill threads, when the sort has no executor, are
+         * virtual threads. Without virtual threads (before Java 21), they are
+         * platform threads.
+         * @param value true for virtual threads
+         * @return this builder
+         */
+        public Builder virtualThreads(boolean value){
+            virtualThreads = value;
+            return this;
+        }
+        /**
+         * Sets the compression of the temporary files.
+         * @param value the compression
+         * @return this builder
+         */
+        public Builder compression(Compression value){
+            compression = value;
+            return this;
+        }
+        /**
+         * Sorts with a key parsed once per record, rather than with the
+         * comparator given to the constructor (which may then be null).
+         * @param value the sort key
+         * @return this builder
+         */
+        public Builder sortKey(CsvSortKey value){
+            sortKey = value;
+            cmp = value;
+            return this;
+        }
+        /**
+         * Sets whether temporary files use a compact binary format, which is
+         * read back without CSV parsing, or the CSV format (the default).
+         * Either way, the output of the merge uses the CSV format. The records
+         * read back from binary files have the header mapping of the format
+         * only if it declares the names of its columns, and files merged with
+         * {@link CsvExternalSort#merge(List, File, CsvSortOptions, boolean, List)}
+         * must then come from {@link CsvExternalSort#sortInBatch}. The CSV
+         * format is used if this version of Commons CSV does not support the
+         * binary format.
+         * @param value true for binary temporary files
+         * @return this builder
+         */
+        public Builder binaryRuns(boolean value){
+            binaryRuns = value;
+            return this;
+        }
+        /**
+         * Sets the listener notified of the progress of the sort. Metrics
+         * are collected as well, in a new {@link SortMetrics} unless one
+         * is set with {@link #metrics}.
+         * @param value the listener
+         * @return this builder
+         */
+        public Builder listener(SortListener value){
+            listener = value == null ? SortListener.NONE : value;
+            return this;
+        }
+        /**
+         * Sets the metrics updated by the sort, for instance to register
+         * them as an MBean beforehand. Records count as lines.
+         * @param value the metrics, or null not to collect any
+         * @return this builder
+         */
+        public Builder metrics(SortMetrics value){
+            metrics = value;
+            return this;
+        }
+        /**
+         * Sets the handle used to cancel the sort and to release its
+         * temporary files. Use the same handle for the creation of the
+         * runs and for their merge.
+         * @param value the handle, or null
+         * @return this builder
+         */
+        public Builder handle(SortHandle value){
+            handle = value;
+            return this;
+        }
+        /**
+         * Sets the directories of the temporary files, typically on distinct
+         * drives: the runs are spread over them. A directory given to the
+         * sorting methods takes precedence.
+         * @param value the directories, or null for the default location
+         * @return this builder
+         */
+        public Builder tmpDirectories(List<File> value){
+            tmpDirectories = value;
+            return this;
+        }
+        /**
+         * Sets whether the temporary files bypass the page cache, when the
+         * JVM and the file system support it, so that a sort does not evict
+         * the files cached for other processes.
+         * @param value true for direct I/O
+         * @return this builder
+         * @see DirectIO
+         */
+        public Builder directIO(boolean value){
+            directIO = value;
+            return this;
+        }
+        /**
+         * Sets the largest buffer of a stream reading or writing a temporary
+         * file. It is rounded to a multiple of {@link DirectIO#ALIGNMENT}.
+         * @param value the size (in bytes)
+         * @return this builder
+         */
+        public Builder ioBufferSize(int value){
+            ioBufferSize = value;
+            return this;
+        }
+        /**
+         * Sets the memory for the buffers of the streams of the temporary
+         * files, split between the runs being merged and the output.
+         * @param value the memory (in bytes), or 0 for
+         *            {@link IOBufferPlanner#defaultBudget()}
+         * @return this builder
+         * @see IOBufferPlanner
+         */
+        public Builder ioMemory(long value){
+            ioMemory = value;
+            return this;
+        }
         /**
          * Builds the CsvSortOptions instance.
          * @return a new CsvSortOptions
@@ -164,9 +558,27 @@ public class CsvSortOptions {
         this.maxMemory = builder.maxMemory;
         this.charset = builder.cs;
         this.distinct = builder.distinct;
+        this.distinctBy = builder.distinctBy;
+        this.distinctColumns = builder.distinctColumns;
         this.numHeader = builder.numHeader;
         this.skipHeader = builder.skipHeader;
         this.format = builder.format;
+        this.parallel = builder.parallel;
+        this.spillThreads = builder.spillThreads;
+        this.executor = builder.executor;
+        this.forkJoinPool = builder.forkJoinPool;
+        this.virtualThreads = builder.virtualThreads;
+        this.compression = builder.compression;
+        this.sortKey = builder.cmp instanceof CsvSortKey ? (CsvSortKey) builder.cmp : null;
+        this.binaryRuns = builder.binaryRuns;
+        this.listener = builder.listener;
+        this.metrics = builder.metrics == null && builder.listener != SortListener.NONE
+            ? new SortMetrics() : builder.metrics;
+        this.handle = builder.handle;
+        this.directIO = builder.directIO;
+        this.ioBufferSize = builder.ioBufferSize;
+        this.ioMemory = builder.ioMemory;
+        this.tmpFileStore = new TempFileStore(builder.tmpDirectories);
     }
 
 }
@@ -0,0 +1,120 @@
+package com.google.code.externalsorting.csv;
+
+import java.util.Comparator;
+
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Removes the duplicates of a sorted stream of records, as they are written.
+ *
+ * The records are compared with the last record kept. With
+ * {@link CsvSortOptions.Distinct#SORT_KEY}, that is a single comparison of
+ * the keys, parsed once. Otherwise, the compared fields are checked for
+ * equality in order: since the records are sorted, a record which is not a
+ * duplicate usually differs from the last one in its first fields. Hashing
+ * the fields would not help, as the records are rebuilt from the runs with
+ * new strings, whose hashes are not cached.
+ */
+final class DuplicateFilter {
+
+	private final CsvSortOptions.Distinct mode;
+	private final int[] columns;
+	private final Comparator<CSVRecord> cmp;
+	private final CsvSortKey sortKey;
+
+	private CSVRecord last;
+	private CsvSortKey.KeyedRecord lastKeyed;
+
+	/**
+	 * Constructs a filter for a sort, with nothing kept yet.
+	 * @param sortOptions sorting options
+	 * @param cmp the comparator of the sort, counting its calls if the sort
+	 *        is instrumented
+	 */
+	DuplicateFilter(CsvSortOptions sortOptions, Comparator<CSVRecord> cmp) {
+		this.mode = sortOptions.getDistinctBy();
+		this.columns = sortOptions.getDistinctColumns();
+		this.sortKey = sortOptions.getSortKey();
+		this.cmp = sortKey != null ? sortKey : cmp;
+	}
+
+	/**
+	 * Checks whether a record duplicates the last record kept, and keeps it
+	 * otherwise.
+	 * @param record the record
+	 * @param keyed the record with its key, or null
+	 * @return true if the record should be skipped
+	 */
+	boolean isDuplicate(CSVRecord record, CsvSortKey.KeyedRecord keyed) {
+		boolean duplicate;
+		if (mode == CsvSortOptions.Distinct.SORT_KEY) {
+			if (last == null) {
+				duplicate = false;
+			} else if (sortKey != null && keyed != null && lastKeyed != null) {
+				duplicate = sortKey.compare(keyed, lastKeyed) == 0;
+			} else {
+				duplicate = cmp.compare(record, last) == 0;
+			}
+			if (!duplicate) {
+				last = record;
+				lastKeyed = keyed;
+			}
+			return duplicate;
+		}
+		duplicate = last != null && sameFields(record, last);
+		if (!duplicate) {
+			last = record;
+		}
+		return duplicate;
+	}
+
+	private boolean sameFields(CSVRecord a, CSVRecord b) {
+		if (mode == CsvSortOptions.Distinct.COLUMNS) {
+			for (int column : columns) {
+				if (!equal(value(a, column), value(b, column))) {
+					return false;
+				}
+			}
+			return true;
+		}
+		if (a.size() != b.size()) {
+			return false;
+		}
+		for (int i = 0; i < a.size(); i++) {
+			if (!equal(a.get(i), b.get(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * Missing fields are null.
+	 */
+	private static String value(CSVRecord record, int column) {
+		return column < record.size() ? record.get(column) : null;
+	}
+
+	/**
+	 * Checks whether two records of a block are duplicates. The block has a
+	 * sort key.
+	 * @param block the block holding the records
+	 * @param a index of a record in the block
+	 * @param b index of another record in the block
+	 * @return true if the records are duplicates
+	 */
+	boolean isDuplicate(CsvRecordBlock block, int a, int b) {
+		switch (mode) {
+		case SORT_KEY:
+			return sortKey.compare(block, a, b) == 0;
+		case COLUMNS:
+			return block.sameFields(a, b, columns);
+		default:
+			return block.sameFields(a, b);
+		}
+	}
+}
@@ -1,16 +1,37 @@
 package com.google.code.externalsorting.csv;
 
+import com.google.code.externalsorting.MemoryLayout;
+import org.apache.commons.csv.CSVRecord;
+
 /**
  * Utility class for estimating the memory size of objects and arrays in the JVM.
  * This is used to approximate the memory usage of CSV records and related structures.
  */
 public final class SizeEstimator {
-	private static int OBJ_HEADER;
-	private static int ARR_HEADER;
-	private static int INT_FIELDS = 12;
-	private static int OBJ_REF;
-	private static int OBJ_OVERHEAD;
-	private static boolean IS_64_BIT_JVM;
+	/**
+	 * Memory used by a record besides its characters, following the layout of the
+	 * running JVM.
+	 */
+	private static final int OBJ_OVERHEAD = MemoryLayout.STRING_SHALLOW_SIZE
+			+ MemoryLayout.ARRAY_HEADER + MemoryLayout.OBJECT_ALIGNMENT
+			+ 2 * MemoryLayout.REFERENCE_SIZE;
+
+	/**
+	 * Memory used by a CSVRecord besides its fields: the record itself (values,
+	 * comment and parser references, record number and character position)
+	 * and the header of its array of values, rounded up to the alignment.
+	 */
+	private static final int RECORD_OVERHEAD = (int) MemoryLayout.align(MemoryLayout.OBJECT_HEADER
+			+ 3 * MemoryLayout.REFERENCE_SIZE + 2 * 8)
+			+ MemoryLayout.ARRAY_HEADER + MemoryLayout.OBJECT_ALIGNMENT;
+
+	/**
+	 * Memory used by a field besides its characters: its slot in the array of
+	 * values, the string and the header of its array, rounded up to the
+	 * alignment.
+	 */
+	private static final int FIELD_OVERHEAD = MemoryLayout.REFERENCE_SIZE + MemoryLayout.STRING_SHALLOW_SIZE
+			+ MemoryLayout.ARRAY_HEADER + MemoryLayout.OBJECT_ALIGNMENT;
 
 	/**
      * Private constructor to prevent instantiation.
@@ -18,37 +39,6 @@ public final class SizeEstimator {
 	private SizeEstimator() {
 	}
 
-	/**
-     * Class initializations.
-     */
-	static {
-		// By default we assume 64 bit JVM
-		// (defensive approach since we will get
-		// larger estimations in case we are not sure)
-		IS_64_BIT_JVM = true;
-		// check the system property "sun.arch.data.model"
-		// not very safe, as it might not work for all JVM implementations
-		// nevertheless the worst thing that might happen is that the JVM is 32bit
-		// but we assume its 64bit, so we will be counting a few extra bytes per string object
-		// no harm done here since this is just an approximation.
-		String arch = System.getProperty("sun.arch.data.model");
-		if (arch != null) {
-			if (arch.indexOf("32") != -1) {
-				// If exists and is 32 bit then we assume a 32bit JVM
-				IS_64_BIT_JVM = false;
-			}
-		}
-		// The sizes below are a bit rough as we don't take into account 
-		// advanced JVM options such as compressed oops
-		// however if our calculation is not accurate it'll be a bit over
-		// so there is no danger of an out of memory error because of this.
-		OBJ_HEADER = IS_64_BIT_JVM ? 16 : 8;
-		ARR_HEADER = IS_64_BIT_JVM ? 24 : 12;
-		OBJ_REF = IS_64_BIT_JVM ? 8 : 4;
-		OBJ_OVERHEAD = OBJ_HEADER + INT_FIELDS + OBJ_REF + ARR_HEADER;
-
-	}
-	
 	/**
 	 * Estimates the size of a object in bytes.
 	 * 
@@ -56,6 +46,27 @@ public final class SizeEstimator {
 	 * @return The <strong>estimated</strong> size in bytes.
 	 */
 	public static long estimatedSizeOf(Object s) {
-		return ((long) (s.toString().length() * 2) + OBJ_OVERHEAD);
+		String string = s.toString();
+		return ((long) string.length() * MemoryLayout.charSize(string) + OBJ_OVERHEAD);
+	}
+
+	/**
+	 * Estimates the size of a CSV record in bytes, from the lengths of its
+	 * fields. Unlike {@link #estimatedSizeOf(Object)}, it does not build the
+	 * string of the whole record, and so allocates nothing.
+	 *
+	 * @param record The record to estimate memory footprint.
+	 * @return The <strong>estimated</strong> size in bytes.
+	 */
+	public static long estimatedSizeOf(CSVRecord record) {
+		int n = record.size();
+		long size = RECORD_OVERHEAD + (long) n * FIELD_OVERHEAD;
+		for (int i = 0; i < n; i++) {
+			String value = record.get(i);
+			if (value != null) {
+				size += (long) MemoryLayout.charSize(value) * value.length();
+			}
+		}
+		return size;
 	}
 }
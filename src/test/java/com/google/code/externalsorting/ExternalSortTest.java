@@ -6,8 +6,11 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
 import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
@@ -15,10 +18,22 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
+import javax.management.ObjectName;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Ignore;
@@ -140,6 +155,928 @@ public class ExternalSortTest {
       }
     }
 
+    @Test
+    public void stringSizeEstimatorNeverUnderestimates() {
+      MemoryMeter meter = new MemoryMeter();
+      // Latin-1 strings are compact on Java 9 and above
+      for (char c : new char[] {'\u00e9', '\u0101'}) {
+        for (int length = 0; length < 100; ++length) {
+          char[] chars = new char[length];
+          Arrays.fill(chars, c);
+          String s = new String(chars);
+          Object backing = MemoryLayout.COMPACT_STRINGS && c <= 0xFF ? new byte[length] : chars;
+          long actual = meter.measure(s) + meter.measure(backing) + MemoryLayout.REFERENCE_SIZE;
+          assertTrue(StringSizeEstimator.estimatedSizeOf(s) >= actual);
+          assertTrue(StringSizeEstimator.estimatedSizeOf(s) <= 2 * actual);
+        }
+      }
+    }
+
+    @Test
+    public void memoryAccountantBlockSize() {
+      MemoryAccountant accountant = new MemoryAccountant(1000000, 0.5);
+      assertEquals(500000, accountant.blockSize());
+      // blocks too small to be measured leave the ratio alone
+      accountant.beginBlock();
+      accountant.endBlock(1000);
+      assertEquals(1.0, accountant.getRatio(), 0.0);
+    }
+
+    @Test
+    public void memoryBudgetDoesNotOversubscribe() {
+      MemoryBudget budget = new MemoryBudget(1000);
+      long first = budget.reserve(800, 10);
+      assertEquals(800, first);
+      // only what is left is granted to a concurrent sort
+      long second = budget.reserve(800, 10);
+      assertEquals(200, second);
+      // but a sort always gets its minimum
+      assertEquals(10, budget.reserve(800, 10));
+      // even when it desires nothing, as with no memory available
+      assertEquals(10, budget.reserve(0, 10));
+      assertEquals(1020, budget.getReserved());
+      budget.release(first);
+      budget.release(second);
+      budget.release(10);
+      budget.release(10);
+      assertEquals(0, budget.getReserved());
+      assertTrue(budget.available() <= 1000);
+    }
+
+    @Test
+    public void memoryBudgetLeavesUsageThresholdsAlone() {
+      List<MemoryPoolMXBean> pools = new ArrayList<>();
+      List<Long> thresholds = new ArrayList<>();
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        if (pool.isCollectionUsageThresholdSupported()) {
+          pools.add(pool);
+          thresholds.add(pool.getCollectionUsageThreshold());
+        }
+      }
+      new MemoryBudget(1000).reserve(100, 10);
+      for (int i = 0; i < pools.size(); i++) {
+        assertEquals(thresholds.get(i).longValue(), pools.get(i).getCollectionUsageThreshold());
+      }
+    }
+
+    @Test
+    public void sortOffHeap() throws IOException {
+        Random r = new Random(1);
+        String[] alphabet = {"a", "b", "z", "\u00e9", "\uffe0", "\ud83d\ude00", "\ue000", "0"};
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 5000; ++i) {
+            StringBuilder sb = new StringBuilder();
+            int len = r.nextInt(6);
+            for (int k = 0; k < len; ++k) {
+                sb.append(alphabet[r.nextInt(alphabet.length)]);
+            }
+            lines.add(sb.toString());
+        }
+        String content = String.join("\n", lines) + "\n";
+        Comparator<String> reversed = Collections.reverseOrder();
+        for (Comparator<String> cmp : Arrays.asList(defaultcomparator, reversed)) {
+            for (boolean usegzip : new boolean[] {false, true}) {
+                BufferedReader in = new BufferedReader(new StringReader(content));
+                List<File> runs = ExternalSort.sortInBatchOffHeap(in, content.length(), cmp,
+                        Integer.MAX_VALUE, 4096, StandardCharsets.UTF_8, null, false, 0, usegzip);
+                assertTrue(runs.size() > 1);
+                File out = File.createTempFile("offheap", ".txt");
+                out.deleteOnExit();
+                ExternalSort.mergeSortedFiles(runs, out, cmp, StandardCharsets.UTF_8,
+                        false, false, usegzip);
+                List<String> expected = new ArrayList<>(lines);
+                Collections.sort(expected, cmp);
+                assertEquals(expected, Files.readAllLines(out.toPath(), StandardCharsets.UTF_8));
+            }
+        }
+
+        // with the options: temporary directory, statistics, handle
+        File tmp = Files.createTempDirectory("offheap").toFile();
+        SortStatistics statistics = new SortStatistics();
+        ExternalSortOptions options = new ExternalSortOptions.Builder()
+            .charset(StandardCharsets.UTF_8).tmpDirectory(tmp).distinct(true)
+            .listener(statistics).build();
+        List<File> runs = ExternalSort.sortInBatchOffHeap(
+            new BufferedReader(new StringReader(content)), content.length(), 4096, options);
+        assertTrue(runs.size() > 1);
+        assertEquals(runs.size(), statistics.getRuns().size());
+        long written = 0;
+        for (File run : runs) {
+            assertEquals(tmp, run.getParentFile());
+            written += Files.readAllLines(run.toPath(), StandardCharsets.UTF_8).size();
+        }
+        assertEquals(written, statistics.getRunLines());
+        assertEquals(lines.size(), options.getMetrics().getLinesRead());
+        for (File run : runs) {
+            assertTrue(run.delete());
+        }
+        SortHandle handle = new SortHandle();
+        handle.cancel();
+        try {
+            ExternalSort.sortInBatchOffHeap(new BufferedReader(new StringReader(content)),
+                content.length(), 4096, new ExternalSortOptions.Builder()
+                    .tmpDirectory(tmp).handle(handle).build());
+            fail("the sort should have been cancelled");
+        } catch (SortCancelledException e) {
+            assertTrue(handle.isClosed());
+        }
+        assertEquals(0, tmp.list().length);
+        assertTrue(tmp.delete());
+    }
+
+    @Test
+    public void sortWithMetrics() throws Exception {
+        Random r = new Random(2);
+        File in = File.createTempFile("metrics", ".txt");
+        in.deleteOnExit();
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 200000; ++i) {
+            lines.add(Integer.toString(r.nextInt(1000)));
+        }
+        Files.write(in.toPath(), lines, StandardCharsets.UTF_8);
+        File out = File.createTempFile("metrics", ".txt");
+        out.deleteOnExit();
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicLong runLines = new AtomicLong();
+        SortMetrics metrics = new SortMetrics();
+        ObjectName name = metrics.register("sortWithMetrics");
+        try {
+            ExternalSortOptions options = new ExternalSortOptions.Builder()
+                .maxTmpFiles(10).maxMemory(0).charset(StandardCharsets.UTF_8)
+                .usegzip(true).metrics(metrics)
+                .listener(new SortListener() {
+                    @Override
+                    public void phaseStarted(SortPhase phase, SortMetrics m) {
+                        events.add("start " + phase);
+                    }
+
+                    @Override
+                    public void phaseFinished(SortPhase phase, SortMetrics m) {
+                        events.add("finish " + phase);
+                    }
+
+                    @Override
+                    public void runCreated(File run, long count, SortMetrics m) {
+                        runLines.addAndGet(count);
+                    }
+                }).build();
+            assertEquals(lines.size(), ExternalSort.sort(in, out, options));
+            assertEquals(Arrays.asList("start RUN_GENERATION", "finish RUN_GENERATION",
+                "start MERGE", "finish MERGE"), events);
+            assertEquals(lines.size(), metrics.getLinesRead());
+            assertEquals(lines.size(), metrics.getLinesWritten());
+            assertEquals(lines.size(), runLines.get());
+            assertEquals(in.length(), metrics.getBytesRead());
+            assertEquals(out.length(), metrics.getBytesWritten());
+            assertTrue(metrics.getRunsCreated() > 1);
+            assertEquals(1, metrics.getMergePasses());
+            assertTrue(metrics.getComparisons() > lines.size());
+            assertTrue(metrics.getCompressionRatio() > 1);
+            assertEquals(0, metrics.getEstimatedMillisRemaining());
+            assertEquals("MERGE", ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Phase"));
+        } finally {
+            metrics.unregister();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+
+    @Test
+    public void cancelledSortDeletesItsFiles() throws Exception {
+        Random r = new Random(3);
+        File in = File.createTempFile("cancel", ".txt");
+        in.deleteOnExit();
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 200000; ++i) {
+            lines.add(Integer.toString(r.nextInt()));
+        }
+        Files.write(in.toPath(), lines, StandardCharsets.UTF_8);
+        File tmpDirectory = Files.createTempDirectory("cancel").toFile();
+        File out = File.createTempFile("cancel", ".txt");
+        out.deleteOnExit();
+        try {
+            // cancelled once the second run is written
+            final SortHandle handle = new SortHandle();
+            ExternalSortOptions options = new ExternalSortOptions.Builder()
+                .maxTmpFiles(10).maxMemory(0).tmpDirectory(tmpDirectory)
+                .handle(handle).listener(new SortListener() {
+                    @Override
+                    public void runCreated(File run, long count, SortMetrics m) {
+                        if (m.getRunsCreated() == 2) {
+                            handle.cancel();
+                        }
+                    }
+                }).build();
+            try {
+                ExternalSort.sortInBatch(in, options);
+                fail("the sort should have been cancelled");
+            } catch (SortCancelledException e) {
+                assertEquals("sort cancelled", e.getMessage());
+            }
+            assertTrue(handle.isClosed());
+            assertEquals(0, tmpDirectory.list().length);
+
+            try {
+                ExternalSort.sortInBatch(in, new ExternalSortOptions.Builder()
+                    .tmpDirectory(tmpDirectory)
+                    .handle(new SortHandle(0, TimeUnit.MILLISECONDS)).build());
+                fail("the sort should have timed out");
+            } catch (SortCancelledException e) {
+                assertEquals("sort timed out", e.getMessage());
+            }
+            assertEquals(0, tmpDirectory.list().length);
+
+            // the runs are deleted when the merge is cancelled
+            final SortHandle merging = new SortHandle();
+            options = new ExternalSortOptions.Builder()
+                .maxTmpFiles(10).maxMemory(0).tmpDirectory(tmpDirectory)
+                .handle(merging).listener(new SortListener() {
+                    @Override
+                    public void phaseStarted(SortPhase phase, SortMetrics m) {
+                        if (phase == SortPhase.MERGE) {
+                            merging.cancel();
+                        }
+                    }
+                }).build();
+            List<File> runs = ExternalSort.sortInBatch(in, options);
+            assertTrue(runs.size() > 1);
+            assertEquals(runs, merging.getTempFiles());
+            try {
+                ExternalSort.mergeSortedFiles(runs, out, options, false);
+                fail("the merge should have been cancelled");
+            } catch (SortCancelledException e) {
+                assertEquals("sort cancelled", e.getMessage());
+            }
+            assertEquals(0, tmpDirectory.list().length);
+
+            // without a handle, the runs are deleted when the merge fails
+            options = new ExternalSortOptions.Builder()
+                .maxTmpFiles(10).maxMemory(0).tmpDirectory(tmpDirectory).build();
+            runs = ExternalSort.sortInBatch(in, options);
+            assertTrue(runs.size() > 1);
+            try {
+                ExternalSort.mergeSortedFiles(runs,
+                    new File(new File(tmpDirectory, "missing"), "out.txt"), options, false);
+                fail("the merge should have failed");
+            } catch (IOException e) {
+                // the output directory does not exist
+            }
+            assertEquals(0, tmpDirectory.list().length);
+        } finally {
+            for (File f : tmpDirectory.listFiles()) {
+                f.delete();
+            }
+            tmpDirectory.delete();
+        }
+    }
+
+    @Test
+    public void resumeFromCheckpoint() throws Exception {
+        Random r = new Random(4);
+        File in = File.createTempFile("checkpoint", ".txt");
+        in.deleteOnExit();
+        List<String> lines = new ArrayList<>();
+        lines.add("header");
+        for (int i = 0; i < 100000; ++i) {
+            lines.add(Integer.toString(r.nextInt()));
+        }
+        Files.write(in.toPath(), lines, StandardCharsets.UTF_8);
+        File directory = Files.createTempDirectory("checkpoint").toFile();
+        File out = File.createTempFile("checkpoint", ".txt");
+        out.deleteOnExit();
+        try {
+            ExternalSortOptions.Builder builder = new ExternalSortOptions.Builder()
+                .maxTmpFiles(20).maxMemory(0).numHeader(1)
+                .charset(StandardCharsets.UTF_8).usegzip(true);
+            // the sort crashes once the third run is written
+            ExternalSortOptions options = builder.build();
+            SortCheckpoint checkpoint = SortCheckpoint.open(directory, in, options);
+            try {
+                ExternalSort.sort(in, out, builder.checkpoint(checkpoint)
+                    .listener(new SortListener() {
+                        @Override
+                        public void runCreated(File run, long count, SortMetrics m) {
+                            if (m.getRunsCreated() == 3) {
+                                throw new IllegalStateException("crash");
+                            }
+                        }
+                    }).build());
+                fail("the sort should have crashed");
+            } catch (IllegalStateException e) {
+                assertEquals("crash", e.getMessage());
+            }
+            // a truncated run is sorted again
+            checkpoint = SortCheckpoint.open(directory, in, options);
+            assertEquals(3, checkpoint.getRuns().size());
+            assertFalse(checkpoint.isComplete());
+            File third = checkpoint.getRuns().get(2);
+            try (FileChannel channel = FileChannel.open(third.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(third.length() - 1);
+            }
+            checkpoint = SortCheckpoint.open(directory, in, options);
+            assertEquals(2, checkpoint.getRuns().size());
+            assertFalse(third.exists());
+            long consumed = checkpoint.getLinesConsumed();
+            assertTrue(consumed > 1 && consumed < lines.size());
+
+            SortMetrics metrics = new SortMetrics();
+            builder.checkpoint(checkpoint).metrics(metrics).listener(null);
+            assertEquals(lines.size() - 1, ExternalSort.sort(in, out, builder.build()));
+            assertEquals(lines.size() - consumed, metrics.getLinesRead());
+            List<String> expected = new ArrayList<>(lines.subList(1, lines.size()));
+            Collections.sort(expected);
+            assertEquals(expected, Files.readAllLines(out.toPath(), StandardCharsets.UTF_8));
+            assertEquals(0, directory.list().length);
+        } finally {
+            for (File f : directory.listFiles()) {
+                f.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void sortWithSeveralTmpDirectories() throws Exception {
+        Random r = new Random(6);
+        File in = File.createTempFile("striped", ".txt");
+        in.deleteOnExit();
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 100000; ++i) {
+            lines.add(Integer.toString(r.nextInt()));
+        }
+        Files.write(in.toPath(), lines, StandardCharsets.UTF_8);
+        File out = File.createTempFile("striped", ".txt");
+        out.deleteOnExit();
+        List<File> directories = new ArrayList<>();
+        for (int i = 0; i < 3; ++i) {
+            directories.add(Files.createTempDirectory("striped").toFile());
+        }
+        try {
+            TempFileStore store = TempFileStore.parse(directories.get(0)
+                + File.pathSeparator + directories.get(1) + File.pathSeparator
+                + directories.get(2));
+            assertEquals(directories, store.getDirectories());
+            ExternalSortOptions options = new ExternalSortOptions.Builder()
+                .maxTmpFiles(30).maxMemory(0).charset(StandardCharsets.UTF_8)
+                .tmpDirectories(store.getDirectories()).build();
+            List<File> runs = ExternalSort.sortInBatch(in, options);
+            assertTrue(runs.size() >= 6);
+            // round robin, as the directories have room and are idle
+            for (int i = 0; i < runs.size(); ++i) {
+                assertEquals(directories.get(i % 3), runs.get(i).getParentFile());
+            }
+            assertEquals(lines.size(), ExternalSort.mergeSortedFiles(runs, out, options, false));
+            Collections.sort(lines);
+            assertEquals(lines, Files.readAllLines(out.toPath(), StandardCharsets.UTF_8));
+            for (File d : directories) {
+                assertEquals(0, d.list().length);
+            }
+        } finally {
+            for (File d : directories) {
+                for (File f : d.listFiles()) {
+                    f.delete();
+                }
+                d.delete();
+            }
+        }
+    }
+
+    @Test
+    public void directIORoundTrip() throws Exception {
+        File f = File.createTempFile("direct", ".bin");
+        f.deleteOnExit();
+        byte[] data = new byte[3 * DirectIO.ALIGNMENT + 123];
+        new Random(7).nextBytes(data);
+        for (boolean direct : new boolean[] {false, true}) {
+            try (OutputStream out = DirectIO.newOutputStream(f, DirectIO.ALIGNMENT, direct)) {
+                out.write(data, 0, 100);
+                out.write(data[100]);
+                out.write(data, 101, data.length - 101);
+            }
+            // the padding of the last block is truncated
+            assertEquals(data.length, f.length());
+            ByteArrayOutputStream read = new ByteArrayOutputStream();
+            try (InputStream in = DirectIO.newInputStream(f, 2 * DirectIO.ALIGNMENT, direct)) {
+                byte[] buffer = new byte[1000];
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    read.write(buffer, 0, n);
+                }
+            }
+            assertArrayEquals(data, read.toByteArray());
+        }
+    }
+
+    @Test
+    public void sortIntoPartitions() throws Exception {
+        Random r = new Random(10);
+        File in = File.createTempFile("partitioned", ".txt");
+        in.deleteOnExit();
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 100000; ++i) {
+            lines.add(Integer.toString(r.nextInt(50000)));
+        }
+        Files.write(in.toPath(), lines, StandardCharsets.UTF_8);
+        Collections.sort(lines);
+        List<File> outputs = new ArrayList<>();
+        for (int i = 0; i < 4; ++i) {
+            File out = File.createTempFile("partition" + i, ".txt");
+            out.deleteOnExit();
+            outputs.add(out);
+        }
+        ExternalSortOptions options = new ExternalSortOptions.Builder()
+            .maxTmpFiles(20).maxMemory(0).charset(StandardCharsets.UTF_8)
+            .directIO(true).build();
+        long[] counts = ExternalSort.sortPartitioned(in, outputs, options);
+        List<String> all = new ArrayList<>();
+        for (int i = 0; i < 4; ++i) {
+            List<String> partition = Files.readAllLines(outputs.get(i).toPath(),
+                StandardCharsets.UTF_8);
+            assertEquals(counts[i], partition.size());
+            // balanced from the sample of the runs
+            assertTrue(partition.size() > lines.size() / 8);
+            all.addAll(partition);
+        }
+        // sorted, disjoint and ascending ranges
+        assertEquals(lines, all);
+
+        // given splitters, compressed runs without offsets, distinct lines
+        options = new ExternalSortOptions.Builder().maxTmpFiles(20).maxMemory(0)
+            .charset(StandardCharsets.UTF_8).usegzip(true).distinct(true).build();
+        SortedRuns runs = ExternalSort.sortIntoRuns(in, options);
+        assertTrue(runs.getFiles().size() > 1);
+        counts = ExternalSort.mergeSortedFiles(runs, outputs.subList(0, 3),
+            Arrays.asList("3"), options);
+        List<String> distinct = lines.stream().distinct().collect(Collectors.toList());
+        List<String> below = distinct.stream().filter(s -> s.compareTo("3") < 0)
+            .collect(Collectors.toList());
+        assertEquals(below, Files.readAllLines(outputs.get(0).toPath(), StandardCharsets.UTF_8));
+        assertEquals(distinct.subList(below.size(), distinct.size()),
+            Files.readAllLines(outputs.get(1).toPath(), StandardCharsets.UTF_8));
+        assertEquals(0, counts[2]);
+        assertEquals(0, outputs.get(2).length());
+        for (File run : runs.getFiles()) {
+            assertFalse(run.exists());
+        }
+    }
+
+    @Test
+    public void runStatistics() throws Exception {
+        Random r = new Random(11);
+        File in = File.createTempFile("statistics", ".txt");
+        in.deleteOnExit();
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 200000; ++i) {
+            lines.add(String.format("%08d", r.nextInt(100000000)));
+        }
+        Files.write(in.toPath(), lines, StandardCharsets.UTF_8);
+        ExternalSortOptions options = new ExternalSortOptions.Builder()
+            .maxTmpFiles(10).maxMemory(0).charset(StandardCharsets.UTF_8)
+            .sampleSize(500).build();
+        SortedRuns runs = ExternalSort.sortIntoRuns(in, options);
+        try {
+            assertEquals(runs.getFiles().size(), runs.getRunInfos().size());
+            long total = 0;
+            for (RunInfo info : runs.getRunInfos()) {
+                List<String> run = Files.readAllLines(info.getFile().toPath(),
+                    StandardCharsets.UTF_8);
+                assertEquals(run.size(), info.getLineCount());
+                // the last block may be empty
+                assertEquals(run.isEmpty() ? null : run.get(0), info.getMin());
+                assertEquals(run.isEmpty() ? null : run.get(run.size() - 1), info.getMax());
+                total += info.getLineCount();
+            }
+            assertEquals(lines.size(), total);
+            Collections.sort(lines);
+            Set<String> input = new HashSet<>(lines);
+            List<String> sample = runs.getSample();
+            assertEquals(500, sample.size());
+            assertTrue(input.containsAll(sample));
+            // the sample is spread over the whole input, not its beginning
+            long below = sample.stream().filter(s -> s.compareTo(lines.get(lines.size() / 2)) < 0).count();
+            assertTrue(below > 200 && below < 300);
+            QuantileSketch sketch = runs.getSketch();
+            assertEquals(lines.size(), sketch.getCount());
+            for (double q : new double[] {0.1, 0.5, 0.9}) {
+                int rank = Collections.binarySearch(lines, sketch.quantile(q));
+                assertEquals(q, (double) rank / lines.size(), 0.01);
+                assertEquals(q, sketch.rank(lines.get((int) (q * lines.size()))), 0.01);
+            }
+        } finally {
+            for (File f : runs.getFiles()) {
+                f.delete();
+            }
+        }
+    }
+
+    @Test
+    public void ioBufferPlan() throws Exception {
+        long budget = 64L << 20;
+        int max = DirectIO.DEFAULT_BUFFER_SIZE;
+        IOBufferPlanner few = IOBufferPlanner.plan(budget, 4, max);
+        assertEquals(max, few.getReadBufferSize());
+        assertEquals(max, few.getWriteBufferSize());
+        // a thousand runs still get reads well above 8 KB, within the budget
+        IOBufferPlanner many = IOBufferPlanner.plan(budget, 1000, max);
+        assertTrue(many.getReadBufferSize() > 16 * 1024);
+        assertEquals(0, many.getReadBufferSize() % DirectIO.ALIGNMENT);
+        assertTrue(1000L * (many.getReadBufferSize() + many.getStreamBufferSize()
+            + 2 * many.getCharBufferSize()) + many.getWriteBufferSize() <= budget);
+        IOBufferPlanner tiny = IOBufferPlanner.plan(1 << 20, 100000, max);
+        assertEquals(IOBufferPlanner.MIN_BUFFER_SIZE, tiny.getReadBufferSize());
+        assertEquals(max, IOBufferPlanner.plan(budget, 0, max).getWriteBufferSize());
+        assertTrue(IOBufferPlanner.plan(0, 10, max).getBudget() > 0);
+
+        Random r = new Random(9);
+        File in = File.createTempFile("planned", ".txt");
+        in.deleteOnExit();
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 20000; ++i) {
+            lines.add(Integer.toString(r.nextInt()));
+        }
+        Files.write(in.toPath(), lines, StandardCharsets.UTF_8);
+        Collections.sort(lines);
+        File out = File.createTempFile("planned", ".txt");
+        out.deleteOnExit();
+        ExternalSortOptions options = new ExternalSortOptions.Builder()
+            .maxTmpFiles(50).maxMemory(0).charset(StandardCharsets.UTF_8)
+            .usegzip(true).ioMemory(64 * 1024).build();
+        List<File> runs = ExternalSort.sortInBatch(in, options);
+        assertEquals(lines.size(), ExternalSort.mergeSortedFiles(runs, out, options, false));
+        assertEquals(lines, Files.readAllLines(out.toPath(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void sortWithDirectIO() throws Exception {
+        Random r = new Random(8);
+        File in = File.createTempFile("direct", ".txt");
+        in.deleteOnExit();
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 50000; ++i) {
+            lines.add(Integer.toString(r.nextInt()));
+        }
+        Files.write(in.toPath(), lines, StandardCharsets.UTF_8);
+        Collections.sort(lines);
+        File out = File.createTempFile("direct", ".txt");
+        out.deleteOnExit();
+        for (boolean usegzip : new boolean[] {false, true}) {
+            ExternalSortOptions options = new ExternalSortOptions.Builder()
+                .maxTmpFiles(20).maxMemory(0).charset(StandardCharsets.UTF_8)
+                .usegzip(usegzip).directIO(true)
+                .ioBufferSize(DirectIO.ALIGNMENT).build();
+            List<File> runs = ExternalSort.sortInBatch(in, options);
+            assertTrue(runs.size() > 1);
+            assertEquals(lines.size(), ExternalSort.mergeSortedFiles(runs, out, options, false));
+            assertEquals(lines, Files.readAllLines(out.toPath(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void mergeShards() throws Exception {
+        Random r = new Random(12);
+        File dir = Files.createTempDirectory("shards").toFile();
+        File tmpdir = Files.createTempDirectory("merge").toFile();
+        List<String> lines = new ArrayList<>();
+        List<File> shards = new ArrayList<>();
+        for (int s = 0; s < 7; ++s) {
+            List<String> shard = new ArrayList<>();
+            for (int i = 0; i < 1000 * s; ++i) {
+                shard.add(Integer.toString(r.nextInt(100000)));
+            }
+            Collections.sort(shard);
+            lines.addAll(shard);
+            File f = new File(dir, "shard" + s + (s % 2 == 0 ? ".gz" : ".txt"));
+            try (OutputStream out = s % 2 == 0
+                    ? new java.util.zip.GZIPOutputStream(new FileOutputStream(f))
+                    : new FileOutputStream(f)) {
+                for (String line : shard) {
+                    out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            shards.add(f);
+        }
+        Collections.sort(lines);
+        File out = File.createTempFile("merged", ".txt");
+        out.deleteOnExit();
+        // three passes with a fan-in of 2, intermediate files compressed
+        ExternalSortOptions options = new ExternalSortOptions.Builder()
+            .charset(StandardCharsets.UTF_8).maxFanIn(2).usegzip(true)
+            .tmpDirectory(tmpdir).build();
+        assertEquals(lines.size(), ExternalSort.mergeFiles(shards, out, options));
+        assertEquals(lines, Files.readAllLines(out.toPath(), StandardCharsets.UTF_8));
+        for (File f : shards) {
+            assertTrue(f.exists());
+        }
+        assertEquals(0, tmpdir.list().length);
+
+        // command line, on the directory
+        assertTrue(out.delete());
+        ExternalSort.main(new String[]{"-m", "--fanin", "3", "-c", "UTF-8",
+            dir.toString(), out.toString()});
+        assertEquals(lines, Files.readAllLines(out.toPath(), StandardCharsets.UTF_8));
+        for (File f : shards) {
+            assertTrue(f.delete());
+        }
+        assertTrue(dir.delete());
+        assertTrue(tmpdir.delete());
+    }
+
+    @Test
+    public void keyComparator() throws Exception {
+        KeyComparator numeric = new KeyComparator.Builder().delimiter(',')
+            .key("2,2n").key("1,1r").build();
+        List<String> lines = new ArrayList<>(Arrays.asList("a,10", "b,9.5",
+            "c,-3", "d,x", "e,10", "f,-0"));
+        lines.sort(numeric);
+        assertEquals(Arrays.asList("c,-3", "f,-0", "d,x", "b,9.5", "e,10", "a,10"), lines);
+
+        // only ASCII digits are numbers: Arabic-Indic ones are zero
+        KeyComparator ascii = new KeyComparator.Builder().type(KeyComparator.Type.NUMERIC)
+            .stable(true).build();
+        assertTrue(ascii.compare("\u0661\u0662", "3") < 0);
+        assertEquals(0, ascii.compare("\u0661\u0662", "0"));
+        assertTrue(ascii.compare("-\u0661", "-1") > 0);
+        assertEquals(0, new KeyComparator.Builder().type(KeyComparator.Type.HUMAN_NUMERIC)
+            .stable(true).build().compare("\u0662K", "0"));
+
+        KeyComparator human = new KeyComparator.Builder()
+            .type(KeyComparator.Type.HUMAN_NUMERIC).reverse(true).key("2").build();
+        lines = new ArrayList<>(Arrays.asList("x  1.5G", "y 900M", "z\t2K", "w 3"));
+        lines.sort(human);
+        assertEquals(Arrays.asList("x  1.5G", "y 900M", "z\t2K", "w 3"), lines);
+
+        KeyComparator general = new KeyComparator.Builder()
+            .type(KeyComparator.Type.GENERAL_NUMERIC).build();
+        lines = new ArrayList<>(Arrays.asList("1e3", "-inf", "abc", "2.5E-1", "7"));
+        lines.sort(general);
+        assertEquals(Arrays.asList("abc", "-inf", "2.5E-1", "7", "1e3"), lines);
+        // the longest prefix read by strtod: NaNs after the other keys
+        lines = new ArrayList<>(Arrays.asList("0x1p4", "nan", "+Infinity", "2e",
+            "-NaN", "x1", "1d", "0x", ".5f", "1e+1e"));
+        lines.sort(general);
+        assertEquals(Arrays.asList("x1", "-NaN", "nan", "0x", ".5f", "1d", "2e",
+            "1e+1e", "0x1p4", "+Infinity"), lines);
+        KeyComparator generalOnly = new KeyComparator.Builder()
+            .type(KeyComparator.Type.GENERAL_NUMERIC).stable(true).build();
+        assertEquals(0, generalOnly.compare("0x10", "16"));
+        assertEquals(0, generalOnly.compare("0x.8", "0.5"));
+        assertEquals(0, generalOnly.compare("1d", "1"));
+        assertEquals(0, generalOnly.compare("2e", "2"));
+        assertEquals(0, generalOnly.compare("\u0661", "x"));
+
+        // characters of a field, case folding, stable order of equal keys
+        KeyComparator stable = new KeyComparator.Builder().delimiter(':')
+            .key("1.2,1.3f").stable(true).build();
+        lines = new ArrayList<>(Arrays.asList("xAb:3", "yab:1", "zAA:2"));
+        lines.sort(stable);
+        assertEquals(Arrays.asList("zAA:2", "xAb:3", "yab:1"), lines);
+
+        // merge on the keys of the heads, counted, without duplicate keys
+        KeyComparator first = new KeyComparator.Builder().key("1,1n").stable(true).build();
+        SortMetrics counted = new SortMetrics();
+        StringWriter merged = new StringWriter();
+        ExternalSort.mergeSortedFiles(new BufferedWriter(merged),
+            counted.countComparisons(first), true, true, Arrays.<IOStringStack>asList(
+                new BinaryFileBuffer(new BufferedReader(new StringReader("1 a\n01 b\n3 c\n"))),
+                new BinaryFileBuffer(new BufferedReader(new StringReader("1.0 d\n2 e\n3 f\n")))));
+        assertEquals(Arrays.asList("1 a", "2 e", "3 c"),
+            Arrays.asList(merged.toString().split(System.lineSeparator())));
+        assertTrue(counted.getComparisons() > 0);
+
+        // external sort, with the keys extracted once per line
+        Random r = new Random(13);
+        File in = File.createTempFile("keys", ".txt");
+        File out = File.createTempFile("keys", ".sorted");
+        in.deleteOnExit();
+        out.deleteOnExit();
+        lines = new ArrayList<>();
+        for (int i = 0; i < 50000; ++i) {
+            lines.add(r.nextInt(1000) + "\t" + (r.nextInt(2000) - 1000) + "\tv" + i);
+        }
+        Files.write(in.toPath(), lines, StandardCharsets.UTF_8);
+        numeric = new KeyComparator.Builder().delimiter('\t').key("2,2n")
+            .key("1,1nr").stable(true).build();
+        SortMetrics metrics = new SortMetrics();
+        ExternalSortOptions options = new ExternalSortOptions.Builder()
+            .comparator(numeric).maxTmpFiles(10).maxMemory(0)
+            .charset(StandardCharsets.UTF_8).metrics(metrics).build();
+        ExternalSort.sort(in, out, options);
+        List<String> sorted = Files.readAllLines(out.toPath(), StandardCharsets.UTF_8);
+        Collections.sort(lines, numeric);
+        assertEquals(lines.size(), sorted.size());
+        for (int i = 0; i < lines.size(); ++i) {
+            assertEquals(0, numeric.compare(lines.get(i), sorted.get(i)));
+        }
+        assertTrue(metrics.getComparisons() > 0);
+
+        // off-heap runs, with the keys extracted once per line
+        List<File> runs = ExternalSort.sortInBatchOffHeap(Files.newBufferedReader(in.toPath(),
+            StandardCharsets.UTF_8), in.length(), numeric, Integer.MAX_VALUE, 1 << 16,
+            StandardCharsets.UTF_8, null, false, 0, false);
+        assertTrue(runs.size() > 1);
+        ExternalSort.mergeSortedFiles(runs, out, numeric, StandardCharsets.UTF_8,
+            false, false, false);
+        sorted = Files.readAllLines(out.toPath(), StandardCharsets.UTF_8);
+        assertEquals(lines.size(), sorted.size());
+        for (int i = 0; i < lines.size(); ++i) {
+            assertEquals(0, numeric.compare(lines.get(i), sorted.get(i)));
+        }
+
+        // partitions, whose bounds are compared on the keys of the lines
+        List<File> partitions = new ArrayList<>();
+        for (int i = 0; i < 3; ++i) {
+            File partition = File.createTempFile("keys" + i, ".sorted");
+            partition.deleteOnExit();
+            partitions.add(partition);
+        }
+        ExternalSort.sortPartitioned(in, partitions, options);
+        sorted = new ArrayList<>();
+        for (File partition : partitions) {
+            sorted.addAll(Files.readAllLines(partition.toPath(), StandardCharsets.UTF_8));
+        }
+        assertEquals(lines.size(), sorted.size());
+        for (int i = 0; i < lines.size(); ++i) {
+            assertEquals(0, numeric.compare(lines.get(i), sorted.get(i)));
+        }
+
+        // command line
+        ExternalSort.main(new String[]{"--field-separator", "\\t", "-k", "2,2n",
+            "-k", "1,1nr", "-c", "UTF-8", in.toString(), out.toString()});
+        sorted = Files.readAllLines(out.toPath(), StandardCharsets.UTF_8);
+        for (int i = 0; i < lines.size(); ++i) {
+            assertEquals(0, numeric.compare(lines.get(i), sorted.get(i)));
+        }
+    }
+
+    @Test
+    public void stableAcrossRuns() throws Exception {
+        Random r = new Random(14);
+        File in = File.createTempFile("stable", ".txt");
+        File out = File.createTempFile("stable", ".sorted");
+        in.deleteOnExit();
+        out.deleteOnExit();
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 100000; ++i) {
+            lines.add((char) ('a' + r.nextInt(26)) + " " + i);
+        }
+        Files.write(in.toPath(), lines, StandardCharsets.UTF_8);
+        // sorted on the first character only
+        Comparator<String> prefix = (a, b) -> Character.compare(a.charAt(0), b.charAt(0));
+        ExternalSortOptions.Builder builder = new ExternalSortOptions.Builder()
+            .comparator(prefix).maxTmpFiles(20).maxMemory(0)
+            .charset(StandardCharsets.UTF_8).stable(true);
+        List<File> runs = ExternalSort.sortInBatch(in, builder.build());
+        assertTrue(runs.size() > 1);
+        ExternalSort.mergeSortedFiles(runs, out, builder.build(), false);
+        List<String> expected = new ArrayList<>(lines);
+        expected.sort(prefix);
+        assertEquals(expected, Files.readAllLines(out.toPath(), StandardCharsets.UTF_8));
+
+        // the first occurrence of each key is kept
+        ExternalSort.sort(in, out, builder.distinct(true).maxFanIn(3).build());
+        List<String> first = new ArrayList<>();
+        for (String line : expected) {
+            if (first.isEmpty() || prefix.compare(first.get(first.size() - 1), line) != 0) {
+                first.add(line);
+            }
+        }
+        assertEquals(first, Files.readAllLines(out.toPath(), StandardCharsets.UTF_8));
+
+        // ties of a stable key comparator, merging more than the fan-in
+        File shards = Files.createTempDirectory("stable").toFile();
+        List<File> inputs = new ArrayList<>();
+        for (int s = 0; s < 5; ++s) {
+            File f = new File(shards, "shard" + s);
+            Files.write(f.toPath(), Arrays.asList("k " + s, "k " + s + "b", "z " + s),
+                StandardCharsets.UTF_8);
+            inputs.add(f);
+        }
+        KeyComparator keys = new KeyComparator.Builder().key("1,1").stable(true).build();
+        ExternalSort.mergeFiles(inputs, out, new ExternalSortOptions.Builder()
+            .comparator(keys).maxFanIn(2).charset(StandardCharsets.UTF_8).build());
+        assertEquals(Arrays.asList("k 0", "k 0b", "k 1", "k 1b", "k 2", "k 2b", "k 3",
+            "k 3b", "k 4", "k 4b", "z 0", "z 1", "z 2", "z 3", "z 4"),
+            Files.readAllLines(out.toPath(), StandardCharsets.UTF_8));
+        for (File f : inputs) {
+            assertTrue(f.delete());
+        }
+        assertTrue(shards.delete());
+    }
+
+    @Test
+    public void customExecutors() throws Exception {
+        Random r = new Random(15);
+        File in = File.createTempFile("executors", ".txt");
+        in.deleteOnExit();
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 100000; ++i) {
+            lines.add(Integer.toString(r.nextInt(50000)));
+        }
+        Files.write(in.toPath(), lines, StandardCharsets.UTF_8);
+        Collections.sort(lines);
+        List<File> outputs = new ArrayList<>();
+        for (int i = 0; i < 4; ++i) {
+            File out = File.createTempFile("executors" + i, ".txt");
+            out.deleteOnExit();
+            outputs.add(out);
+        }
+        ForkJoinPool pool = new ForkJoinPool(2);
+        ExecutorService threads = Executors.newCachedThreadPool();
+        AtomicBoolean commonPool = new AtomicBoolean();
+        AtomicBoolean ownPool = new AtomicBoolean();
+        AtomicInteger tasks = new AtomicInteger();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        Comparator<String> cmp = (a, b) -> {
+            ForkJoinPool current = ForkJoinTask.getPool();
+            if (current == ForkJoinPool.commonPool()) {
+                commonPool.set(true);
+            } else if (current == pool) {
+                ownPool.set(true);
+            }
+            return a.compareTo(b);
+        };
+        Executor executor = task -> {
+            tasks.incrementAndGet();
+            threads.execute(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    task.run();
+                } finally {
+                    running.decrementAndGet();
+                }
+            });
+        };
+        try {
+            ExternalSortOptions options = new ExternalSortOptions.Builder()
+                .comparator(cmp).maxTmpFiles(20).maxMemory(0)
+                .charset(StandardCharsets.UTF_8).forkJoinPool(pool)
+                .executor(executor).maxConcurrency(2).build();
+            long[] counts = ExternalSort.sortPartitioned(in, outputs, options);
+            List<String> all = new ArrayList<>();
+            for (int i = 0; i < 4; ++i) {
+                List<String> partition = Files.readAllLines(outputs.get(i).toPath(),
+                    StandardCharsets.UTF_8);
+                assertEquals(counts[i], partition.size());
+                all.addAll(partition);
+            }
+            assertEquals(lines, all);
+            assertTrue(ownPool.get());
+            assertFalse(commonPool.get());
+            // the four merges, possibly run one after the other by a thread
+            assertTrue(tasks.get() >= 2 && tasks.get() <= 4);
+            assertTrue(maxRunning.get() <= 2);
+            assertFalse(pool.isShutdown());
+            assertFalse(threads.isShutdown());
+        } finally {
+            pool.shutdown();
+            threads.shutdown();
+        }
+
+        // virtual threads when available, platform threads otherwise
+        SortExecutor virtual = new SortExecutor(null, true, 1, "virtual");
+        try {
+            Future<String> first = virtual.submit(() -> "first");
+            Future<String> second = virtual.submit(() -> "second");
+            assertEquals("first", first.get());
+            assertEquals("second", second.get());
+        } finally {
+            virtual.close();
+        }
+        // tasks not started when closed are cancelled
+        SortExecutor limited = new SortExecutor(null, false, 1, "limited");
+        CountDownLatch started = new CountDownLatch(1);
+        Future<Void> blocked = limited.submit(() -> {
+            started.countDown();
+            Thread.sleep(Long.MAX_VALUE);
+            return null;
+        });
+        Future<String> queued = limited.submit(() -> "queued");
+        started.await();
+        limited.close();
+        assertTrue(blocked.isCancelled());
+        assertTrue(queued.isCancelled());
+        // tasks an executor never runs do not block the close
+        List<Runnable> hoarded = new ArrayList<>();
+        SortExecutor hoarding = new SortExecutor(hoarded::add, false, 2, "hoarding");
+        AtomicBoolean ran = new AtomicBoolean();
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; ++i) {
+            futures.add(hoarding.submit(() -> {
+                ran.set(true);
+                return null;
+            }));
+        }
+        hoarding.close();
+        for (Future<Void> future : futures) {
+            assertTrue(future.isCancelled());
+        }
+        assertEquals(2, hoarded.size());
+        for (Runnable task : hoarded) {
+            task.run();
+        }
+        assertFalse(ran.get());
+    }
+
     @Test
     public void displayTest()  throws Exception {
         ExternalSort.main(new String[]{}); // check that it does not crash
@@ -0,0 +1,231 @@
+package com.google.code.externalsorting;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+@SuppressWarnings({"static-method","javadoc"})
+public class GenericExternalSortTest {
+
+    static final class Point {
+        final long id;
+        final String name;
+
+        Point(long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    static final Serializer<Point> POINT_SERIALIZER = new Serializer<Point>() {
+        @Override
+        public void write(DataOutput out, Point value) throws IOException {
+            out.writeLong(value.id);
+            out.writeUTF(value.name);
+        }
+
+        @Override
+        public Point read(DataInput in) throws IOException {
+            return new Point(in.readLong(), in.readUTF());
+        }
+    };
+
+    static final Comparator<Point> BY_ID = Comparator.comparingLong(p -> p.id);
+
+    private static List<Point> randomPoints(int n, long seed) {
+        Random r = new Random(seed);
+        List<Point> points = new ArrayList<>();
+        for (int i = 0; i < n; ++i) {
+            long id = r.nextInt(n / 2);
+            points.add(new Point(id, "p" + id));
+        }
+        return points;
+    }
+
+    private static List<Point> readPoints(File f) throws IOException {
+        List<Point> answer = new ArrayList<>();
+        ObjectFileBuffer<Point> in = new ObjectFileBuffer<>(new DataInputStream(
+                new BufferedInputStream(new FileInputStream(f))), POINT_SERIALIZER);
+        try {
+            while (!in.empty()) {
+                answer.add(in.pop());
+            }
+        } finally {
+            in.close();
+        }
+        return answer;
+    }
+
+    @Test
+    public void sortObjects() throws IOException {
+        testSortObjects(false, false);
+        testSortObjects(true, false);
+        testSortObjects(false, true);
+    }
+
+    private void testSortObjects(boolean usegzip, boolean distinct) throws IOException {
+        List<Point> input = randomPoints(10000, 42);
+        File out = File.createTempFile("generic", ".bin");
+        out.deleteOnExit();
+        // tiny memory budget: forces many temporary files
+        List<File> runs = GenericExternalSort.sortInBatch(input.iterator(), 0, BY_ID,
+                POINT_SERIALIZER, p -> 64, Integer.MAX_VALUE, 64 * 1000, null, distinct,
+                usegzip, false);
+        assertTrue(runs.size() > 1);
+        long written = GenericExternalSort.mergeSortedFiles(runs, out, BY_ID,
+                POINT_SERIALIZER, distinct, usegzip);
+        for (File f : runs) {
+            assertFalse(f.exists());
+        }
+        List<Point> result = readPoints(out);
+        assertEquals(written, result.size());
+        if (!distinct) {
+            assertEquals(input.size(), result.size());
+        }
+        for (int i = 1; i < result.size(); ++i) {
+            if (distinct) {
+                assertTrue(result.get(i - 1).id < result.get(i).id);
+            } else {
+                assertTrue(result.get(i - 1).id <= result.get(i).id);
+            }
+            assertEquals("p" + result.get(i).id, result.get(i).name);
+        }
+    }
+
+    @Test
+    public void truncatedRun() throws IOException {
+        List<Point> input = randomPoints(1000, 7);
+        File run = GenericExternalSort.sortAndSave(input, BY_ID, POINT_SERIALIZER,
+                null, false, false, false);
+        run.deleteOnExit();
+        assertEquals(input.size(), readPoints(run).size());
+        // the last element loses its last byte
+        try (RandomAccessFile f = new RandomAccessFile(run, "rw")) {
+            f.setLength(f.length() - 1);
+        }
+        try {
+            readPoints(run);
+            fail("a truncated run should not be read");
+        } catch (IOException e) {
+            assertFalse(e instanceof EOFException);
+            assertTrue(e.getCause() instanceof EOFException);
+        }
+        final boolean[] closed = new boolean[1];
+        DataInputStream in = new DataInputStream(new FilterInputStream(
+                new BufferedInputStream(new FileInputStream(run))) {
+            @Override
+            public void close() throws IOException {
+                closed[0] = true;
+                super.close();
+            }
+        });
+        try {
+            GenericExternalSort.mergeSortedFiles(
+                    new DataOutputStream(new ByteArrayOutputStream()), BY_ID,
+                    POINT_SERIALIZER, false,
+                    Arrays.asList(new ObjectFileBuffer<>(in, POINT_SERIALIZER)));
+            fail("a truncated run should not be merged");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("truncated element"));
+        }
+        assertTrue(closed[0]);
+        File out = File.createTempFile("generic", ".bin");
+        out.deleteOnExit();
+        try {
+            GenericExternalSort.mergeSortedFiles(Arrays.asList(run), out, BY_ID,
+                    POINT_SERIALIZER);
+            fail("a truncated run should not be merged");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("truncated element"));
+        }
+        assertFalse(run.exists());
+    }
+
+    @Test
+    public void cancelledSortDeletesItsFiles() throws IOException {
+        List<Point> input = randomPoints(10000, 3);
+        File tmpDirectory = Files.createTempDirectory("generic").toFile();
+        try {
+            try {
+                GenericExternalSort.sortInBatch(input.iterator(), 0, BY_ID,
+                        POINT_SERIALIZER, p -> 64, Integer.MAX_VALUE, 64 * 1000,
+                        tmpDirectory, false, false, false,
+                        new SortHandle(0, TimeUnit.MILLISECONDS));
+                fail("the sort should have timed out");
+            } catch (SortCancelledException e) {
+                assertEquals("sort timed out", e.getMessage());
+            }
+            assertEquals(0, tmpDirectory.list().length);
+
+            // the runs are deleted when the merge is cancelled
+            SortHandle handle = new SortHandle();
+            List<File> runs = GenericExternalSort.sortInBatch(input.iterator(), 0,
+                    BY_ID, POINT_SERIALIZER, p -> 64, Integer.MAX_VALUE, 64 * 1000,
+                    tmpDirectory, false, false, false, handle);
+            assertTrue(runs.size() > 1);
+            assertEquals(runs, handle.getTempFiles());
+            handle.cancel();
+            File out = File.createTempFile("generic", ".bin");
+            out.deleteOnExit();
+            try {
+                GenericExternalSort.mergeSortedFiles(runs, out, BY_ID,
+                        POINT_SERIALIZER, false, false, handle);
+                fail("the merge should have been cancelled");
+            } catch (SortCancelledException e) {
+                assertEquals("sort cancelled", e.getMessage());
+            }
+            assertTrue(handle.isClosed());
+            assertEquals(0, tmpDirectory.list().length);
+        } finally {
+            for (File f : tmpDirectory.listFiles()) {
+                f.delete();
+            }
+            tmpDirectory.delete();
+        }
+    }
+
+    @Test
+    public void sortStrings() throws IOException {
+        List<String> input = new ArrayList<>();
+        for (String s : new String[] {"f", "m", "b", "e", "é", "o", "u"}) {
+            input.add(s);
+        }
+        File out = File.createTempFile("generic", ".bin");
+        out.deleteOnExit();
+        StringSerializer serializer = new StringSerializer();
+        long written = GenericExternalSort.sort(input.iterator(), out,
+                ExternalSort.defaultcomparator, serializer, StringSizeEstimator::estimatedSizeOf);
+        assertEquals(7, written);
+        ObjectFileBuffer<String> in = new ObjectFileBuffer<>(new DataInputStream(
+                new FileInputStream(out)), serializer);
+        StringBuilder sb = new StringBuilder();
+        while (!in.empty()) {
+            sb.append(in.pop());
+        }
+        in.close();
+        assertEquals("befmoué", sb.toString());
+    }
+}
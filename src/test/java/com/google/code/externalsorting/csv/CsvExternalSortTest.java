@@ -1,26 +1,50 @@
 package com.google.code.externalsorting.csv;
 
+import com.google.code.externalsorting.Compression;
+import com.google.code.externalsorting.MemoryLayout;
+import com.google.code.externalsorting.SortCancelledException;
+import com.google.code.externalsorting.SortHandle;
+import com.google.code.externalsorting.SortListener;
+import com.google.code.externalsorting.SortMetrics;
+import com.google.code.externalsorting.SortPhase;
+import com.google.code.externalsorting.SortStatistics;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVRecord;
+import org.github.jamm.MemoryMeter;
 import org.junit.After;
+import org.junit.Ignore;
 import org.junit.Test;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.GZIPOutputStream;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 
 public class CsvExternalSortTest {
@@ -260,9 +284,511 @@ public class CsvExternalSortTest {
 		reader.close();
 	}
 
+	@Test
+	public void testParallelAndConcurrentSpills() throws Exception {
+		StringBuilder sb = new StringBuilder("id,text\n");
+		Random r = new Random(7);
+		List<Integer> ids = new ArrayList<Integer>();
+		for (int i = 0; i < 20000; i++) {
+			int id = r.nextInt(1000000);
+			ids.add(id);
+			sb.append(id).append(",\"text, ").append(i).append("\"\n");
+		}
+		Collections.sort(ids);
+		outputfile = File.createTempFile("parallel", ".csv");
+		Comparator<CSVRecord> comparator = Comparator.comparingInt(op -> Integer.parseInt(op.get(0)));
+		for (int spillThreads : new int[] {0, 1, 3}) {
+			CsvSortOptions sortOptions = new CsvSortOptions
+					.Builder(comparator, Integer.MAX_VALUE, 600000)
+					.numHeader(1)
+					.parallel(true)
+					.spillThreads(spillThreads)
+					.build();
+			ArrayList<CSVRecord> header = new ArrayList<CSVRecord>();
+			BufferedReader in = new BufferedReader(new StringReader(sb.toString()));
+			List<File> sortInBatch = CsvExternalSort.sortInBatch(sb.length(), in, null, sortOptions, header);
+			assertTrue(sortInBatch.size() > 1);
+			int numWrittenLines = CsvExternalSort.mergeSortedFiles(sortInBatch, outputfile, sortOptions, false, header);
+			assertEquals(ids.size(), numWrittenLines);
+			List<String> lines = Files.readAllLines(outputfile.toPath());
+			for (int i = 0; i < ids.size(); i++) {
+				assertTrue(lines.get(i).startsWith(ids.get(i) + ",\"text, "));
+			}
+		}
+
+		// on a shared executor and pool, with a sort key and compact blocks
+		ForkJoinPool pool = new ForkJoinPool(2);
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			CsvSortOptions sortOptions = new CsvSortOptions
+					.Builder(CsvSortKey.builder().column(0, CsvSortKey.Type.LONG).build(), Integer.MAX_VALUE, 600000)
+					.numHeader(1)
+					.parallel(true)
+					.spillThreads(2)
+					.executor(executor)
+					.forkJoinPool(pool)
+					.build();
+			ArrayList<CSVRecord> header = new ArrayList<CSVRecord>();
+			BufferedReader in = new BufferedReader(new StringReader(sb.toString()));
+			List<File> sortInBatch = CsvExternalSort.sortInBatch(sb.length(), in, null, sortOptions, header);
+			assertTrue(sortInBatch.size() > 1);
+			assertEquals(ids.size(), CsvExternalSort.mergeSortedFiles(sortInBatch, outputfile, sortOptions, false, header));
+			List<String> lines = Files.readAllLines(outputfile.toPath());
+			for (int i = 0; i < ids.size(); i++) {
+				assertTrue(lines.get(i).startsWith(ids.get(i) + ",\"text, "));
+			}
+			// the sort does not shut them down
+			assertTrue(!pool.isShutdown() && !executor.isShutdown());
+		} finally {
+			pool.shutdown();
+			executor.shutdown();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testSpillErrorsArePropagated() throws Exception {
+		outputfile = new File("outputSort1.csv");
+		Comparator<CSVRecord> comparator = (op1, op2) -> op1.get(0).compareTo(op2.get(0));
+		CsvSortOptions sortOptions = new CsvSortOptions
+				.Builder(comparator, Integer.MAX_VALUE, 0)
+				.build();
+		BufferedReader in = new BufferedReader(new StringReader("b\na\n"));
+		CsvExternalSort.sortInBatch(4, in, new File("no/such/directory"), sortOptions, new ArrayList<CSVRecord>());
+	}
+
+	@Test
+	public void testCompressedTempFilesAndInput() throws Exception {
+		String path = this.getClass().getClassLoader().getResource(FILE_CSV).getPath();
+		File gzipped = File.createTempFile("externalSorting", ".csv.gz");
+		gzipped.deleteOnExit();
+		try (OutputStream out = new GZIPOutputStream(new FileOutputStream(gzipped))) {
+			Files.copy(Paths.get(path), out);
+		}
+		outputfile = new File("outputSort1.csv");
+		Comparator<CSVRecord> comparator = (op1, op2) -> op1.get(0).compareTo(op2.get(0));
+		for (Compression compression : Compression.values()) {
+			for (File input : new File[] {new File(path), gzipped}) {
+				CsvSortOptions sortOptions = new CsvSortOptions
+						.Builder(comparator, CsvExternalSort.DEFAULTMAXTEMPFILES, CsvExternalSort.estimateAvailableMemory())
+						.numHeader(1)
+						.skipHeader(false)
+						.compression(compression)
+						.build();
+				ArrayList<CSVRecord> header = new ArrayList<CSVRecord>();
+				List<File> sortInBatch = CsvExternalSort.sortInBatch(input, null, sortOptions, header);
+				assertEquals(1, sortInBatch.size());
+				CsvExternalSort.mergeSortedFiles(sortInBatch, outputfile, sortOptions, false, header);
+				List<String> lines = Files.readAllLines(outputfile.toPath(), sortOptions.getCharset());
+				assertEquals("personId,text,ishired", lines.get(0));
+				assertEquals("6,this wont work in other systems,3", lines.get(1));
+				assertEquals("8,this is only bro text for hard read,2", lines.get(4));
+				assertEquals(5, lines.size());
+			}
+		}
+	}
+
+	@Test
+	public void testSortKey() throws Exception {
+		String content = "amount,name,score\n"
+				+ "10,b,1.5\n"
+				+ "9,a,-2\n"
+				+ "10,a,1e3\n"
+				+ "x,c,0\n"
+				+ "-3,d,-0.5\n"
+				+ "10,a,-1e3\n";
+		CsvSortKey key = CsvSortKey.builder()
+				.column(0, CsvSortKey.Type.LONG, true)
+				.column(1, CsvSortKey.Type.STRING)
+				.column(2, CsvSortKey.Type.DOUBLE)
+				.build();
+		outputfile = File.createTempFile("sortkey", ".csv");
+		for (int maxMemory : new int[] {0, 1000000}) {
+			CsvSortOptions sortOptions = new CsvSortOptions
+					.Builder(null, Integer.MAX_VALUE, maxMemory)
+					.sortKey(key)
+					.numHeader(1)
+					.build();
+			ArrayList<CSVRecord> header = new ArrayList<CSVRecord>();
+			List<File> sortInBatch = CsvExternalSort.sortInBatch(content.length(),
+					new BufferedReader(new StringReader(content)), null, sortOptions, header);
+			CsvExternalSort.mergeSortedFiles(sortInBatch, outputfile, sortOptions, false, header);
+			List<String> lines = Files.readAllLines(outputfile.toPath());
+			assertEquals(Arrays.asList("10,a,-1e3", "10,a,1e3", "10,b,1.5", "9,a,-2", "-3,d,-0.5", "x,c,0"), lines);
+		}
+	}
+
+	@Test
+	public void testDistinctModes() throws Exception {
+		String content = "id,name,value\n"
+				+ "2,a,z\n"
+				+ "1,a,x\n"
+				+ "3,c,c\n"
+				+ "1,b,y\n"
+				+ "1,a,x\n"
+				+ "2,a,x\n"
+				+ "1,a,x\n";
+		CsvSortKey key = CsvSortKey.builder()
+				.column(0, CsvSortKey.Type.LONG)
+				.column(1, CsvSortKey.Type.STRING)
+				.build();
+		Comparator<CSVRecord> comparator = Comparator.<CSVRecord, String>comparing(op -> op.get(0))
+				.thenComparing(op -> op.get(1));
+		outputfile = File.createTempFile("distinct", ".csv");
+		for (int maxMemory : new int[] {0, 1000000}) {
+			for (boolean withKey : new boolean[] {false, true}) {
+				for (CsvSortOptions.Distinct mode : CsvSortOptions.Distinct.values()) {
+					CsvSortOptions.Builder builder = new CsvSortOptions
+							.Builder(comparator, Integer.MAX_VALUE, maxMemory)
+							.numHeader(1);
+					if (withKey) {
+						builder.sortKey(key);
+					}
+					if (mode == CsvSortOptions.Distinct.COLUMNS) {
+						builder.distinctColumns(0, 1);
+					} else {
+						builder.distinctBy(mode);
+					}
+					CsvSortOptions sortOptions = builder.build();
+					ArrayList<CSVRecord> header = new ArrayList<CSVRecord>();
+					List<File> sortInBatch = CsvExternalSort.sortInBatch(content.length(),
+							new BufferedReader(new StringReader(content)), null, sortOptions, header);
+					int written = CsvExternalSort.mergeSortedFiles(sortInBatch, outputfile, sortOptions, false, header);
+					List<String> lines = Files.readAllLines(outputfile.toPath());
+					assertEquals(written, lines.size());
+					if (mode == CsvSortOptions.Distinct.RECORD) {
+						// the order of the records with equal keys is arbitrary
+						Collections.sort(lines);
+						assertEquals(Arrays.asList("1,a,x", "1,b,y", "2,a,x", "2,a,z", "3,c,c"), lines);
+					} else {
+						List<String> keys = new ArrayList<String>();
+						for (String line : lines) {
+							keys.add(line.substring(0, 3));
+						}
+						assertEquals(Arrays.asList("1,a", "1,b", "2,a", "3,c"), keys);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSyntheticRowsWithLongCounts() throws Exception {
+		sortSyntheticRows(300000, 1 << 20);
+	}
+
+	/**
+	 * The counts of the CSV path go past 2^31 rows. Writes about 100 GB of
+	 * output, plus the compressed runs: run with
+	 * -Dtest=CsvExternalSortTest#testBillionsOfSyntheticRows and optionally
+	 * -Dcsv.rows=...
+	 */
+	@Ignore("sorts three billion rows")
+	@Test
+	public void testBillionsOfSyntheticRows() throws Exception {
+		sortSyntheticRows(Long.getLong("csv.rows", 3000000000L), 1L << 30);
+	}
+
+	@Test
+	public void testStatisticsCountDistinctRecordsWritten() throws Exception {
+		StringBuilder csv = new StringBuilder();
+		// enough records to exceed the memory granted at the minimum
+		for (int i = 0; i < 50000; i++) {
+			csv.append("same,1\n");
+		}
+		Comparator<CSVRecord> comparator = (a, b) -> a.get(0).compareTo(b.get(0));
+		CsvSortKey key = CsvSortKey.builder().column(1, CsvSortKey.Type.LONG).build();
+		for (Comparator<CSVRecord> cmp : Arrays.asList(comparator, key)) {
+			SortStatistics stats = new SortStatistics();
+			CsvSortOptions sortOptions = new CsvSortOptions
+					.Builder(cmp, CsvExternalSort.DEFAULTMAXTEMPFILES, 0)
+					.distinct(true)
+					.listener(stats)
+					.build();
+			List<File> runs = CsvExternalSort.sortInBatch(csv.length(),
+					new BufferedReader(new StringReader(csv.toString())), null, sortOptions,
+					new ArrayList<CSVRecord>());
+			assertTrue(runs.size() > 1);
+			// each run holds a single record once its duplicates are removed
+			assertEquals(runs.size(), stats.getRunLines());
+			for (SortStatistics.Run run : stats.getRuns()) {
+				assertEquals(1, run.getLines());
+			}
+			for (File run : runs) {
+				run.delete();
+			}
+		}
+	}
+
+	private void sortSyntheticRows(long rows, long maxMemory) throws Exception {
+		SortStatistics stats = new SortStatistics();
+		CsvSortKey key = CsvSortKey.builder().column(1, CsvSortKey.Type.LONG).build();
+		CsvSortOptions sortOptions = new CsvSortOptions
+				.Builder(null, CsvExternalSort.DEFAULTMAXTEMPFILES, maxMemory)
+				.sortKey(key)
+				.compression(Compression.GZIP)
+				.listener(stats)
+				.build();
+		ArrayList<CSVRecord> header = new ArrayList<CSVRecord>();
+		List<File> runs = CsvExternalSort.sortInBatch(rows * SyntheticRows.ROW_LENGTH,
+				new BufferedReader(new SyntheticRows(rows), 1 << 16), null, sortOptions, header);
+		outputfile = File.createTempFile("synthetic", ".csv");
+		long written = CsvExternalSort.merge(runs, outputfile, sortOptions, false, header);
+		assertEquals(rows, written);
+		assertEquals(rows, stats.getRunLines());
+		assertEquals(runs.size(), stats.getRuns().size());
+		List<SortStatistics.Phase> phases = stats.getPhases();
+		assertEquals(SortPhase.RUN_GENERATION, phases.get(0).getPhase());
+		assertEquals(rows, phases.get(0).getLinesRead());
+		assertEquals(SortPhase.MERGE, phases.get(1).getPhase());
+		assertEquals(rows, phases.get(1).getLinesWritten());
+		// sorted on the key, read back without holding the output
+		long lines = 0;
+		long previous = Long.MIN_VALUE;
+		try (BufferedReader reader = new BufferedReader(new FileReader(outputfile), 1 << 16)) {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				int comma = line.indexOf(',');
+				long value = Long.parseLong(line.substring(comma + 1, line.indexOf(',', comma + 1)));
+				assertTrue(value >= previous);
+				previous = value;
+				lines++;
+			}
+		}
+		assertEquals(rows, lines);
+	}
+
+	/**
+	 * Generates rows "id,key,payload" with pseudo-random keys, without
+	 * holding them.
+	 */
+	private static final class SyntheticRows extends Reader {
+		// at most 20 digits for the id and 9 for the key, with ",,payload\n"
+		static final int ROW_LENGTH = 41;
+
+		private final long rows;
+		private long next = 0;
+		private final StringBuilder row = new StringBuilder(ROW_LENGTH);
+		private int position = 0;
+
+		SyntheticRows(long rows) {
+			this.rows = rows;
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) {
+			int n = 0;
+			while (n < len) {
+				if (position == row.length()) {
+					if (next == rows) {
+						break;
+					}
+					// splitmix64
+					long z = (next + 1) * 0x9E3779B97F4A7C15L;
+					z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+					z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+					z ^= z >>> 31;
+					row.setLength(0);
+					row.append(next).append(',').append((z >>> 33) % 1000000000L)
+							.append(",payload\n");
+					position = 0;
+					next++;
+				}
+				int k = Math.min(len - n, row.length() - position);
+				row.getChars(position, position + k, cbuf, off + n);
+				position += k;
+				n += k;
+			}
+			return n == 0 && len > 0 ? -1 : n;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	@Test
+	public void testCompactRecordBlock() throws Exception {
+		Random r = new Random(7);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 20000; i++) {
+			sb.append(r.nextInt(100)).append(",\"").append((char) ('a' + r.nextInt(3)))
+					.append(i % 10 == 0 ? "\u00e9\ud83d\ude00" : ",\"\"x").append("\",").append(i).append('\n');
+		}
+		CsvSortKey key = CsvSortKey.builder()
+				.column(0, CsvSortKey.Type.LONG)
+				.column(1, CsvSortKey.Type.STRING, true)
+				.build();
+		List<CSVRecord> records = CSVFormat.DEFAULT.parse(new StringReader(sb.toString())).getRecords();
+		CsvRecordBlock block = new CsvRecordBlock(key);
+		long estimated = 0;
+		for (CSVRecord e : records) {
+			block.add(e);
+			estimated += SizeEstimator.estimatedSizeOf(e);
+		}
+		assertTrue(block.sizeInBytes() < estimated);
+		block.sort(true);
+		List<CSVRecord> expected = new ArrayList<CSVRecord>(records);
+		Collections.sort(expected, key);
+		for (int k = 0; k < expected.size(); k++) {
+			int i = block.recordAt(k);
+			assertEquals(expected.get(k).get(2), block.field(i, 2).toString());
+		}
+		block.clear();
+		assertEquals(0, block.size());
+	}
+
+	@Test
+	public void testSizeEstimatorNeverUnderestimatesRecords() throws Exception {
+		MemoryMeter meter = new MemoryMeter();
+		// Latin-1 fields are compact on Java 9 and above
+		for (char c : new char[] {'\u00e9', '\u0101'}) {
+			for (int fields = 0; fields < 10; fields++) {
+				String[] values = new String[fields];
+				long actual = meter.measure(values);
+				for (int i = 0; i < fields; i++) {
+					values[i] = new String(new char[i * 7]).replace('\0', c);
+					Object backing = MemoryLayout.COMPACT_STRINGS && c <= 0xFF
+							? new byte[values[i].length()] : values[i].toCharArray();
+					actual += meter.measure(values[i]) + meter.measure(backing);
+				}
+				CSVRecord record = CsvRunFormat.newRecord(null, values, 1);
+				actual += meter.measure(record);
+				assertTrue(SizeEstimator.estimatedSizeOf(record) >= actual);
+				assertTrue(SizeEstimator.estimatedSizeOf(record) <= 2 * actual);
+			}
+		}
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+		String path = this.getClass().getClassLoader().getResource(FILE_CSV).getPath();
+		outputfile = File.createTempFile("metrics", ".csv");
+		SortMetrics metrics = new SortMetrics();
+		CsvSortOptions sortOptions = new CsvSortOptions
+				.Builder((op1, op2) -> op1.get(0).compareTo(op2.get(0)), CsvExternalSort.DEFAULTMAXTEMPFILES, 0)
+				.numHeader(1)
+				.metrics(metrics)
+				.build();
+		ArrayList<CSVRecord> header = new ArrayList<CSVRecord>();
+		List<File> sortInBatch = CsvExternalSort.sortInBatch(new File(path), null, sortOptions, header);
+		int written = CsvExternalSort.mergeSortedFiles(sortInBatch, outputfile, sortOptions, false, header);
+		assertEquals(sortInBatch.size(), metrics.getRunsCreated());
+		assertEquals(written, metrics.getLinesRead());
+		assertEquals(written, metrics.getLinesWritten());
+		assertEquals(new File(path).length(), metrics.getBytesRead());
+		assertEquals(outputfile.length(), metrics.getBytesWritten());
+		assertTrue(metrics.getComparisons() > 0);
+	}
+
+	@Test
+	public void testCancelledSortDeletesItsFiles() throws Exception {
+		StringBuilder csv = new StringBuilder("id,name\n");
+		Random r = new Random(5);
+		for (int i = 0; i < 100000; i++) {
+			csv.append(r.nextInt(1000)).append(",name").append(r.nextInt()).append('\n');
+		}
+		File tmpDirectory = Files.createTempDirectory("cancel").toFile();
+		try {
+			final SortHandle handle = new SortHandle();
+			CsvSortKey key = CsvSortKey.builder().column(0, CsvSortKey.Type.LONG).build();
+			CsvSortOptions sortOptions = new CsvSortOptions
+					.Builder(key, CsvExternalSort.DEFAULTMAXTEMPFILES, 0)
+					.numHeader(1)
+					.spillThreads(2)
+					.handle(handle)
+					.listener(new SortListener() {
+						@Override
+						public void runCreated(File run, long records, SortMetrics m) {
+							if (m.getRunsCreated() == 2) {
+								handle.cancel();
+							}
+						}
+					})
+					.build();
+			try {
+				CsvExternalSort.sortInBatch(csv.length(), new BufferedReader(new StringReader(csv.toString())),
+						tmpDirectory, sortOptions, new ArrayList<CSVRecord>());
+				fail("the sort should have been cancelled");
+			} catch (SortCancelledException e) {
+				assertEquals("sort cancelled", e.getMessage());
+			}
+			assertTrue(handle.isClosed());
+			assertEquals(0, tmpDirectory.list().length);
+		} finally {
+			for (File f : tmpDirectory.listFiles()) {
+				f.delete();
+			}
+			tmpDirectory.delete();
+		}
+	}
+
+	@Test
+	public void testBinaryAndTextRunsAgree() throws Exception {
+		// enough quoted records to exceed the memory granted at the minimum
+		File input = File.createTempFile("quoted", ".csv");
+		input.deleteOnExit();
+		try (Writer writer = Files.newBufferedWriter(input.toPath(), StandardCharsets.UTF_8)) {
+			writer.write("\"author\",\"title\"\n");
+			for (int i = 0; i < 20000; i++) {
+				writer.write("\"Simmons, " + (i * 7919 % 1000) + "\",\"\"\"Hyperion\"\" " + i + "\"\n");
+			}
+		}
+		String path = input.getPath();
+		outputfile = File.createTempFile("runs", ".csv");
+		Comparator<CSVRecord> comparator = (op1, op2) -> op1.get(0).compareTo(op2.get(0));
+		List<List<String>> outputs = new ArrayList<List<String>>();
+		for (boolean binaryRuns : new boolean[] {true, false}) {
+			CsvSortOptions sortOptions = new CsvSortOptions
+					.Builder(comparator, Integer.MAX_VALUE, 0)
+					.charset(StandardCharsets.UTF_8)
+					.numHeader(1)
+					.binaryRuns(binaryRuns)
+					.build();
+			ArrayList<CSVRecord> header = new ArrayList<CSVRecord>();
+			List<File> sortInBatch = CsvExternalSort.sortInBatch(new File(path), null, sortOptions, header);
+			assertTrue(sortInBatch.size() > 1);
+			CsvExternalSort.mergeSortedFiles(sortInBatch, outputfile, sortOptions, false, header);
+			outputs.add(Files.readAllLines(outputfile.toPath(), StandardCharsets.UTF_8));
+		}
+		assertEquals(outputs.get(1), outputs.get(0));
+	}
+
+	@Test
+	public void testHeaderNamesInComparator() throws Exception {
+		File input = File.createTempFile("named", ".csv");
+		input.deleteOnExit();
+		outputfile = File.createTempFile("named", ".csv");
+		List<String> rows = new ArrayList<String>();
+		Random r = new Random(7);
+		for (int i = 0; i < 2000; i++) {
+			rows.add("n" + r.nextInt(100) + "," + i);
+		}
+		Files.write(input.toPath(), rows, StandardCharsets.UTF_8);
+		Comparator<String> byName = Comparator.comparing((String row) -> row.split(",")[0])
+				.thenComparing(row -> Integer.parseInt(row.split(",")[1]));
+		List<String> expected = new ArrayList<String>(rows);
+		expected.sort(byName);
+		expected.add(0, "name,id");
+		CSVFormat format = CSVFormat.DEFAULT.builder().setHeader("name", "id").build();
+		Comparator<CSVRecord> comparator = Comparator.comparing((CSVRecord rec) -> rec.get("name"))
+				.thenComparing(rec -> Integer.parseInt(rec.get("id")));
+		for (boolean binaryRuns : new boolean[] {false, true}) {
+			CsvSortOptions sortOptions = new CsvSortOptions
+					.Builder(comparator, Integer.MAX_VALUE, 0)
+					.charset(StandardCharsets.UTF_8)
+					.format(format)
+					.binaryRuns(binaryRuns)
+					.build();
+			ArrayList<CSVRecord> header = new ArrayList<CSVRecord>();
+			List<File> sortInBatch = CsvExternalSort.sortInBatch(input, null, sortOptions, header);
+			assertTrue(sortInBatch.size() > 1);
+			CsvExternalSort.mergeSortedFiles(sortInBatch, outputfile, sortOptions, false, header);
+			assertEquals(expected, Files.readAllLines(outputfile.toPath(), StandardCharsets.UTF_8));
+		}
+	}
+
 	@After
 	public void onTearDown() {
-		if(outputfile.exists()) {
+		if(outputfile != null && outputfile.exists()) {
 			outputfile.delete();
 		}
 	}